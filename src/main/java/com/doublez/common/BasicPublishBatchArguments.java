@@ -0,0 +1,17 @@
+package com.doublez.common;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 批量发送消息的参数，一个请求中携带多条消息
+ * 每个条目只使用 exchangeName、routingKey、basicProperties 和 body，rid 和 channelId 以外层为准
+ */
+@Data
+@EqualsAndHashCode(callSuper=false)
+public class BasicPublishBatchArguments extends BasicArguments implements Serializable {
+    private List<BasicPublishArguments> entries;
+}
@@ -0,0 +1,15 @@
+package com.doublez.common;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.io.Serializable;
+
+/**
+ * 批量发送消息的响应，results 和请求中的条目一一对应，ok 表示所有条目都发送成功
+ */
+@Data
+@EqualsAndHashCode(callSuper=false)
+public class BasicPublishBatchReturns extends BasicReturns implements Serializable {
+    private boolean[] results;
+}
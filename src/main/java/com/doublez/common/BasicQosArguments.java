@@ -0,0 +1,13 @@
+package com.doublez.common;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.io.Serializable;
+
+@Data
+@EqualsAndHashCode(callSuper=false)
+public class BasicQosArguments extends BasicArguments implements Serializable {
+    //预取数量，0 表示不限制
+    private int prefetchCount;
+}
@@ -0,0 +1,124 @@
+package com.doublez.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 读取 BinaryWriter 写出的数据
+ * 可以直接包装文件映射内存的切片，数据不完整或者格式不对时抛出 IOException
+ */
+public class BinaryReader {
+    private final ByteBuffer buffer;
+
+    public BinaryReader(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    public BinaryReader(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    public byte readByte() throws IOException {
+        try {
+            return buffer.get();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("[BinaryReader] 数据不完整!");
+        }
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("[BinaryReader] 数据不完整!");
+        }
+    }
+
+    public long readLong() throws IOException {
+        try {
+            return buffer.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("[BinaryReader] 数据不完整!");
+        }
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("[BinaryReader] varint 格式错误!");
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("[BinaryReader] varint 格式错误!");
+    }
+
+    public String readString() throws IOException {
+        int length = readLength();
+        if (length < 0) {
+            return null;
+        }
+        return new String(readRaw(length), StandardCharsets.UTF_8);
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readLength();
+        if (length < 0) {
+            return null;
+        }
+        return readRaw(length);
+    }
+
+    //跳过一个带长度前缀的字节数组，不复制内容
+    public void skipBytes() throws IOException {
+        int length = readLength();
+        if (length > buffer.remaining()) {
+            throw new IOException("[BinaryReader] 数据不完整! 需要:" + length + ", 剩余:" + buffer.remaining());
+        }
+        if (length > 0) {
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    //不带长度前缀，直接读取 length 个字节
+    public byte[] readRaw(int length) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("[BinaryReader] 数据不完整! 需要:" + length + ", 剩余:" + buffer.remaining());
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    //读取可以为 null 的长度前缀，返回 -1 表示 null
+    private int readLength() throws IOException {
+        int length = readVarInt() - 1;
+        if (length < -1) {
+            throw new IOException("[BinaryReader] 长度错误! length:" + length);
+        }
+        return length;
+    }
+}
@@ -1,6 +1,7 @@
 package com.doublez.common;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 //对象需要实现序列化和反序列号需要实现Serializable
 public class BinaryTool {
@@ -21,4 +22,42 @@ public class BinaryTool {
             return in.readObject();
         }
     }
+    //直接从 ByteBuffer（例如文件映射内存的切片）中反序列化，不需要先复制成字节数组
+    public static Object fromBytes(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(buffer.duplicate()))) {
+            return in.readObject();
+        }
+    }
+
+    //把 ByteBuffer 的剩余部分包装成 InputStream
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
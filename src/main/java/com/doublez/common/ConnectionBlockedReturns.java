@@ -0,0 +1,18 @@
+package com.doublez.common;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.io.Serializable;
+
+/**
+ * 服务器主动推送的连接阻塞通知（0xf）
+ * 内存或磁盘超过水位线时 blocked 为 true，服务器暂停读取这个连接上的请求，恢复之后再推送一次 blocked 为 false 的通知
+ */
+@Data
+@EqualsAndHashCode(callSuper=false)
+public class ConnectionBlockedReturns extends BasicReturns implements Serializable {
+    private boolean blocked;
+    //阻塞的原因，解除阻塞时为空字符串
+    private String reason;
+}
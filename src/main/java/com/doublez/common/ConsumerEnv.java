@@ -3,6 +3,8 @@ package com.doublez.common;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * 表示消费者完整的执行环境
  */
@@ -14,4 +16,40 @@ public class ConsumerEnv {
     private boolean autoAck;
     // 通过回调函数来处理收到的消息
     private Consumer consumer;
+    // 预取数量: 最多同时有多少条消息推送给这个消费者但还没有确认, 0 表示不限制. 只对手动确认的消费者生效
+    private int prefetchCount;
+    // 已经推送但还没有确认的消息数量
+    private final AtomicInteger unacked = new AtomicInteger(0);
+
+    public ConsumerEnv(String consumerTag, String queueName, boolean autoAck, Consumer consumer) {
+        this(consumerTag, queueName, autoAck, consumer, 0);
+    }
+
+    // 是否需要限制未确认的消息数量
+    public boolean isLimited() {
+        return !autoAck && prefetchCount > 0;
+    }
+
+    // 推送消息之前占用一个名额, 未确认的消息已经达到上限时返回 false
+    public boolean tryAcquireCredit() {
+        if (!isLimited()) {
+            return true;
+        }
+        while (true) {
+            int cur = unacked.get();
+            if (cur >= prefetchCount) {
+                return false;
+            }
+            if (unacked.compareAndSet(cur, cur + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // 消息被确认(或者没有推送出去)之后归还名额
+    public void releaseCredit() {
+        if (isLimited()) {
+            unacked.decrementAndGet();
+        }
+    }
 }
@@ -0,0 +1,461 @@
+package com.doublez.common;
+
+import com.doublez.mqserver.core.BasicProperties;
+import com.doublez.mqserver.core.ExchangeType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 请求/响应 payload 的编解码
+ * BINARY -> 手写的二进制格式，第一个字节是格式版本号，之后按照 type 依次写入各个字段
+ * JAVA   -> 原来的 Java 序列化，只作为兼容旧客户端的备选格式
+ * 服务器根据 payload 的第一个字节识别客户端使用的格式（Java 序列化的流总是以 0xAC 0xED 开头），
+ * 并且用同样的格式回复，这样新旧客户端都可以连接同一个服务器
+ */
+public class WireCodec {
+    public enum Format {
+        BINARY, JAVA
+    }
+
+    //二进制格式的版本号，修改字段布局时递增
+    public static final byte VERSION = 1;
+    //Java 序列化流的第一个字节
+    private static final byte JAVA_STREAM_MAGIC = (byte) 0xAC;
+
+    //arguments 中 value 的类型标记，其他类型的 value 退回到 Java 序列化
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_BOOLEAN = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_BYTES = 6;
+    private static final byte TAG_SERIALIZED = 0x7f;
+
+    //识别 payload 使用的格式
+    public static Format detect(byte[] payload) throws IOException {
+        if (payload == null) {
+            throw new IOException("[WireCodec] payload 为空!");
+        }
+        return detect(ByteBuffer.wrap(payload));
+    }
+
+    //payload 是 position 到 limit 之间的数据，不会修改 payload 的 position
+    public static Format detect(ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining()) {
+            throw new IOException("[WireCodec] payload 为空!");
+        }
+        byte first = payload.get(payload.position());
+        if (first == JAVA_STREAM_MAGIC) {
+            return Format.JAVA;
+        }
+        if (first == VERSION) {
+            return Format.BINARY;
+        }
+        throw new IOException("[WireCodec] 不支持的 payload 格式! version=" + first);
+    }
+
+    //编码请求的参数，type 决定写入哪些字段
+    public static byte[] encodeArguments(int type, BasicArguments arguments, Format format) throws IOException {
+        if (format == Format.JAVA) {
+            return BinaryTool.toBytes(arguments);
+        }
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeByte(VERSION);
+        writer.writeString(arguments.getRid());
+        writer.writeString(arguments.getChannelId());
+        switch (type) {
+            case 0x1:
+            case 0x2:
+                break;
+            case 0x3: {
+                ExchangeDeclareArguments args = (ExchangeDeclareArguments) arguments;
+                writer.writeString(args.getExchangeName());
+                writer.writeByte(args.getExchangeType() == null ? -1 : args.getExchangeType().getType());
+                writer.writeBoolean(args.isDurable());
+                writer.writeBoolean(args.isAutoDelete());
+                writeMap(writer, args.getArguments());
+                break;
+            }
+            case 0x4:
+                writer.writeString(((ExchangeDeleteArguments) arguments).getExchangeName());
+                break;
+            case 0x5: {
+                QueueDeclareArguments args = (QueueDeclareArguments) arguments;
+                writer.writeString(args.getQueueName());
+                writer.writeBoolean(args.isDurable());
+                writer.writeBoolean(args.isExclusive());
+                writer.writeBoolean(args.isAutoDelete());
+                writeMap(writer, args.getArguments());
+                break;
+            }
+            case 0x6:
+                writer.writeString(((QueueDeleteArguments) arguments).getQueueName());
+                break;
+            case 0x7: {
+                QueueBindArguments args = (QueueBindArguments) arguments;
+                writer.writeString(args.getQueueName());
+                writer.writeString(args.getExchangeName());
+                writer.writeString(args.getBindingKey());
+                break;
+            }
+            case 0x8: {
+                QueueUnbindArguments args = (QueueUnbindArguments) arguments;
+                writer.writeString(args.getQueueName());
+                writer.writeString(args.getExchangeName());
+                break;
+            }
+            case 0x9:
+                writePublish(writer, (BasicPublishArguments) arguments);
+                break;
+            case 0xa: {
+                BasicConsumeArguments args = (BasicConsumeArguments) arguments;
+                writer.writeString(args.getConsumerTag());
+                writer.writeString(args.getQueueName());
+                writer.writeBoolean(args.isAutoAck());
+                break;
+            }
+            case 0xb: {
+                BasicAckArguments args = (BasicAckArguments) arguments;
+                writer.writeString(args.getQueueName());
+                writer.writeString(args.getMessageId());
+                break;
+            }
+            case 0xd: {
+                //条目数 + 每个条目的发送参数
+                List<BasicPublishArguments> entries = ((BasicPublishBatchArguments) arguments).getEntries();
+                writer.writeVarInt(entries.size());
+                for (BasicPublishArguments entry : entries) {
+                    writePublish(writer, entry);
+                }
+                break;
+            }
+            case 0xe:
+                writer.writeVarInt(((BasicQosArguments) arguments).getPrefetchCount());
+                break;
+            default:
+                throw new IOException("[WireCodec] 未知的 type! type=" + type);
+        }
+        return writer.toByteArray();
+    }
+
+    //解码请求的参数，格式根据 payload 自动识别
+    public static BasicArguments decodeArguments(int type, byte[] payload) throws IOException, ClassNotFoundException {
+        if (payload == null) {
+            throw new IOException("[WireCodec] payload 为空!");
+        }
+        return decodeArguments(type, ByteBuffer.wrap(payload));
+    }
+
+    //直接从连接的读缓冲区上解码，不需要先把 payload 复制出来
+    public static BasicArguments decodeArguments(int type, ByteBuffer payload) throws IOException, ClassNotFoundException {
+        if (detect(payload) == Format.JAVA) {
+            return (BasicArguments) BinaryTool.fromBytes(payload);
+        }
+        BinaryReader reader = new BinaryReader(payload);
+        reader.readByte();
+        String rid = reader.readString();
+        String channelId = reader.readString();
+        BasicArguments arguments;
+        switch (type) {
+            case 0x1:
+            case 0x2:
+                arguments = new BasicArguments();
+                break;
+            case 0x3: {
+                ExchangeDeclareArguments args = new ExchangeDeclareArguments();
+                args.setExchangeName(reader.readString());
+                args.setExchangeType(exchangeType(reader.readByte()));
+                args.setDurable(reader.readBoolean());
+                args.setAutoDelete(reader.readBoolean());
+                args.setArguments(readMap(reader));
+                arguments = args;
+                break;
+            }
+            case 0x4: {
+                ExchangeDeleteArguments args = new ExchangeDeleteArguments();
+                args.setExchangeName(reader.readString());
+                arguments = args;
+                break;
+            }
+            case 0x5: {
+                QueueDeclareArguments args = new QueueDeclareArguments();
+                args.setQueueName(reader.readString());
+                args.setDurable(reader.readBoolean());
+                args.setExclusive(reader.readBoolean());
+                args.setAutoDelete(reader.readBoolean());
+                args.setArguments(readMap(reader));
+                arguments = args;
+                break;
+            }
+            case 0x6: {
+                QueueDeleteArguments args = new QueueDeleteArguments();
+                args.setQueueName(reader.readString());
+                arguments = args;
+                break;
+            }
+            case 0x7: {
+                QueueBindArguments args = new QueueBindArguments();
+                args.setQueueName(reader.readString());
+                args.setExchangeName(reader.readString());
+                args.setBindingKey(reader.readString());
+                arguments = args;
+                break;
+            }
+            case 0x8: {
+                QueueUnbindArguments args = new QueueUnbindArguments();
+                args.setQueueName(reader.readString());
+                args.setExchangeName(reader.readString());
+                arguments = args;
+                break;
+            }
+            case 0x9:
+                arguments = readPublish(reader);
+                break;
+            case 0xa: {
+                BasicConsumeArguments args = new BasicConsumeArguments();
+                args.setConsumerTag(reader.readString());
+                args.setQueueName(reader.readString());
+                args.setAutoAck(reader.readBoolean());
+                arguments = args;
+                break;
+            }
+            case 0xb: {
+                BasicAckArguments args = new BasicAckArguments();
+                args.setQueueName(reader.readString());
+                args.setMessageId(reader.readString());
+                arguments = args;
+                break;
+            }
+            case 0xd: {
+                int count = reader.readVarInt();
+                if (count < 0 || count > reader.remaining()) {
+                    throw new IOException("[WireCodec] 批量消息的条目数错误! count=" + count);
+                }
+                List<BasicPublishArguments> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    entries.add(readPublish(reader));
+                }
+                BasicPublishBatchArguments args = new BasicPublishBatchArguments();
+                args.setEntries(entries);
+                arguments = args;
+                break;
+            }
+            case 0xe: {
+                BasicQosArguments args = new BasicQosArguments();
+                args.setPrefetchCount(reader.readVarInt());
+                arguments = args;
+                break;
+            }
+            default:
+                throw new IOException("[WireCodec] 未知的 type! type=" + type);
+        }
+        arguments.setRid(rid);
+        arguments.setChannelId(channelId);
+        return arguments;
+    }
+
+    //编码响应，0xc 是服务器推送的消息，0xd 带有每条消息的结果，0xf 是服务器推送的阻塞通知，其余的都是 BasicReturns
+    public static byte[] encodeReturns(int type, BasicReturns returns, Format format) throws IOException {
+        if (format == Format.JAVA) {
+            return BinaryTool.toBytes(returns);
+        }
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeByte(VERSION);
+        writer.writeString(returns.getRid());
+        writer.writeString(returns.getChannelId());
+        writer.writeBoolean(returns.isOk());
+        if (type == 0xc) {
+            SubScribeReturns subScribeReturns = (SubScribeReturns) returns;
+            writer.writeString(subScribeReturns.getConsumerTag());
+            writeProperties(writer, subScribeReturns.getBasicProperties());
+            writer.writeBytes(subScribeReturns.getBody());
+        } else if (type == 0xd) {
+            //每条消息的结果占一个 bit
+            boolean[] results = ((BasicPublishBatchReturns) returns).getResults();
+            writer.writeVarInt(results.length);
+            byte[] bits = new byte[(results.length + 7) / 8];
+            for (int i = 0; i < results.length; i++) {
+                if (results[i]) {
+                    bits[i >> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+            writer.writeRaw(bits, 0, bits.length);
+        } else if (type == 0xf) {
+            ConnectionBlockedReturns blockedReturns = (ConnectionBlockedReturns) returns;
+            writer.writeBoolean(blockedReturns.isBlocked());
+            writer.writeString(blockedReturns.getReason());
+        }
+        return writer.toByteArray();
+    }
+
+    public static BasicReturns decodeReturns(int type, byte[] payload) throws IOException, ClassNotFoundException {
+        if (detect(payload) == Format.JAVA) {
+            return (BasicReturns) BinaryTool.fromBytes(payload);
+        }
+        BinaryReader reader = new BinaryReader(payload);
+        reader.readByte();
+        String rid = reader.readString();
+        String channelId = reader.readString();
+        boolean ok = reader.readBoolean();
+        BasicReturns returns;
+        if (type == 0xc) {
+            SubScribeReturns subScribeReturns = new SubScribeReturns();
+            subScribeReturns.setConsumerTag(reader.readString());
+            subScribeReturns.setBasicProperties(readProperties(reader));
+            subScribeReturns.setBody(reader.readBytes());
+            returns = subScribeReturns;
+        } else if (type == 0xd) {
+            int count = reader.readVarInt();
+            if (count < 0 || (count + 7) / 8 > reader.remaining()) {
+                throw new IOException("[WireCodec] 批量消息的结果数错误! count=" + count);
+            }
+            byte[] bits = reader.readRaw((count + 7) / 8);
+            boolean[] results = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                results[i] = (bits[i >> 3] & (1 << (i & 7))) != 0;
+            }
+            BasicPublishBatchReturns batchReturns = new BasicPublishBatchReturns();
+            batchReturns.setResults(results);
+            returns = batchReturns;
+        } else if (type == 0xf) {
+            ConnectionBlockedReturns blockedReturns = new ConnectionBlockedReturns();
+            blockedReturns.setBlocked(reader.readBoolean());
+            blockedReturns.setReason(reader.readString());
+            returns = blockedReturns;
+        } else {
+            returns = new BasicReturns();
+        }
+        returns.setRid(rid);
+        returns.setChannelId(channelId);
+        returns.setOk(ok);
+        return returns;
+    }
+
+    private static void writePublish(BinaryWriter writer, BasicPublishArguments args) {
+        writer.writeString(args.getExchangeName());
+        writer.writeString(args.getRoutingKey());
+        writeProperties(writer, args.getBasicProperties());
+        writer.writeBytes(args.getBody());
+    }
+
+    private static BasicPublishArguments readPublish(BinaryReader reader) throws IOException {
+        BasicPublishArguments args = new BasicPublishArguments();
+        args.setExchangeName(reader.readString());
+        args.setRoutingKey(reader.readString());
+        args.setBasicProperties(readProperties(reader));
+        args.setBody(reader.readBytes());
+        return args;
+    }
+
+    //第一个字节表示 basicProperties 是否为 null
+    private static void writeProperties(BinaryWriter writer, BasicProperties basicProperties) {
+        if (basicProperties == null) {
+            writer.writeBoolean(false);
+            return;
+        }
+        writer.writeBoolean(true);
+        writer.writeString(basicProperties.getMessageId());
+        writer.writeString(basicProperties.getRoutingKey());
+        writer.writeVarInt(basicProperties.getDeliveryMode());
+    }
+
+    private static BasicProperties readProperties(BinaryReader reader) throws IOException {
+        if (!reader.readBoolean()) {
+            return null;
+        }
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setMessageId(reader.readString());
+        basicProperties.setRoutingKey(reader.readString());
+        basicProperties.setDeliveryMode(reader.readVarInt());
+        return basicProperties;
+    }
+
+    //map 的长度同样写成 size + 1，0 表示 null
+    private static void writeMap(BinaryWriter writer, Map<String, Object> map) throws IOException {
+        if (map == null) {
+            writer.writeVarInt(0);
+            return;
+        }
+        writer.writeVarInt(map.size() + 1);
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            writer.writeString(entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                writer.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                writer.writeByte(TAG_STRING).writeString((String) value);
+            } else if (value instanceof Integer) {
+                writer.writeByte(TAG_INT).writeVarInt((Integer) value);
+            } else if (value instanceof Long) {
+                writer.writeByte(TAG_LONG).writeVarLong((Long) value);
+            } else if (value instanceof Boolean) {
+                writer.writeByte(TAG_BOOLEAN).writeBoolean((Boolean) value);
+            } else if (value instanceof Double) {
+                writer.writeByte(TAG_DOUBLE).writeLong(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof byte[]) {
+                writer.writeByte(TAG_BYTES).writeBytes((byte[]) value);
+            } else {
+                writer.writeByte(TAG_SERIALIZED).writeBytes(BinaryTool.toBytes(value));
+            }
+        }
+    }
+
+    private static Map<String, Object> readMap(BinaryReader reader) throws IOException, ClassNotFoundException {
+        int size = reader.readVarInt() - 1;
+        if (size < 0) {
+            return null;
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = reader.readString();
+            byte tag = reader.readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    map.put(key, null);
+                    break;
+                case TAG_STRING:
+                    map.put(key, reader.readString());
+                    break;
+                case TAG_INT:
+                    map.put(key, reader.readVarInt());
+                    break;
+                case TAG_LONG:
+                    map.put(key, reader.readVarLong());
+                    break;
+                case TAG_BOOLEAN:
+                    map.put(key, reader.readBoolean());
+                    break;
+                case TAG_DOUBLE:
+                    map.put(key, Double.longBitsToDouble(reader.readLong()));
+                    break;
+                case TAG_BYTES:
+                    map.put(key, reader.readBytes());
+                    break;
+                case TAG_SERIALIZED:
+                    map.put(key, BinaryTool.fromBytes(reader.readBytes()));
+                    break;
+                default:
+                    throw new IOException("[WireCodec] 未知的 value 类型! tag=" + tag);
+            }
+        }
+        return map;
+    }
+
+    private static ExchangeType exchangeType(byte type) throws IOException {
+        if (type == -1) {
+            return null;
+        }
+        for (ExchangeType exchangeType : ExchangeType.values()) {
+            if (exchangeType.getType() == type) {
+                return exchangeType;
+            }
+        }
+        throw new IOException("[WireCodec] 未知的交换机类型! type=" + type);
+    }
+}
@@ -7,23 +7,30 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
 @Slf4j
 @Data
 public class Channel {
     private String channelId;
     //当前 channel 属于哪个 Connection
     private Connection connection;
-    //储存客户端收到服务器的响应
-    private ConcurrentHashMap<String, BasicReturns> basicReturnsMap = new ConcurrentHashMap<>();
     //确定当前Channel的回调函数
     private Consumer consumer = null;
+    //限制同时等待确认的消息数量，窗口满了之后 basicPublishAsync 会阻塞
+    private final Semaphore publishWindow;
+    private final int maxOutstandingPublishes;
 
     public Channel(String chanelId, Connection connection) {
         this.channelId = chanelId;
         this.connection = connection;
+        this.maxOutstandingPublishes = connection.getMaxOutstandingPublishes();
+        this.publishWindow = new Semaphore(maxOutstandingPublishes);
     }
 
     // 在这个方法中, 和服务器进行交互, 告知服务器, 此处客户端创建了新的 channel 了.
@@ -32,49 +39,39 @@ public class Channel {
         BasicArguments basicArguments = new BasicArguments();
         basicArguments.setChannelId(channelId);
         basicArguments.setRid(generateRid());
-        byte[] payload = BinaryTool.toBytes(basicArguments);
+        byte[] payload = connection.encode(0x1, basicArguments);
 
         Request request = new Request();
         request.setType(0x1);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        // 构造出完整请求之后, 就可以发送这个请求了.
-        connection.writeRequest(request);
-        // 等待服务器的响应
-        BasicReturns basicReturns = waitResult(basicArguments.getRid());
+        // 构造出完整请求之后, 就可以发送这个请求了, 然后等待服务器的响应
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, basicArguments.getRid()));
         return basicReturns.isOk();
     }
 
-    private BasicReturns waitResult(String rid) {
-        BasicReturns basicReturns = null;
-        while((basicReturns = basicReturnsMap.get(rid)) == null){
-            //查询为空进行阻塞等待
-            synchronized (this) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    log.error(e.getMessage());
-                }
+    // 等待服务器的响应, 响应由 Connection 的读线程直接完成对应的 future, 只会唤醒等待这一个请求的线程
+    private BasicReturns waitResult(CompletableFuture<BasicReturns> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[Channel] 等待响应时被中断!");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new IOException("[Channel] 等待服务器响应超时! channelId=" + channelId);
             }
-
-        }
-        //读取成功后移除
-        basicReturnsMap.remove(rid);
-        return basicReturns;
-    }
-
-    public void putReturns(BasicReturns basicReturns) {
-        basicReturnsMap.put(basicReturns.getRid(), basicReturns);
-        synchronized (this) {
-            // 当前也不知道有多少个线程在等待上述的这个响应.
-            // 把所有的等待的线程都唤醒.
-            notifyAll();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
         }
     }
 
     private String generateRid() {
-        return "M-" + UUID.randomUUID();
+        return connection.nextRid();
     }
 
     // 关闭 channel, 给服务器发送一个 type = 0x2 的请求
@@ -82,15 +79,14 @@ public class Channel {
         BasicArguments basicArguments = new BasicArguments();
         basicArguments.setRid(generateRid());
         basicArguments.setChannelId(channelId);
-        byte[] payload = BinaryTool.toBytes(basicArguments);
+        byte[] payload = connection.encode(0x2, basicArguments);
 
         Request request = new Request();
         request.setType(0x2);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(basicArguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, basicArguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -105,15 +101,14 @@ public class Channel {
         exchangeDeclareArguments.setDurable(durable);
         exchangeDeclareArguments.setAutoDelete(autoDelete);
         exchangeDeclareArguments.setArguments(arguments);
-        byte[] payload = BinaryTool.toBytes(exchangeDeclareArguments);
+        byte[] payload = connection.encode(0x3, exchangeDeclareArguments);
 
         Request request = new Request();
         request.setType(0x3);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(exchangeDeclareArguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, exchangeDeclareArguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -123,15 +118,14 @@ public class Channel {
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
         arguments.setExchangeName(exchangeName);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        byte[] payload = connection.encode(0x4, arguments);
 
         Request request = new Request();
         request.setType(0x4);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -146,15 +140,14 @@ public class Channel {
         queueDeclareArguments.setExclusive(exclusive);
         queueDeclareArguments.setAutoDelete(autoDelete);
         queueDeclareArguments.setArguments(arguments);
-        byte[] payload = BinaryTool.toBytes(queueDeclareArguments);
+        byte[] payload = connection.encode(0x5, queueDeclareArguments);
 
         Request request = new Request();
         request.setType(0x5);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(queueDeclareArguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, queueDeclareArguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -164,15 +157,14 @@ public class Channel {
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        byte[] payload = connection.encode(0x6, arguments);
 
         Request request = new Request();
         request.setType(0x6);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -184,15 +176,14 @@ public class Channel {
         arguments.setQueueName(queueName);
         arguments.setExchangeName(exchangeName);
         arguments.setBindingKey(bindingKey);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        byte[] payload = connection.encode(0x7, arguments);
 
         Request request = new Request();
         request.setType(0x7);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -203,15 +194,14 @@ public class Channel {
         arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setExchangeName(exchangeName);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        byte[] payload = connection.encode(0x8, arguments);
 
         Request request = new Request();
         request.setType(0x8);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -224,15 +214,91 @@ public class Channel {
         arguments.setRoutingKey(routingKey);
         arguments.setBasicProperties(basicProperties);
         arguments.setBody(body);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        byte[] payload = connection.encode(0x9, arguments);
+
+        Request request = new Request();
+        request.setType(0x9);
+        request.setLength(payload.length);
+        request.setPayload(payload);
+
+        // 服务器阻塞期间不发送消息
+        connection.awaitUnblocked();
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
+        return basicReturns.isOk();
+    }
+
+    // 异步发送消息, 不等待服务器的响应, 返回的 future 在服务器确认之后完成
+    // 同时等待确认的消息达到 maxOutstandingPublishes 之后, 这个方法会阻塞到有消息被确认
+    // 服务器阻塞了这个连接的时候, 这个方法会阻塞到服务器解除阻塞
+    public CompletableFuture<Boolean> basicPublishAsync(String exchangeName, String routingKey, BasicProperties basicProperties,
+                                                        byte[] body) throws IOException, InterruptedException {
+        BasicPublishArguments arguments = new BasicPublishArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setExchangeName(exchangeName);
+        arguments.setRoutingKey(routingKey);
+        arguments.setBasicProperties(basicProperties);
+        arguments.setBody(body);
+        byte[] payload = connection.encode(0x9, arguments);
 
         Request request = new Request();
         request.setType(0x9);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
+        connection.awaitUnblocked();
+        publishWindow.acquire();
+        CompletableFuture<BasicReturns> future;
+        try {
+            future = connection.sendRequest(request, arguments.getRid());
+        } catch (IOException e) {
+            publishWindow.release();
+            throw e;
+        }
+        future.whenComplete((basicReturns, e) -> publishWindow.release());
+        return future.thenApply(BasicReturns::isOk);
+    }
+
+    // 批量发送消息, 所有条目放在一个请求中, 服务器一次处理完之后只回复一个响应
+    // 每个条目只需要设置 exchangeName、routingKey、basicProperties 和 body, 返回的数组和 entries 一一对应
+    public boolean[] basicPublishBatch(List<BasicPublishArguments> entries) throws IOException {
+        BasicPublishBatchArguments arguments = new BasicPublishBatchArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setEntries(entries);
+        byte[] payload = connection.encode(0xd, arguments);
+
+        Request request = new Request();
+        request.setType(0xd);
+        request.setLength(payload.length);
+        request.setPayload(payload);
+
+        connection.awaitUnblocked();
+        BasicPublishBatchReturns basicReturns = (BasicPublishBatchReturns) waitResult(connection.sendRequest(request, arguments.getRid()));
+        return basicReturns.getResults();
+    }
+
+    // 等待之前异步发送的消息全部被服务器确认
+    public void waitForConfirms() throws InterruptedException {
+        publishWindow.acquire(maxOutstandingPublishes);
+        publishWindow.release(maxOutstandingPublishes);
+    }
+
+    // 设置预取数量: 推送给这个 channel 上的消费者但还没有确认的消息最多 prefetchCount 条, 0 表示不限制
+    // 需要在 basicConsume 之前调用, 只对手动确认的消费者生效
+    public boolean basicQos(int prefetchCount) throws IOException {
+        BasicQosArguments arguments = new BasicQosArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setPrefetchCount(prefetchCount);
+        byte[] payload = connection.encode(0xe, arguments);
+
+        Request request = new Request();
+        request.setType(0xe);
+        request.setLength(payload.length);
+        request.setPayload(payload);
+
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -250,15 +316,14 @@ public class Channel {
         arguments.setConsumerTag(channelId);  // 此处 consumerTag 也使用 channelId 来表示了.
         arguments.setQueueName(queueName);
         arguments.setAutoAck(autoAck);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        byte[] payload = connection.encode(0xa, arguments);
 
         Request request = new Request();
         request.setType(0xa);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
         return basicReturns.isOk();
     }
 
@@ -269,15 +334,14 @@ public class Channel {
         arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setMessageId(messageId);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        byte[] payload = connection.encode(0xb, arguments);
 
         Request request = new Request();
         request.setType(0xb);
         request.setLength(payload.length);
         request.setPayload(payload);
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
+        BasicReturns basicReturns = waitResult(connection.sendRequest(request, arguments.getRid()));
         return basicReturns.isOk();
     }
 }
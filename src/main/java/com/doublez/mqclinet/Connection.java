@@ -9,9 +9,12 @@ import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Data
@@ -28,13 +31,33 @@ public class Connection {
     private DataOutputStream dataOutputStream;
 
     private ExecutorService callbackPool = null;
+    //请求 payload 的编码格式，服务器会用同样的格式回复
+    private WireCodec.Format wireFormat = WireCodec.Format.BINARY;
+    //每个 channel 最多同时等待确认的异步消息数量
+    private int maxOutstandingPublishes = 1024;
+    //等待服务器响应的超时时间
+    private long requestTimeoutMillis = 30000;
+    //请求 id 在连接内递增，用十进制字符串表示
+    private AtomicLong ridGenerator = new AtomicLong();
+    //所有等待响应的请求, key: rid，读线程收到响应之后直接完成对应的 future
+    private ConcurrentHashMap<String, CompletableFuture<BasicReturns>> pendingRequests = new ConcurrentHashMap<>();
+    //服务器内存或磁盘超过水位线时会阻塞这个连接，阻塞期间发送消息的线程在 awaitUnblocked 中等待
+    private volatile boolean blocked = false;
+    private volatile String blockedReason = "";
+    private final Object blockedLock = new Object();
 
     public Connection(String host, int port) throws IOException {
+        this(host, port, WireCodec.Format.BINARY);
+    }
+
+    public Connection(String host, int port, WireCodec.Format wireFormat) throws IOException {
+        this.wireFormat = wireFormat;
         socket  = new Socket(host,port);
         inputStream = socket.getInputStream();
         outputStream = socket.getOutputStream();
         dataInputStream = new DataInputStream(inputStream);
-        dataOutputStream = new DataOutputStream(outputStream);
+        //整个请求先写进缓冲区，flush 的时候一次写出
+        dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
 
         callbackPool = Executors.newFixedThreadPool(4);
         //扫描线程
@@ -46,8 +69,10 @@ public class Connection {
                 }
             }catch (SocketException e){
                 log.info("socket正常关闭！");
+                failPending(e);
             } catch (IOException | ClassNotFoundException | MqException e) {
                 log.error("socket 连接异常断开,e:{}",e.getMessage());
+                failPending(e);
             }
         });
 
@@ -58,6 +83,9 @@ public class Connection {
         // 关闭 Connection 释放上述资源
         try {
             callbackPool.shutdownNow();
+            //唤醒等待解除阻塞的线程, 它们接下来的写请求会失败
+            setBlocked(false, "");
+            failPending(new IOException("[Connection] 连接已经关闭!"));
             channelMap.clear();
             inputStream.close();
             outputStream.close();
@@ -67,11 +95,60 @@ public class Connection {
         }
     }
 
+    //连接断开时, 还没有收到响应的请求全部以异常结束
+    private void failPending(Exception cause) {
+        for (String rid : pendingRequests.keySet()) {
+            CompletableFuture<BasicReturns> future = pendingRequests.remove(rid);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private void setBlocked(boolean blocked, String reason) {
+        synchronized (blockedLock) {
+            this.blocked = blocked;
+            this.blockedReason = reason;
+            blockedLock.notifyAll();
+        }
+    }
+
+    //连接被服务器阻塞时等待解除阻塞，超过 requestTimeoutMillis 抛出异常
+    public void awaitUnblocked() throws IOException {
+        if (!blocked) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + requestTimeoutMillis;
+        synchronized (blockedLock) {
+            while (blocked) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("[Connection] 等待服务器解除阻塞超时! reason=" + blockedReason);
+                }
+                try {
+                    blockedLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("[Connection] 等待服务器解除阻塞时被中断!");
+                }
+            }
+        }
+    }
+
     // 使用这个方法来分别处理, 当前的响应是一个针对控制请求的响应, 还是服务器推送的消息.
     private void dispatchResponse(Response response) throws IOException, ClassNotFoundException, MqException {
-        if (response.getType() == 0xc) {
+        if (response.getType() == 0xf) {
+            // 服务器通知连接被阻塞或者解除阻塞
+            ConnectionBlockedReturns blockedReturns = (ConnectionBlockedReturns) WireCodec.decodeReturns(response.getType(), response.getPayload());
+            if (blockedReturns.isBlocked()) {
+                log.warn("[Connection] 服务器阻塞了发送消息! reason={}", blockedReturns.getReason());
+            } else {
+                log.info("[Connection] 服务器解除了阻塞");
+            }
+            setBlocked(blockedReturns.isBlocked(), blockedReturns.getReason());
+        } else if (response.getType() == 0xc) {
             // 服务器推送来的消息数据
-            SubScribeReturns subScribeReturns = (SubScribeReturns) BinaryTool.fromBytes(response.getPayload());
+            SubScribeReturns subScribeReturns = (SubScribeReturns) WireCodec.decodeReturns(response.getType(), response.getPayload());
             // 根据 channelId 找到对应的 channel 对象
             Channel channel = channelMap.get(subScribeReturns.getChannelId());
             if (channel == null) {
@@ -88,17 +165,45 @@ public class Connection {
             });
         } else {
             // 当前响应是针对刚才的控制请求的响应
-            BasicReturns basicReturns = (BasicReturns) BinaryTool.fromBytes(response.getPayload());
-            // 把这个结果放到对应的 channel 的 hash 表中.
-            Channel channel = channelMap.get(basicReturns.getChannelId());
-            if (channel == null) {
-                throw new MqException("[Connection] 该消息对应的 channel 在客户端中不存在! channelId=" + basicReturns.getChannelId());
+            BasicReturns basicReturns = WireCodec.decodeReturns(response.getType(), response.getPayload());
+            // 根据 rid 找到等待的请求, 直接完成它的 future
+            CompletableFuture<BasicReturns> future = pendingRequests.remove(basicReturns.getRid());
+            if (future == null) {
+                // 请求已经超时了
+                log.warn("[Connection] 收到的响应没有对应的请求! rid={}, channelId={}", basicReturns.getRid(), basicReturns.getChannelId());
+                return;
             }
-            channel.putReturns(basicReturns);
+            future.complete(basicReturns);
+        }
+    }
+
+    //按照当前连接的编码格式编码请求参数
+    public byte[] encode(int type, BasicArguments arguments) throws IOException {
+        return WireCodec.encodeArguments(type, arguments, wireFormat);
+    }
+
+    public String nextRid() {
+        return Long.toString(ridGenerator.incrementAndGet());
+    }
+
+    //发送请求，返回的 future 在收到响应之后完成，超过 requestTimeoutMillis 没有响应以 TimeoutException 结束
+    public CompletableFuture<BasicReturns> sendRequest(Request request, String rid) throws IOException {
+        CompletableFuture<BasicReturns> future = new CompletableFuture<>();
+        // 必须在发送之前放进去, 响应可能在 writeRequest 返回之前就到了
+        pendingRequests.put(rid, future);
+        try {
+            writeRequest(request);
+        } catch (IOException e) {
+            pendingRequests.remove(rid);
+            throw e;
         }
+        future.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((basicReturns, e) -> pendingRequests.remove(rid, future));
+        return future;
     }
 
-    public void writeRequest(Request request) throws IOException {
+    //多个 channel 共用一个连接，写请求需要加锁，避免两个请求的数据交错
+    public synchronized void writeRequest(Request request) throws IOException {
         dataOutputStream.writeInt(request.getType());
         dataOutputStream.writeInt(request.getLength());
         dataOutputStream.write(request.getPayload());
@@ -111,10 +216,8 @@ public class Connection {
         response.setType(dataInputStream.readInt());
         response.setLength(dataInputStream.readInt());
         byte[] payload = new byte[response.getLength()];
-        int read = dataInputStream.read(payload);
-        if(read != response.getLength()){
-            throw new IOException("读取响应格式不正确");
-        }
+        //一个响应可能分成多次到达，需要读满
+        dataInputStream.readFully(payload);
         response.setPayload(payload);
         log.info("收到响应！ type:{}, length:{}",response.getType(),response.getLength());
         return response;
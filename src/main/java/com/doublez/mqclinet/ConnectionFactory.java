@@ -1,5 +1,6 @@
 package com.doublez.mqclinet;
 
+import com.doublez.common.WireCodec;
 import lombok.Data;
 
 import java.io.IOException;
@@ -10,9 +11,17 @@ public class ConnectionFactory {
     private int port;
 
     private String virtualHostName;
+    //默认使用二进制编码，连接只支持 Java 序列化的旧服务器时设置成 JAVA
+    private WireCodec.Format wireFormat = WireCodec.Format.BINARY;
+    //每个 channel 最多同时等待确认的异步消息数量
+    private int maxOutstandingPublishes = 1024;
+    //等待服务器响应的超时时间
+    private long requestTimeoutMillis = 30000;
 
     public Connection newConnection() throws IOException {
-        Connection con = new Connection(host,port);
+        Connection con = new Connection(host,port,wireFormat);
+        con.setMaxOutstandingPublishes(maxOutstandingPublishes);
+        con.setRequestTimeoutMillis(requestTimeoutMillis);
         return con;
     }
 }
@@ -5,151 +5,322 @@ import com.doublez.mqserver.core.BasicProperties;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 /**
  * 这个 BrokerServer 就是咱们 消息队列 本体服务器.
  * 本质上就是一个 TCP 的服务器.
+ * 使用一个 selector 线程处理所有连接的读写，连接空闲的时候不占用线程；
+ * 解析出来的请求交给线程池处理，处理完的响应放进连接的写队列，由 selector 线程写回
+ * 内存或磁盘超过水位线时，暂停读取发送过消息的连接，并推送阻塞通知（0xf），恢复之后再推送一次解除阻塞的通知
  */
 @Slf4j
 public class BrokerServer {
-    //socket
-    private ServerSocket serverSocket = null;
+    //监听端口
+    private ServerSocketChannel serverChannel = null;
+    private Selector selector = null;
     //virtualHost,当前只考虑有一个虚拟主机
     private VirtualHost virtualHost = new VirtualHost("default");
-    //key: channelId, value: socket对象
-    private ConcurrentHashMap<String, Socket> sessions = new ConcurrentHashMap<>();
-    //创建线程池
+    //key: channelId, value: channel 所在的连接
+    private ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<>();
+    //key: channelId, value: 通过 basicQos 设置的预取数量
+    private ConcurrentHashMap<String, Integer> prefetchCounts = new ConcurrentHashMap<>();
+    //有数据要写出的连接，由 selector 线程注册可写事件
+    private final Queue<ClientSession> pendingWrites = new ConcurrentLinkedQueue<>();
+    //检查水位线的间隔
+    private static final long RESOURCE_CHECK_INTERVAL_MILLIS = 100;
+    private final ResourceMonitor resourceMonitor = ResourceMonitor.fromEnvironment();
+    private ScheduledExecutorService resourceChecker = null;
+    //超过水位线的原因，null 表示没有阻塞
+    private volatile String blockedReason = null;
+    //水位线状态变化之后，由 selector 线程更新所有连接
+    private volatile boolean blockedChanged = false;
+    //处理请求的线程池
     private ExecutorService executorService = null;
     //控制是否持续运行
     private volatile boolean runnable = true;
+    //selector 线程退出之后才算停止完成
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     public BrokerServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
     }
 
     public void start() throws IOException {
         log.info("BrokerServer started");
         executorService = Executors.newCachedThreadPool();
+        resourceChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "resource-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        resourceChecker.scheduleWithFixedDelay(this::checkResources, 0, RESOURCE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
         try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             while(runnable) {
-                Socket clientSocket = serverSocket.accept();
-                executorService.submit(() -> {
-                    progressConnection(clientSocket);
-                });
+                selector.select();
+                registerPendingWrites();
+                if(blockedChanged) {
+                    blockedChanged = false;
+                    applyBlocked();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while(iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept();
+                    } else {
+                        progressConnection((ClientSession) key.attachment(), key);
+                    }
+                }
             }
-        } catch (SocketException e) {
             log.info("服务器停止运行");
+        } finally {
+            for(SelectionKey key : selector.keys()) {
+                if(key.attachment() instanceof ClientSession) {
+                    ((ClientSession) key.attachment()).close();
+                }
+            }
+            selector.close();
+            serverChannel.close();
+            stopped.countDown();
         }
     }
 
     public void stop() throws IOException {
         runnable = false;
         //销毁线程
-        executorService.shutdown();
-        serverSocket.close();
-    }
-    //处理客户端的连接
-    private void progressConnection(Socket clientSocket) {
-        try(InputStream inputStream = clientSocket.getInputStream();
-            OutputStream outputStream = clientSocket.getOutputStream()) {
-            try(DataInputStream dataInputStream = new DataInputStream(inputStream);
-                DataOutputStream dataOutputStream = new DataOutputStream(outputStream)) {
-
-                while(true){
-                    //1. 读取请求并解析
-                    Request request  = readRequest(dataInputStream);
-                    //2. 处理并计算响应
-                    Response response = process(request,clientSocket);
-                    //3. 写回响应给客户端
-                    writeResponse(dataOutputStream,response);
+        if(executorService != null) {
+            executorService.shutdown();
+        }
+        if(resourceChecker != null) {
+            resourceChecker.shutdownNow();
+        }
+        selector.wakeup();
+        //等待 selector 线程释放端口
+        try {
+            if(!stopped.await(5, TimeUnit.SECONDS)) {
+                log.error("[BrokerServer] 等待服务器停止超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //连接都已经关闭，不会再有新的请求，关闭虚拟主机让消息落盘并写入检查点
+        virtualHost.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel clientChannel = serverChannel.accept();
+        if(clientChannel == null) {
+            return;
+        }
+        clientChannel.configureBlocking(false);
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        ClientSession session = new ClientSession(this, clientChannel, executorService);
+        session.setKey(clientChannel.register(selector, SelectionKey.OP_READ, session));
+        log.info("connection accepted! 客户端地址: {}", clientChannel.getRemoteAddress());
+    }
+
+    //处理客户端连接上的读写事件
+    private void progressConnection(ClientSession session, SelectionKey key) {
+        try {
+            if(key.isReadable()) {
+                //1. 读取请求并解析，解析出的请求交给线程池处理
+                session.read();
+                //超过水位线之后才开始发送消息的连接
+                if(blockedReason != null && session.isPublisher()) {
+                    block(session, blockedReason);
                 }
             }
-        }catch (EOFException |SocketException e){
+            if(key.isValid() && key.isWritable()) {
+                //2. 写回响应给客户端
+                session.write();
+            }
+        } catch (EOFException e) {
             //正常退出
-            log.info("connection closed! 客户端地址: {}, 端口: {}"
-                    ,clientSocket.getInetAddress(),clientSocket.getPort());
+            log.info("connection closed! 客户端地址: {}", remoteAddress(session));
+            closeSession(session);
         } catch (IOException | ClassNotFoundException | MqException e) {
             log.error("connection 异常退出，e:{}",e.getMessage());
-            e.printStackTrace();
-        }finally {
+            closeSession(session);
+        }
+    }
+
+    //由 ClientSession 在 selector 线程中调用，payload 只在这次调用期间有效，所以先在这里解码
+    void onFrame(ClientSession session, int type, ByteBuffer payload) throws IOException, ClassNotFoundException {
+        WireCodec.Format format = WireCodec.detect(payload);
+        BasicArguments basicArguments = WireCodec.decodeArguments(type, payload);
+        int length = payload.remaining();
+        if (type == 0x9 || type == 0xd) {
+            session.markPublisher(format);
+        }
+        session.execute(() -> {
             try {
-                clientSocket.close();
-                clearClosedSession(clientSocket);
-            } catch (IOException e) {
-                log.error("connection close error,e: {}",e.getMessage());
+                //2. 处理请求，发送消息的请求在消息落盘之后才会完成
+                CompletableFuture<? extends BasicReturns> result;
+                if (type == 0xd) {
+                    result = publishBatch(length, (BasicPublishBatchArguments) basicArguments);
+                } else {
+                    result = process(type, length, basicArguments, format, session)
+                            .thenApply(ok -> returns(new BasicReturns(), basicArguments, ok));
+                }
+                //3. 写回响应给客户端
+                result.thenAccept(basicReturns -> reply(session, type, basicReturns, format));
+            } catch (IOException | MqException e) {
+                log.error("connection 异常退出，e:{}",e.getMessage());
+                closeSession(session);
+            }
+        });
+    }
+
+    //可以在任意线程调用，通知 selector 线程这个连接有数据要写
+    void requestWrite(ClientSession session) {
+        pendingWrites.add(session);
+        selector.wakeup();
+    }
+
+    private void registerPendingWrites() {
+        ClientSession session;
+        while((session = pendingWrites.poll()) != null) {
+            session.enableWrite();
+        }
+    }
+
+    //定时检查水位线，状态变化时通知 selector 线程
+    private void checkResources() {
+        String reason;
+        try {
+            reason = resourceMonitor.check();
+        } catch (RuntimeException e) {
+            log.error("[BrokerServer] 检查水位线失败, e:{}", e.getMessage());
+            return;
+        }
+        if((reason == null) == (blockedReason == null)) {
+            return;
+        }
+        if(reason != null) {
+            log.warn("[BrokerServer] 阻塞发送消息的连接, reason:{}", reason);
+        } else {
+            log.info("[BrokerServer] 解除阻塞发送消息的连接");
+        }
+        blockedReason = reason;
+        blockedChanged = true;
+        selector.wakeup();
+    }
+
+    //selector 线程调用：按照当前的水位线状态暂停或者恢复所有发送过消息的连接
+    private void applyBlocked() {
+        String reason = blockedReason;
+        for(SelectionKey key : selector.keys()) {
+            if(!(key.attachment() instanceof ClientSession)) {
+                continue;
+            }
+            ClientSession session = (ClientSession) key.attachment();
+            if(!session.isPublisher() || session.isClosed()) {
+                continue;
+            }
+            if(reason != null) {
+                block(session, reason);
+            } else if(session.resumeRead()) {
+                notifyBlocked(session, false, "");
             }
         }
     }
 
-    private void writeResponse(DataOutputStream dataOutputStream, Response response) throws IOException {
-        dataOutputStream.writeInt(response.getType());
-        dataOutputStream.writeInt(response.getLength());
-        dataOutputStream.write(response.getPayload());
-        //刷新缓冲区
-        dataOutputStream.flush();
+    private void block(ClientSession session, String reason) {
+        if(session.pauseRead()) {
+            notifyBlocked(session, true, reason);
+        }
+    }
+
+    // 推送阻塞通知, 0xf 没有对应的请求, rid 和 channelId 都为空
+    private void notifyBlocked(ClientSession session, boolean blocked, String reason) {
+        ConnectionBlockedReturns blockedReturns = new ConnectionBlockedReturns();
+        blockedReturns.setRid("");
+        blockedReturns.setChannelId("");
+        blockedReturns.setOk(true);
+        blockedReturns.setBlocked(blocked);
+        blockedReturns.setReason(reason);
+        reply(session, 0xf, blockedReturns, session.getPublishFormat());
     }
 
-    private Response process(Request request, Socket clientSocket) throws IOException, ClassNotFoundException, MqException {
-        // 1. 把 request 中的 payload 做一个初步的解析.
-        BasicArguments basicArguments = (BasicArguments) BinaryTool.fromBytes(request.getPayload());
+    private CompletableFuture<Boolean> process(int type, int length, BasicArguments basicArguments, WireCodec.Format format,
+                                               ClientSession session) throws IOException, MqException {
+        // 1. payload 已经在 selector 线程中解析好了. 响应使用和请求相同的编码格式
         System.out.println("[Request] rid=" + basicArguments.getRid() + ", channelId=" + basicArguments.getChannelId()
-                + ", type=" + request.getType() + ", length=" + request.getLength());
+                + ", type=" + type + ", length=" + length);
         // 2. 根据 type 的值, 来进一步区分接下来这次请求要干啥.
         boolean ok = true;
-        if (request.getType() == 0x1) {
+        if (type == 0x1) {
             // 创建 channel
-            sessions.put(basicArguments.getChannelId(), clientSocket);
+            sessions.put(basicArguments.getChannelId(), session);
             log.info("[BrokerServer] 创建 channel 完成! channelId= {}" , basicArguments.getChannelId());
-        } else if (request.getType() == 0x2) {
+        } else if (type == 0x2) {
             // 销毁 channel
             sessions.remove(basicArguments.getChannelId());
+            prefetchCounts.remove(basicArguments.getChannelId());
             System.out.println("[BrokerServer] 销毁 channel 完成! channelId=" + basicArguments.getChannelId());
-        } else if (request.getType() == 0x3) {
+        } else if (type == 0x3) {
             // 创建交换机. 此时 payload 就是 ExchangeDeclareArguments 对象了.
             ExchangeDeclareArguments arguments = (ExchangeDeclareArguments) basicArguments;
             ok = virtualHost.exchangeDeclare(arguments.getExchangeName(), arguments.getExchangeType(),
                     arguments.isDurable(), arguments.isAutoDelete(), arguments.getArguments());
-        } else if (request.getType() == 0x4) {
+        } else if (type == 0x4) {
             ExchangeDeleteArguments arguments = (ExchangeDeleteArguments) basicArguments;
             ok = virtualHost.exchangeDelete(arguments.getExchangeName());
-        } else if (request.getType() == 0x5) {
+        } else if (type == 0x5) {
             QueueDeclareArguments arguments = (QueueDeclareArguments) basicArguments;
             ok = virtualHost.queueDeclare(arguments.getQueueName(), arguments.isDurable(),
                     arguments.isExclusive(), arguments.isAutoDelete(), arguments.getArguments());
-        } else if (request.getType() == 0x6) {
+        } else if (type == 0x6) {
             QueueDeleteArguments arguments = (QueueDeleteArguments) basicArguments;
             ok = virtualHost.queueDelete((arguments.getQueueName()));
-        } else if (request.getType() == 0x7) {
+        } else if (type == 0x7) {
             QueueBindArguments arguments = (QueueBindArguments) basicArguments;
             ok = virtualHost.queueBind(arguments.getQueueName(), arguments.getExchangeName(), arguments.getBindingKey());
-        } else if (request.getType() == 0x8) {
+        } else if (type == 0x8) {
             QueueUnbindArguments arguments = (QueueUnbindArguments) basicArguments;
             ok = virtualHost.queueUnbind(arguments.getQueueName(), arguments.getExchangeName());
-        } else if (request.getType() == 0x9) {
+        } else if (type == 0x9) {
             BasicPublishArguments arguments = (BasicPublishArguments) basicArguments;
-            ok = virtualHost.basicPublish(arguments.getExchangeName(), arguments.getRoutingKey(),
+            // 不在这里等待消息落盘, 同一个连接上后面的请求可以继续处理, 客户端可以连续发送多条消息
+            return virtualHost.basicPublishAsync(arguments.getExchangeName(), arguments.getRoutingKey(),
                     arguments.getBasicProperties(), arguments.getBody());
-        } else if (request.getType() == 0xa) {
+        } else if (type == 0xa) {
             BasicConsumeArguments arguments = (BasicConsumeArguments) basicArguments;
             ok = virtualHost.basicConsume(arguments.getConsumerTag(), arguments.getQueueName(), arguments.isAutoAck(),
-                    new Consumer() {
+                    prefetchCounts.getOrDefault(arguments.getChannelId(), 0), new Consumer() {
                         // 这个回调函数要做的工作, 就是把服务器收到的消息可以直接推送回对应的消费者客户端
                         @Override
                         public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) throws MqException, IOException {
                             // 先知道当前这个收到的消息, 要发给哪个客户端.
                             // 此处 consumerTag 其实是 channelId. 根据 channelId 去 sessions 中查询, 就可以得到对应的
                             // socket 对象了, 从而可以往里面发送数据了
-                            // 1. 根据 channelId 找到 socket 对象
-                            Socket clientSocket = sessions.get(consumerTag);
-                            if (clientSocket == null || clientSocket.isClosed()) {
+                            // 1. 根据 channelId 找到连接
+                            ClientSession clientSession = sessions.get(consumerTag);
+                            if (clientSession == null || clientSession.isClosed()) {
                                 throw new MqException("[BrokerServer] 订阅消息的客户端已经关闭!");
                             }
                             // 2. 构造响应数据
@@ -160,67 +331,93 @@ public class BrokerServer {
                             subScribeReturns.setConsumerTag(consumerTag);
                             subScribeReturns.setBasicProperties(basicProperties);
                             subScribeReturns.setBody(body);
-                            byte[] payload = BinaryTool.toBytes(subScribeReturns);
-                            Response response = new Response();
-                            // 0xc 表示服务器给消费者客户端推送的消息数据.
-                            response.setType(0xc);
-                            // response 的 payload 就是一个 SubScribeReturns
-                            response.setLength(payload.length);
-                            response.setPayload(payload);
-                            // 3. 把数据写回给客户端.
-                            //    注意! 此处的 dataOutputStream 这个对象不能 close !!!
-                            //    如果 把 dataOutputStream 关闭, 就会直接把 clientSocket 里的 outputStream 也关了.
-                            //    此时就无法继续往 socket 中写入后续数据了.
-                            DataOutputStream dataOutputStream = new DataOutputStream(clientSocket.getOutputStream());
-                            writeResponse(dataOutputStream, response);
+                            byte[] payload = WireCodec.encodeReturns(0xc, subScribeReturns, format);
+                            // 3. 把数据放进连接的写队列, 0xc 表示服务器给消费者客户端推送的消息数据.
+                            //    由 selector 线程统一写出, 不会和其他线程写的响应交错
+                            clientSession.send(0xc, payload);
                         }
                     });
-        } else if (request.getType() == 0xb) {
+        } else if (type == 0xb) {
             // 调用 basicAck 确认消息.
             BasicAckArguments arguments = (BasicAckArguments) basicArguments;
             ok = virtualHost.basicAck(arguments.getQueueName(), arguments.getMessageId());
+        } else if (type == 0xe) {
+            // 设置 channel 的预取数量, 对之后在这个 channel 上订阅的消费者生效
+            BasicQosArguments arguments = (BasicQosArguments) basicArguments;
+            if (arguments.getPrefetchCount() < 0) {
+                ok = false;
+            } else {
+                prefetchCounts.put(arguments.getChannelId(), arguments.getPrefetchCount());
+            }
         } else {
             // 当前的 type 是非法的.
-            throw new MqException("[BrokerServer] 未知的 type! type=" + request.getType());
+            throw new MqException("[BrokerServer] 未知的 type! type=" + type);
         }
-        // 3. 构造响应
-        BasicReturns basicReturns = new BasicReturns();
+        return CompletableFuture.completedFuture(ok);
+    }
+
+    // 批量发送消息, 所有条目一起路由, 同一个队列的持久化消息一次写入, 响应中带有每条消息的结果
+    private CompletableFuture<BasicPublishBatchReturns> publishBatch(int length, BasicPublishBatchArguments arguments) {
+        log.debug("[Request] rid={}, channelId={}, type=0xd, entries={}, length={}",
+                arguments.getRid(), arguments.getChannelId(), arguments.getEntries().size(), length);
+        return virtualHost.basicPublishBatchAsync(arguments.getEntries()).thenApply(results -> {
+            boolean ok = true;
+            for (boolean result : results) {
+                ok &= result;
+            }
+            BasicPublishBatchReturns batchReturns = returns(new BasicPublishBatchReturns(), arguments, ok);
+            batchReturns.setResults(results);
+            return batchReturns;
+        });
+    }
+
+    private <T extends BasicReturns> T returns(T basicReturns, BasicArguments basicArguments, boolean ok) {
         basicReturns.setChannelId(basicArguments.getChannelId());
         basicReturns.setRid(basicArguments.getRid());
         basicReturns.setOk(ok);
-        byte[] payload = BinaryTool.toBytes(basicReturns);
-        Response response = new Response();
-        response.setType(request.getType());
-        response.setLength(payload.length);
-        response.setPayload(payload);
-        log.info("[Response] rid=" + basicReturns.getRid() + ", channelId=" + basicReturns.getChannelId()
-                + ", type=" + response.getType() + ", length=" + response.getLength());
-        return response;
+        return basicReturns;
     }
 
+    // 把响应放进连接的写队列
+    private void reply(ClientSession session, int type, BasicReturns basicReturns, WireCodec.Format format) {
+        try {
+            byte[] payload = WireCodec.encodeReturns(type, basicReturns, format);
+            Response response = new Response();
+            response.setType(type);
+            response.setLength(payload.length);
+            response.setPayload(payload);
+            log.info("[Response] rid=" + basicReturns.getRid() + ", channelId=" + basicReturns.getChannelId()
+                    + ", type=" + response.getType() + ", length=" + response.getLength());
+            session.send(response.getType(), response.getPayload());
+        } catch (IOException | MqException e) {
+            log.error("connection 异常退出，e:{}",e.getMessage());
+            closeSession(session);
+        }
+    }
 
-    private Request readRequest(DataInputStream dataInputStream) throws IOException {
-        Request request = new Request();
-        request.setType(dataInputStream.readInt());
-        request.setLength(dataInputStream.readInt());
-        byte[] playload = new byte[request.getLength()];
-        int n  = dataInputStream.read(playload);
-        if(n != request.getLength()){
-            throw new IOException("读取请求格式错误");
+    private String remoteAddress(ClientSession session) {
+        try {
+            return String.valueOf(session.getChannel().getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
         }
-        request.setPayload(playload);
-        return request;
     }
 
-    private void clearClosedSession(Socket clientSocket) {
+    private void closeSession(ClientSession session) {
+        session.close();
+        clearClosedSession(session);
+    }
+
+    private void clearClosedSession(ClientSession session) {
         List<String> TodeleteChannelId = new ArrayList<String>();
-        for(Map.Entry<String,Socket> entry : sessions.entrySet()){
-            if(entry.getValue() == clientSocket){
+        for(Map.Entry<String,ClientSession> entry : sessions.entrySet()){
+            if(entry.getValue() == session){
                 TodeleteChannelId.add(entry.getKey());
             }
         }
         for(String channelId : TodeleteChannelId){
             sessions.remove(channelId);
+            prefetchCounts.remove(channelId);
         }
         log.info("清理 session 完成！ channelId:{}" , TodeleteChannelId);
     }
@@ -0,0 +1,254 @@
+package com.doublez.mqserver;
+
+import com.doublez.common.MqException;
+import com.doublez.common.WireCodec;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 服务器上的一个客户端连接
+ * 读写都由 BrokerServer 的 selector 线程完成，连接没有请求的时候不占用任何线程
+ * 读缓冲区在连接上复用，完整的帧直接在缓冲区上解码；响应和推送的消息先放进写队列，由 selector 线程写出
+ * 写队列是这个连接唯一的写出口，帧之间不会交错；积压的多个帧通过一次 gathering write 写出，减少系统调用
+ * 同一个连接的请求按照到达的顺序在线程池中依次处理
+ * 服务器超过内存或磁盘水位线时，发送过消息的连接暂停读取，积压的请求留在 socket 缓冲区中，TCP 会让客户端慢下来
+ */
+@Slf4j
+class ClientSession {
+    //帧头: type(4) + length(4)
+    static final int FRAME_HEADER_SIZE = 8;
+    //单个帧 payload 的最大长度，超过认为是非法请求
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+    //一次 gathering write 最多合并的帧数
+    private static final int MAX_GATHER_FRAMES = 64;
+
+    private final BrokerServer parent;
+    private final SocketChannel channel;
+    private final Executor executor;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    //等待写出的帧，任何线程都可以放入，只有 selector 线程取出
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    //是否已经通知 selector 线程关注可写事件
+    private final AtomicBoolean writePending = new AtomicBoolean(false);
+    //合并写出时使用，只在 selector 线程中访问
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER_FRAMES];
+    //等待处理的请求，同一时间只有一个线程在处理
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean processing = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    //这个连接上发送过消息，水位线超过时需要暂停读取
+    private volatile boolean publisher = false;
+    //发送消息时使用的编码格式，推送阻塞通知时使用
+    private volatile WireCodec.Format publishFormat = WireCodec.Format.BINARY;
+    //以下两个只在 selector 线程中访问
+    private boolean readPaused = false;
+    private boolean writeInterested = false;
+
+    ClientSession(BrokerServer parent, SocketChannel channel, Executor executor) {
+        this.parent = parent;
+        this.channel = channel;
+        this.executor = executor;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean isPublisher() {
+        return publisher;
+    }
+
+    WireCodec.Format getPublishFormat() {
+        return publishFormat;
+    }
+
+    //收到发送消息的请求时调用
+    void markPublisher(WireCodec.Format format) {
+        publishFormat = format;
+        publisher = true;
+    }
+
+    //selector 线程调用：暂停读取，返回 false 表示已经暂停了
+    boolean pauseRead() {
+        if (readPaused) {
+            return false;
+        }
+        readPaused = true;
+        updateInterest();
+        return true;
+    }
+
+    //selector 线程调用：恢复读取，返回 false 表示没有暂停
+    boolean resumeRead() {
+        if (!readPaused) {
+            return false;
+        }
+        readPaused = false;
+        updateInterest();
+        return true;
+    }
+
+    private void updateInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writeInterested ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    //selector 线程调用：读取数据并解析出所有完整的帧
+    void read() throws IOException, MqException, ClassNotFoundException {
+        if (channel.read(readBuffer) < 0) {
+            throw new EOFException();
+        }
+        readBuffer.flip();
+        int needed = 0;
+        while (readBuffer.remaining() >= FRAME_HEADER_SIZE) {
+            int start = readBuffer.position();
+            int type = readBuffer.getInt(start);
+            int length = readBuffer.getInt(start + 4);
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("[ClientSession] 帧长度错误! type=" + type + ", length=" + length);
+            }
+            if (readBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+                needed = FRAME_HEADER_SIZE + length;
+                break;
+            }
+            //payload 是读缓冲区上的切片，只在 onFrame 期间有效
+            parent.onFrame(this, type, readBuffer.slice(start + FRAME_HEADER_SIZE, length));
+            readBuffer.position(start + FRAME_HEADER_SIZE + length);
+        }
+        readBuffer.compact();
+        if (needed > readBuffer.capacity()) {
+            //放不下一个完整的帧，扩容
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        } else if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE) {
+            //大帧处理完之后恢复成默认大小
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        }
+    }
+
+    //任何线程都可以调用：把一个帧放进写队列
+    void send(int type, byte[] payload) throws MqException {
+        if (closed) {
+            throw new MqException("[ClientSession] 连接已经关闭!");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        frame.putInt(type).putInt(payload.length).put(payload).flip();
+        outbound.add(frame);
+        if (writePending.compareAndSet(false, true)) {
+            parent.requestWrite(this);
+        }
+    }
+
+    //selector 线程调用：开始关注可写事件
+    void enableWrite() {
+        writeInterested = true;
+        updateInterest();
+    }
+
+    //selector 线程调用：把写队列中积压的帧合并成一次 gathering write，写不完的等下一次可写事件
+    void write() throws IOException {
+        while (true) {
+            //写队列只有 selector 线程会取出，队头的帧在这里不会被别的线程拿走
+            int count = 0;
+            for (ByteBuffer frame : outbound) {
+                gather[count++] = frame;
+                if (count == MAX_GATHER_FRAMES) {
+                    break;
+                }
+            }
+            if (count == 0) {
+                break;
+            }
+            channel.write(gather, 0, count);
+            int written = 0;
+            while (written < count && !gather[written].hasRemaining()) {
+                outbound.poll();
+                written++;
+            }
+            Arrays.fill(gather, 0, count, null);
+            if (written < count) {
+                //socket 发送缓冲区满了
+                return;
+            }
+        }
+        writeInterested = false;
+        updateInterest();
+        writePending.set(false);
+        //清除标记之前可能有新的帧放进来
+        if (!outbound.isEmpty() && writePending.compareAndSet(false, true)) {
+            enableWrite();
+        }
+    }
+
+    //把请求交给线程池处理，保证同一个连接上的请求按照顺序执行
+    void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!processing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            //服务器正在停止
+            processing.set(false);
+            tasks.clear();
+        }
+    }
+
+    private void drain() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        processing.set(false);
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("[ClientSession] 关闭连接失败, e:{}", e.getMessage());
+        }
+        outbound.clear();
+        tasks.clear();
+    }
+}
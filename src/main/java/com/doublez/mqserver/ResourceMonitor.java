@@ -0,0 +1,78 @@
+package com.doublez.mqserver;
+
+import com.doublez.Application;
+import org.springframework.core.env.Environment;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * 监控服务器的内存和磁盘，超过水位线时 BrokerServer 暂停读取发送消息的连接
+ * 内存：堆内存使用量超过最大堆的 memoryHighWatermark 倍。Eden 区在每次 young GC 之后清空，里面大部分是垃圾，不计入
+ * 磁盘：数据目录所在磁盘的可用空间小于 diskFreeLimit
+ */
+class ResourceMonitor {
+    //默认堆内存使用超过 40% 阻塞，磁盘可用空间少于 50MB 阻塞
+    static final double DEFAULT_MEMORY_HIGH_WATERMARK = 0.4;
+    static final long DEFAULT_DISK_FREE_LIMIT = 50L * 1024 * 1024;
+
+    //0 表示不检查
+    private final double memoryHighWatermark;
+    private final long diskFreeLimit;
+    private final File dataDir;
+
+    ResourceMonitor(double memoryHighWatermark, long diskFreeLimit, File dataDir) {
+        this.memoryHighWatermark = memoryHighWatermark;
+        this.diskFreeLimit = diskFreeLimit;
+        this.dataDir = dataDir;
+    }
+
+    //水位线从配置文件中读取
+    static ResourceMonitor fromEnvironment() {
+        Environment environment = Application.context.getEnvironment();
+        return new ResourceMonitor(
+                environment.getProperty("mq.flow.memory-high-watermark", Double.class, DEFAULT_MEMORY_HIGH_WATERMARK),
+                environment.getProperty("mq.flow.disk-free-limit", Long.class, DEFAULT_DISK_FREE_LIMIT),
+                new File("./data"));
+    }
+
+    //返回超过水位线的原因，没有超过返回 null
+    String check() {
+        if (memoryHighWatermark > 0) {
+            long max = Runtime.getRuntime().maxMemory();
+            long limit = (long) (max * memoryHighWatermark);
+            long used = usedHeap();
+            if (used > limit) {
+                return "内存使用超过水位线, used=" + used + ", limit=" + limit;
+            }
+        }
+        if (diskFreeLimit > 0) {
+            long free = usableSpace();
+            if (free < diskFreeLimit) {
+                return "磁盘可用空间低于水位线, free=" + free + ", limit=" + diskFreeLimit;
+            }
+        }
+        return null;
+    }
+
+    private long usedHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && !pool.getName().contains("Eden")) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private long usableSpace() {
+        //数据目录还没有创建的时候看它所在的目录
+        File dir = dataDir.getAbsoluteFile();
+        while (dir != null && !dir.exists()) {
+            dir = dir.getParentFile();
+        }
+        return dir == null ? Long.MAX_VALUE : dir.getUsableSpace();
+    }
+}
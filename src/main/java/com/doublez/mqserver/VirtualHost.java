@@ -1,5 +1,6 @@
 package com.doublez.mqserver;
 
+import com.doublez.common.BasicPublishArguments;
 import com.doublez.common.Consumer;
 import com.doublez.common.MqException;
 import com.doublez.mqserver.core.*;
@@ -9,8 +10,19 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 
 @Slf4j
@@ -18,28 +30,67 @@ import java.util.concurrent.ConcurrentHashMap;
 public class VirtualHost {
     private String virtualHostName;
     private Router router = new Router();
+    //fanout 和 topic 交换机的路由结果缓存
+    private RouteCache routeCache = new RouteCache();
     private DiskDataCenter diskDataCenter = new DiskDataCenter();
     private MemoryDataCenter memoryDataCenter = new MemoryDataCenter();
 
     private final Object exchangeLock = new Object();
     private final Object queueLock = new Object();
     private ConsumerManager consumerManager = new ConsumerManager(this);
+    //持久化消息落盘之后在这个线程中放进内存、通知消费者，不占用组提交线程
+    //只有一个线程，同一个队列的消息按照落盘的顺序进入内存
+    private final ExecutorService deliverExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "message-deliver");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public VirtualHost(String virtualHostName) {
         this.virtualHostName = virtualHostName;
 
-        //memoryDataCenter不需要进行初始化操作，new对象就可以了
-        //diskDataCenter 需要进行初始化操作，进行对应的建库和初始化数据
-        diskDataCenter.init();
-
-        //如果硬盘有数据，需要恢复到内存中
         try {
+            //memoryDataCenter不需要进行初始化操作，new对象就可以了
+            //diskDataCenter 需要进行初始化操作，进行对应的建库和初始化数据
+            diskDataCenter.init();
+            //超出内存预算的消息体换出到磁盘
+            memoryDataCenter.init(diskDataCenter);
+
+            //如果硬盘有数据，需要恢复到内存中
             memoryDataCenter.recovery(diskDataCenter);
-        } catch (IOException | MqException | ClassNotFoundException e) {
+        } catch (IOException | MqException e) {
             log.error(e.getMessage());
             log.error("[VirtualHost] 恢复数据失败]");
         }
     }
+
+    //关闭虚拟主机：已经提交的持久化消息落盘并放进内存，然后关闭段文件、消息体文件和溢出文件
+    //正常关闭会写入统计检查点，下次启动不需要重新扫描段文件
+    public void close() throws IOException {
+        //恢复线程还在读段文件，等它结束
+        try {
+            memoryDataCenter.getRecoveryFuture().join();
+        } catch (CompletionException e) {
+            log.error("[VirtualHost] 关闭时恢复没有成功完成, e:{}", e.getCause().getMessage());
+        }
+        //组提交线程把队列中的消息全部落盘之后退出，落盘回调把投递任务交给 deliverExecutor
+        //关闭磁盘数据失败的时候也要继续关闭后面的线程和溢出文件
+        try {
+            diskDataCenter.close();
+        } finally {
+            deliverExecutor.shutdown();
+            try {
+                if(!deliverExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    log.error("[VirtualHost] 等待投递线程结束超时");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumerManager.close();
+            memoryDataCenter.close();
+        }
+        log.info("[VirtualHost] 虚拟主机已关闭, virtualHostName:{}", virtualHostName);
+    }
     //添加交换机
     public boolean exchangeDeclare(String exchangeName, ExchangeType exchangeType, boolean durable,
                                        boolean autoDelete , Map<String,Object> arguments){
@@ -91,6 +142,7 @@ public class VirtualHost {
 
                 //2. 删除交换机
                 memoryDataCenter.deleteExchange(exchangeName);
+                routeCache.invalidate(exchangeName);
                 if (exchange.isDurable()) {
                     diskDataCenter.deleteExchange(exchangeName);
                 }
@@ -143,13 +195,16 @@ public class VirtualHost {
                     log.error("[VirtualHost] 队列不存在无法删除：queueName:{}",queueName);
                     return false;
                 }
+                //队列的消息还在恢复，等恢复完成再删除文件
+                memoryDataCenter.awaitRecovered(queueName);
                 memoryDataCenter.deleteQueue(queueName);
+                consumerManager.removeQueue(queueName);
                 if(queue.isDurable()){
                     diskDataCenter.deleteQueue(queueName);
                 }
             }
             return true;
-        } catch (IOException e) {
+        } catch (IOException | MqException e) {
             log.error("[VirtualHost] 删除队列失败: {}",e.getMessage());
             return false;
         }
@@ -194,6 +249,7 @@ public class VirtualHost {
                     }
                     //5. 写入内存
                     memoryDataCenter.insertBinding(binding);
+                    routeCache.invalidate(exchangeName);
                     log.info("[VirtualHost] 新增绑定关系成功，exchangeName:{}, queue Name:{}, bindingKey:{}",exchangeName,queueName,bindingKey);
                 }
             }
@@ -232,6 +288,7 @@ public class VirtualHost {
         //            }
                     //3.删除内存
                     memoryDataCenter.deleteBinding(binding);
+                    routeCache.invalidate(exchangeName);
                     log.info("[VirtualHost] 删除绑定关系成功，exchangeName:{}, queue Name:{}",exchangeName,queueName);
                 }
             }
@@ -242,70 +299,269 @@ public class VirtualHost {
         }
     }
     public boolean basicPublish(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] body){
+        try {
+            return basicPublishAsync(exchangeName, routingKey, basicProperties, body).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("[VirtualHost] 等待消息发送完成时被中断");
+            return false;
+        } catch (ExecutionException e) {
+            log.error("[VirtualHost] 消息发送失败: {}",e.getMessage());
+            return false;
+        }
+    }
+
+    //发送消息，不阻塞调用线程，返回的 future 在所有持久化消息落盘、消息进入队列之后完成
+    public CompletableFuture<Boolean> basicPublishAsync(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] body){
         try{
-            //1. 转化交换机的名字
-            exchangeName = virtualHostName + exchangeName;
-            //2. 判断routingKey是否合法
-            if(!router.checkRoutingKey(routingKey)){
-                log.error("[VirtualHost] routingKey不合法，routingKey: {}",routingKey);
-                return false;
+            List<Map.Entry<MSGQueue, Message>> targets = route(exchangeName, routingKey, basicProperties, body);
+            if(targets == null){
+                return CompletableFuture.completedFuture(false);
             }
-            //3. 查找交换机是否存在
-            Exchange exchange = memoryDataCenter.getExchange(exchangeName);
-            if(exchange == null){
-                log.error("[VirtualHost] 交换机不存在, 无法发送消息，exchangeName: {} , routingKey: {}",exchangeName,routingKey);
-                return false;
+            shareBody(targets);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for(int i = 0; i < targets.size(); i++){
+                try {
+                    futures.add(sendMessage(targets.get(i).getKey(),targets.get(i).getValue()));
+                } catch (IOException | MqException e) {
+                    //这个队列和后面的队列都没有写入，不再引用共享的消息体
+                    for(int j = i; j < targets.size(); j++){
+                        releaseSharedBody(targets.get(j).getValue());
+                    }
+                    throw e;
+                }
             }
-            //4. 判断交换机的类型
-            if(exchange.getType() == ExchangeType.DIRECT){
-                //4.1 直接交换机
-                //4.1.1 查找对应的队列是否存在
-                String queueName = virtualHostName + routingKey;
-                MSGQueue queue = memoryDataCenter.getQueue(queueName);
-                if(queue == null){
-                    log.error("[VirtualHost] queue不存在,无法发送消息，queueName: {}",queueName);
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((v, e) -> {
+                if(e != null){
+                    log.error("[VirtualHost] 消息发送失败: {}",e.getMessage());
                     return false;
                 }
-                //4.1.2 创建消息
-                Message message = Message.createMessageId(routingKey,basicProperties,body);
-                //4.1.3 写入队列
-                sendMessage(queue,message);
-            }else {
-                //4.2 FANOUT和TOPIC交换机
-                //4.2.1 找到所有关联的绑定，遍历所有绑定对象
-                ConcurrentHashMap<String, Binding> bindings = memoryDataCenter.getBindings(exchangeName);
-                for(Map.Entry<String, Binding> entry : bindings.entrySet()){
-                    Binding binding = entry.getValue();
-                    MSGQueue queue = memoryDataCenter.getQueue(binding.getQueueName());
-                    if(queue == null){
-                        log.error("[VirtualHost] basicPublish 发送消息时，发现队列不存在！ queueName:{}",binding.getQueueName());
-                        continue;
+                return true;
+            });
+        }catch (Exception e){
+            log.error("[VirtualHost] 消息发送失败: {}",e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    //批量发送消息，返回的数组和 entries 一一对应
+    //所有条目先路由一遍，同一个队列的持久化消息合并成一次写入，落盘之后再按照原来的顺序放进内存
+    public CompletableFuture<boolean[]> basicPublishBatchAsync(List<BasicPublishArguments> entries){
+        boolean[] results = new boolean[entries.size()];
+        //每个条目路由到的队列，路由失败为 null
+        List<List<Map.Entry<MSGQueue, Message>>> routed = new ArrayList<>(entries.size());
+        //同一个队列的持久化消息，key 是队列名
+        Map<String, List<Message>> durableMessages = new LinkedHashMap<>();
+        Map<String, MSGQueue> durableQueues = new HashMap<>();
+        for(BasicPublishArguments entry : entries){
+            List<Map.Entry<MSGQueue, Message>> targets;
+            try {
+                targets = route(entry.getExchangeName(), entry.getRoutingKey(), entry.getBasicProperties(), entry.getBody());
+            } catch (Exception e) {
+                log.error("[VirtualHost] 批量发送消息时路由失败: {}",e.getMessage());
+                targets = null;
+            }
+            //目标队列还在恢复的时候等它恢复完成，新的消息排在恢复的消息后面
+            try {
+                for(int i = 0; targets != null && i < targets.size(); i++){
+                    memoryDataCenter.awaitRecovered(targets.get(i).getKey().getName());
+                }
+            } catch (MqException e) {
+                log.error("[VirtualHost] 批量发送消息失败: {}",e.getMessage());
+                targets = null;
+            }
+            routed.add(targets);
+            if(targets == null){
+                continue;
+            }
+            shareBody(targets);
+            for(Map.Entry<MSGQueue, Message> target : targets){
+                MSGQueue queue = target.getKey();
+                Message message = target.getValue();
+                if(message.getDeliveryMode() == 2){
+                    durableQueues.put(queue.getName(), queue);
+                    durableMessages.computeIfAbsent(queue.getName(), k -> new ArrayList<>()).add(message);
+                }
+            }
+        }
+        //1. 每个队列一次写入
+        Map<String, CompletableFuture<Void>> queueFutures = new HashMap<>();
+        for(Map.Entry<String, List<Message>> entry : durableMessages.entrySet()){
+            MSGQueue queue = durableQueues.get(entry.getKey());
+            List<Message> messages = entry.getValue();
+            CompletableFuture<Void> future;
+            messages.forEach(memoryDataCenter::addInFlightMessage);
+            try {
+                future = diskDataCenter.sendMessagesAsync(queue, messages).whenComplete((v, e) -> {
+                    if(e != null){
+                        messages.forEach(this::abortDurableSend);
+                    }
+                }).thenRunAsync(() -> {
+                    for(Message message : messages){
+                        deliver(queue, message);
                     }
-                    //4.2.2 构造绑定对象
-                    Message message = Message.createMessageId(routingKey,basicProperties,body);
-                    //判断消息是否能够转发给队列：fanout 所有的队列都要转发，topic 只有bindingKey和routingKey匹配才能转发
-                    if(!router.route(exchange.getType(),binding,message)){
-                        continue;
+                }, deliverExecutor);
+            } catch (IOException | MqException e) {
+                log.error("[VirtualHost] 批量写入消息失败, queueName:{}, e:{}",queue.getName(),e.getMessage());
+                messages.forEach(this::abortDurableSend);
+                future = CompletableFuture.failedFuture(e);
+            }
+            queueFutures.put(entry.getKey(), future);
+        }
+        //2. 非持久化消息直接进入内存；每个条目等待它写入的所有队列
+        List<CompletableFuture<Void>> entryFutures = new ArrayList<>(entries.size());
+        for(int i = 0; i < routed.size(); i++){
+            List<Map.Entry<MSGQueue, Message>> targets = routed.get(i);
+            if(targets == null){
+                continue;
+            }
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            try {
+                for(Map.Entry<MSGQueue, Message> target : targets){
+                    if(target.getValue().getDeliveryMode() == 2){
+                        futures.add(queueFutures.get(target.getKey().getName()));
+                    }else {
+                        deliver(target.getKey(), target.getValue());
                     }
-                    //4.2.3 发送消息给队列
-                    sendMessage(queue,message);
-                    log.info("[VirtualHost] basicPublish 成功,queueName:{}",binding.getQueueName());
                 }
+            } catch (Exception e) {
+                log.error("[VirtualHost] 批量发送消息失败: {}",e.getMessage());
+                continue;
+            }
+            int index = i;
+            entryFutures.add(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((v, e) -> {
+                if(e != null){
+                    log.error("[VirtualHost] 消息发送失败: {}",e.getMessage());
+                }else {
+                    results[index] = true;
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(entryFutures.toArray(new CompletableFuture[0])).thenApply(v -> results);
+    }
+
+    //根据交换机的类型找到消息要进入的队列，每个队列一个 Message 对象
+    //交换机不存在、routingKey 不合法等情况返回 null
+    private List<Map.Entry<MSGQueue, Message>> route(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] body) throws MqException {
+        //1. 转化交换机的名字
+        exchangeName = virtualHostName + exchangeName;
+        //2. 判断routingKey是否合法
+        if(!router.checkRoutingKey(routingKey)){
+            log.error("[VirtualHost] routingKey不合法，routingKey: {}",routingKey);
+            return null;
+        }
+        //3. 查找交换机是否存在
+        Exchange exchange = memoryDataCenter.getExchange(exchangeName);
+        if(exchange == null){
+            log.error("[VirtualHost] 交换机不存在, 无法发送消息，exchangeName: {} , routingKey: {}",exchangeName,routingKey);
+            return null;
+        }
+        List<Map.Entry<MSGQueue, Message>> targets = new ArrayList<>();
+        //4. 判断交换机的类型
+        if(exchange.getType() == ExchangeType.DIRECT){
+            //4.1 直接交换机
+            //4.1.1 查找对应的队列是否存在
+            String queueName = virtualHostName + routingKey;
+            MSGQueue queue = memoryDataCenter.getQueue(queueName);
+            if(queue == null){
+                log.error("[VirtualHost] queue不存在,无法发送消息，queueName: {}",queueName);
+                return null;
+            }
+            //4.1.2 创建消息
+            Message message = Message.createMessageId(routingKey,basicProperties,body);
+            targets.add(new AbstractMap.SimpleEntry<>(queue,message));
+        }else {
+            //4.2 FANOUT和TOPIC交换机：同一个 routingKey 的路由结果缓存起来，绑定变化时清除
+            List<String> queueNames = routeCache.get(exchangeName, routingKey, () -> resolveQueues(exchange, routingKey));
+            for(String queueName : queueNames){
+                //4.2.1 队列可能已经被删除了
+                MSGQueue queue = memoryDataCenter.getQueue(queueName);
+                if(queue == null){
+                    log.error("[VirtualHost] basicPublish 发送消息时，发现队列不存在！ queueName:{}",queueName);
+                    continue;
+                }
+                //4.2.2 每个队列一个消息对象
+                Message message = Message.createMessageId(routingKey,basicProperties,body);
+                targets.add(new AbstractMap.SimpleEntry<>(queue,message));
+                log.info("[VirtualHost] basicPublish 成功,queueName:{}",queueName);
+            }
+        }
+        return targets;
+    }
+
+    //计算 fanout 和 topic 交换机的路由结果
+    private List<String> resolveQueues(Exchange exchange, String routingKey) {
+        if(exchange.getType() == ExchangeType.TOPIC){
+            //在 bindingKey 前缀树上走一遍 routingKey，直接得到所有匹配的队列
+            return List.copyOf(memoryDataCenter.matchTopic(exchange.getName(), routingKey));
+        }
+        //fanout 所有绑定的队列都要转发
+        ConcurrentHashMap<String, Binding> bindings = memoryDataCenter.getBindings(exchange.getName());
+        return bindings == null ? List.of() : List.copyOf(bindings.keySet());
+    }
+
+    //一条消息进入多个持久化队列时，消息体只在共享存储中写一次，每个队列的记录只保存它的位置
+    //内存中每个队列的消息对象本来就共用同一个消息体数组
+    private void shareBody(List<Map.Entry<MSGQueue, Message>> targets) {
+        if(targets.size() < 2){
+            return;
+        }
+        List<Message> durableMessages = new ArrayList<>(targets.size());
+        for(Map.Entry<MSGQueue, Message> target : targets){
+            if(target.getValue().getDeliveryMode() == 2 && target.getKey().isDurable()){
+                durableMessages.add(target.getValue());
             }
-            return true;
-        }catch (Exception e){
-            log.error("[VirtualHost] 消息发送失败: {}",e.getMessage());
-            return false;
         }
+        try {
+            diskDataCenter.shareBody(durableMessages);
+        } catch (IOException | MqException e) {
+            //共享存储写入失败，每个队列的记录各自保存消息体
+            log.error("[VirtualHost] 写入共享消息体失败: {}",e.getMessage());
+        }
+    }
+
+    //消息没有写入这个队列的日志，释放它对共享消息体的引用，否则共享的记录永远不会被删除
+    //持久化消息没有写入段文件，不会再被投递
+    private void abortDurableSend(Message message) {
+        memoryDataCenter.removeInFlightMessage(message);
+        releaseSharedBody(message);
     }
 
-    private void sendMessage(MSGQueue queue, Message message) throws IOException, MqException, InterruptedException {
+    private void releaseSharedBody(Message message) {
+        try {
+            diskDataCenter.releaseSharedBody(message);
+        } catch (IOException | MqException e) {
+            log.error("[VirtualHost] 释放共享消息体失败, messageId:{}, e:{}",message.getMessageId(),e.getMessage());
+        }
+    }
+
+    private CompletableFuture<Void> sendMessage(MSGQueue queue, Message message) throws IOException, MqException {
+        //队列还在恢复的时候等它恢复完成，新的消息排在恢复的消息后面
+        memoryDataCenter.awaitRecovered(queue.getName());
         //将消息写入内存/硬盘
         int deliveryMode = message.getDeliveryMode();
         //1. 写入磁盘：1 不持久化， 2 持久化
+        //   持久化消息写入之后才知道在文件中的位置，所以落盘之后再放进内存
+        //   落盘之后、投递之前 gc 可能移动这条消息，先登记到 memoryDataCenter，gc 能更新它的位置
         if(deliveryMode == 2){
-            diskDataCenter.sendMessage(queue,message);
+            memoryDataCenter.addInFlightMessage(message);
+            try {
+                return diskDataCenter.sendMessageAsync(queue,message).whenComplete((v, e) -> {
+                    if(e != null){
+                        abortDurableSend(message);
+                    }
+                }).thenRunAsync(() -> deliver(queue,message), deliverExecutor);
+            } catch (IOException | MqException e) {
+                memoryDataCenter.removeInFlightMessage(message);
+                throw e;
+            }
         }
+        deliver(queue,message);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void deliver(MSGQueue queue, Message message) {
         //2. 写入内存
         memoryDataCenter.sendMessage(queue,message);
         //3. 通知消费者可以消费了
@@ -313,10 +569,14 @@ public class VirtualHost {
     }
     //订阅消息
     public boolean basicConsume(String consumerTag, String queueName, boolean autoAck, Consumer consumer){
+        return basicConsume(consumerTag, queueName, autoAck, 0, consumer);
+    }
+    //订阅消息，prefetchCount 限制推送给这个消费者但还没有确认的消息数量，0 表示不限制
+    public boolean basicConsume(String consumerTag, String queueName, boolean autoAck, int prefetchCount, Consumer consumer){
         // 构造ConsumerEnv对象，找到对应的队列，吧Consumer对象添加到队列种
         queueName = virtualHostName + queueName;
         try{
-            consumerManager.addConsumer(consumerTag,queueName,autoAck,consumer);
+            consumerManager.addConsumer(consumerTag,queueName,autoAck,prefetchCount,consumer);
             log.info("[VirtualHost] basicConsume 成功,queueName:{}",queueName);
             return true;
         }catch (Exception e){
@@ -346,6 +606,8 @@ public class VirtualHost {
             memoryDataCenter.removeMessage(messageId);
             //删除待确认集合中的消息
             memoryDataCenter.removeMessageWaitACK(queueName,messageId);
+            //归还消费者的预取名额
+            consumerManager.ackMessage(queueName,messageId);
             log.info("[VirtualHost] 确认消息成功，queueName:{},messageId:{}",queueName,messageId);
             return true;
         } catch (Exception e) {
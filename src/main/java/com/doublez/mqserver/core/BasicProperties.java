@@ -6,6 +6,9 @@ import java.io.Serializable;
 
 @Data
 public class BasicProperties implements Serializable {
+    //固定序列化版本号，和之前写入文件的消息保持一致
+    private static final long serialVersionUID = 3774371566658172218L;
+
     //消息的唯一身份标识
     private String messageId;
     //消息上的内容，与bindingkey做匹配
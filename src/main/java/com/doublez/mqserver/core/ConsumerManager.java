@@ -6,84 +6,134 @@ import com.doublez.common.MqException;
 import com.doublez.mqserver.VirtualHost;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 实现消费者的核心操作
  */
 @Slf4j
 public class ConsumerManager {
+    //推送线程一次最多从队列中取出的消息数量
+    private static final int DISPATCH_BATCH_SIZE = 64;
     //持有上层的 virtualHost 对象引用，用来操作数据
     private VirtualHost parent;
     //指定线程池，负责执行具体的回调任务
     private ExecutorService workerPool = Executors.newFixedThreadPool(4);
-    // 存放令牌队列
-    private BlockingQueue<String> tokenQueue = new LinkedBlockingQueue<String>();
-    //扫描线程
-    private Thread scannerThread = null;
+    //负责推送消息的线程池，每个队列同一时间最多占用其中一个线程
+    private ExecutorService dispatchPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "queue-dispatcher");
+        //设置为后台线程
+        thread.setDaemon(true);
+        return thread;
+    });
+    //每个队列的推送循环, key: queueName
+    private ConcurrentHashMap<String, QueueDispatcher> dispatchers = new ConcurrentHashMap<>();
+    //受预取数量限制的消息推送给了哪个消费者，确认之后归还这个消费者的名额, key: messageId
+    private ConcurrentHashMap<String, ConsumerEnv> unackedOwners = new ConcurrentHashMap<>();
     public ConsumerManager(VirtualHost parent) {
         this.parent = parent;
+    }
 
-        scannerThread = new Thread(() -> {
-            while (true) {
-                //1. 获取队列令牌
-                try {
-                    String queueName = tokenQueue.take();
-                    MSGQueue queue = parent.getMemoryDataCenter().getQueue(queueName);
-                    if(queue==null) {
-                        throw new MqException("[ConsumerManager] 取令牌后发现队列不存在，queueName:{}" + queueName);
-                    }
-                    consumeMessage(queue);
-                } catch (InterruptedException | MqException e) {
-                    log.error("[ConsumerManager] 扫描线程出错，error:{} ", e.getMessage());
-                }
+    //发送消息的时候进行调用，同一个队列的多次通知会合并成一次推送
+    public void notifyConsumer(String queueName) {
+        dispatchers.computeIfAbsent(queueName, k -> new QueueDispatcher(k, dispatchPool, () -> dispatch(k))).signal();
+    }
+
+    //删除队列的时候调用，这个队列的消息不会再被确认，丢掉它们占用的名额记录
+    public void removeQueue(String queueName) {
+        dispatchers.remove(queueName);
+        unackedOwners.values().removeIf(consumerEnv -> queueName.equals(consumerEnv.getQueueName()));
+    }
+
+    //关闭虚拟主机的时候调用，不再推送消息，等待正在执行的回调结束
+    public void close() {
+        dispatchPool.shutdown();
+        workerPool.shutdown();
+        try {
+            if(!workerPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.error("[ConsumerManager] 等待回调线程结束超时");
             }
-        });
-        //设置为后台线程
-        scannerThread.setDaemon(true);
-        //线程持续运行
-        scannerThread.start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    //发送消息的时候进行调用
-    public void notifyConsumer(String queueName) throws InterruptedException {
-        tokenQueue.put(queueName);
+    //消息被确认之后调用：归还消费者的名额，并且尝试继续推送队列中剩余的消息
+    public void ackMessage(String queueName, String messageId) {
+        ConsumerEnv consumerEnv = unackedOwners.remove(messageId);
+        if(consumerEnv == null) {
+            return;
+        }
+        consumerEnv.releaseCredit();
+        notifyConsumer(queueName);
     }
 
-    public void addConsumer(String consumerTag, String queueName, boolean autoAck, Consumer consumer) throws MqException {
+    public void addConsumer(String consumerTag, String queueName, boolean autoAck, int prefetchCount, Consumer consumer) throws MqException {
         //1. 找到对应的队列
         MSGQueue queue = parent.getMemoryDataCenter().getQueue(queueName);
         if(queue == null) {
             throw  new MqException("[ConsumerManager] 队列不存在，queue:" + queueName);
         }
         //2. 添加消费者
-        ConsumerEnv consumerEnv = new ConsumerEnv(consumerTag,queueName,autoAck,consumer);
+        ConsumerEnv consumerEnv = new ConsumerEnv(consumerTag,queueName,autoAck,consumer,prefetchCount);
         synchronized (queue) {
             queue.addConsumerEnv(consumerEnv);
-            //2.1 如果当前队列有消息，直接进行消费
-            int count = parent.getMemoryDataCenter().getMessageCount(queueName);
-            for(int i = 0; i < count; i++) {
-                consumeMessage(queue);
-            }
         }
+        //2.1 如果当前队列有消息，直接进行消费
+        notifyConsumer(queueName);
 
     }
 
-    private void consumeMessage(MSGQueue queue) {
-        //1. 取消费者
-        ConsumerEnv luckyDog = queue.chooseConsumer();
-        if(luckyDog == null) {
-            //无消费者 不消费
+    //在队列的推送循环中执行：有多少消息、消费者有多少余量就推送多少
+    private void dispatch(String queueName) {
+        MSGQueue queue = parent.getMemoryDataCenter().getQueue(queueName);
+        if(queue == null) {
+            log.error("[ConsumerManager] 推送消息时发现队列不存在，queueName:{}", queueName);
             return;
         }
-        //2. 取消息
-        Message message = parent.getMemoryDataCenter().pollQueueMessages(queue.getName());
-        if(message == null){
-            return;
+        List<ConsumerEnv> consumers = new ArrayList<>(DISPATCH_BATCH_SIZE);
+        List<Message> messages = new ArrayList<>(DISPATCH_BATCH_SIZE);
+        while (true) {
+            //1. 按照队列中的消息数量先选好一批消费者，消费者的未确认消息达到预取上限时会被跳过
+            int ready = Math.min(parent.getMemoryDataCenter().getMessageCount(queueName), DISPATCH_BATCH_SIZE);
+            for(int i = 0; i < ready; i++) {
+                ConsumerEnv luckyDog = queue.chooseConsumer();
+                if(luckyDog == null) {
+                    break;
+                }
+                consumers.add(luckyDog);
+            }
+            if(consumers.isEmpty()) {
+                //无消息、无消费者或者消费者都没有余量 不消费
+                return;
+            }
+            //2. 一次取出同样数量的消息
+            parent.getMemoryDataCenter().pollQueueMessages(queueName, consumers.size(), messages);
+            for(int i = 0; i < consumers.size(); i++) {
+                if(i < messages.size()) {
+                    consumeMessage(queue, consumers.get(i), messages.get(i));
+                } else {
+                    //消息比预计的少，归还多占用的名额
+                    consumers.get(i).releaseCredit();
+                }
+            }
+            if(messages.size() < consumers.size()) {
+                return;
+            }
+            consumers.clear();
+            messages.clear();
+        }
+    }
+
+    //把一条消息推送给选好的消费者
+    private void consumeMessage(MSGQueue queue, ConsumerEnv luckyDog, Message message) {
+        if(luckyDog.isLimited()) {
+            unackedOwners.put(message.getMessageId(), luckyDog);
         }
         //3. 消息放入消费者的回调方法中，丢给线程池
         workerPool.submit(() -> {
@@ -105,9 +155,15 @@ public class ConsumerManager {
                 }
                 log.info("[ConsumerManager] 消费消息成功，queueName:{}",queue.getName());
                 //不是自动应答的话由消费者调用basicAck来调用
-            }catch (IOException | MqException | ClassNotFoundException e) {
+            }catch (Exception e) {
+                //消费者的回调也可能抛出 RuntimeException，同样需要归还名额，否则设置了预取数量的消费者会永远停住
                 //todo 如果在中间有异常抛出可能会导致后面的消息无法被易错，需要参考rabbitmq的死信队列实现
                 log.error("[ConsumerManager] 消费信息出错， error:{} ", e.getMessage());
+                //消息没有推送出去，归还名额
+                if(unackedOwners.remove(message.getMessageId(), luckyDog)) {
+                    luckyDog.releaseCredit();
+                    notifyConsumer(queue.getName());
+                }
             }
         });
     }
@@ -7,10 +7,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -19,6 +19,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 @Data
 @Slf4j
 public class MSGQueue {
+    //队列参数 x-queue-mode 为 lazy 时是惰性队列：消息体不保存在内存中，推送之前再从磁盘读回
+    public static final String ARG_QUEUE_MODE = "x-queue-mode";
+    public static final String QUEUE_MODE_LAZY = "lazy";
+
     //队列标识名称
     private String name;
     //标识队列是否持久化
@@ -30,8 +34,8 @@ public class MSGQueue {
     //设置创建交换机时传入的参数
     private Map<String,Object> arguments = new HashMap<>();
 
-    //当前队列的消费者
-    private List<ConsumerEnv> consumerEnvList = new ArrayList<>();
+    //当前队列的消费者，推送线程遍历的同时可能有新的消费者加入
+    private List<ConsumerEnv> consumerEnvList = new CopyOnWriteArrayList<>();
 
     private AtomicInteger consumerSeq = new AtomicInteger(0);
     //添加新的订阅者
@@ -39,15 +43,22 @@ public class MSGQueue {
             consumerEnvList.add(env);
     }
     //todo 删除订阅者
-    //获取订阅者
+    //获取订阅者：轮流选择，跳过未确认消息已经达到预取上限的消费者，并为选中的消费者占用一个名额
     public ConsumerEnv chooseConsumer() {
-        if(consumerEnvList.isEmpty()) {
+        int size = consumerEnvList.size();
+        if(size == 0) {
             //无消费者
             return null;
         }
-        int cur = consumerSeq.get() % consumerEnvList.size();
-        consumerSeq.getAndIncrement();
-        return consumerEnvList.get(cur);
+        for(int i = 0; i < size; i++) {
+            int cur = Math.floorMod(consumerSeq.getAndIncrement(), size);
+            ConsumerEnv env = consumerEnvList.get(cur);
+            if(env.tryAcquireCredit()) {
+                return env;
+            }
+        }
+        //所有的消费者都没有余量，消息留在队列中，等有消息被确认之后再推送
+        return null;
     }
     //mybatis在转化的时候需要get set方法，但是只能接受String，所以要在内部进行类型转化
     public String getArguments() {
@@ -74,4 +85,8 @@ public class MSGQueue {
         this.arguments = arguments;
     }
 
+    public boolean isLazy() {
+        return arguments != null && QUEUE_MODE_LAZY.equals(arguments.get(ARG_QUEUE_MODE));
+    }
+
 }
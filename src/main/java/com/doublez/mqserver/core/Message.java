@@ -12,22 +12,40 @@ import java.util.UUID;
  */
 @Data
 public class Message implements Serializable {
+    //固定序列化版本号，和之前写入文件的消息保持一致，修改字段和方法之后依然能读取旧的数据
+    private static final long serialVersionUID = 5252891372846584235L;
+
     private BasicProperties basicProperties = new BasicProperties();
     private byte[] body;
 
-    //辅助属性,如果 message 需要存储到文件中 [offsetBeg,offsetEnd)
+    //辅助属性,如果 message 需要存储到文件中，用 (segmentId, position) 定位这条记录
     //不需要被序列化，加上transient 关键字
-    private transient long offsetBeg = 0;//消息数据的开头距离文件开头的偏移量（字节）闭
-    private transient long offsetEnd = 0;//消息数据的结尾距离文件开头的偏移量（字节）开
+    private transient long segmentId = 0;//消息所在的段文件编号
+    private transient long position = 0;//消息记录（从长度前缀开始）距离段文件开头的偏移量（字节）
+
+    //消息体在哪里：超出内存预算的消息体会换出内存，推送之前再读回来
+    public static final byte BODY_IN_MEMORY = 0;
+    //持久化消息：消息体只保存在队列的日志中，用 (segmentId, position) 读回
+    public static final byte BODY_IN_LOG = 1;
+    //非持久化消息：消息体写入溢出文件，(segmentId, position) 表示在溢出文件中的位置
+    public static final byte BODY_IN_SPILL = 2;
+    private transient byte bodyLocation = BODY_IN_MEMORY;
+
+    //同一条消息进入多个持久化队列时，消息体只在共享存储中写一次，队列的记录中只保存它的位置
+    //bodySegmentId 为 -1 表示消息体保存在队列自己的记录中
+    private transient long bodySegmentId = -1;
+    private transient long bodyPosition = 0;
 
     //表示该消息在文件中是否有效，0x1 有效 0x0 无效
+    //文件中的有效标记保存在记录头里，从文件加载消息的时候写回这里
     private byte isValid = 0x1;
 
     //创建一个方法工厂，让方法工厂封装创建message的过程
     public static Message createMessageId(String routingKey,BasicProperties basicProperties,byte[] body) {
         Message message = new Message();
         if(basicProperties != null){
-            message.setBasicProperties(basicProperties);
+            //同一次发送可能进入多个队列，每个队列的消息都有自己的 messageId，属性需要复制一份，消息体共用
+            message.getBasicProperties().setDeliveryMode(basicProperties.getDeliveryMode());
         }
         //UUID生成id，以M-开头作为区分
         message.setMessageId("M-" + UUID.randomUUID());
@@ -37,6 +55,10 @@ public class Message implements Serializable {
         message.setBody(body);
         return message;
     }
+    public boolean isBodyShared() {
+        return bodySegmentId >= 0;
+    }
+
     public String getMessageId() {
         return basicProperties.getMessageId();
     }
@@ -0,0 +1,52 @@
+package com.doublez.mqserver.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个队列的推送循环
+ * 每次有新消息或者消费者有了余量都调用 signal，多次 signal 会合并：同一时间最多只有一个线程在处理这个队列，
+ * 处理期间到达的 signal 只会让它再检查一轮，不会排队等待
+ * 不同的队列在线程池中并行推送，互相之间没有锁
+ */
+@Slf4j
+class QueueDispatcher {
+    private final String queueName;
+    private final Executor executor;
+    private final Runnable drain;
+    //还没有处理的 signal 数量，0 表示当前没有在运行也没有在排队
+    private final AtomicInteger signals = new AtomicInteger(0);
+
+    QueueDispatcher(String queueName, Executor executor, Runnable drain) {
+        this.queueName = queueName;
+        this.executor = executor;
+        this.drain = drain;
+    }
+
+    void signal() {
+        if (signals.getAndIncrement() == 0) {
+            try {
+                executor.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                signals.set(0);
+                log.error("[QueueDispatcher] 线程池已经关闭, queueName:{}", queueName);
+            }
+        }
+    }
+
+    private void run() {
+        int seen;
+        do {
+            seen = signals.get();
+            try {
+                drain.run();
+            } catch (RuntimeException e) {
+                log.error("[QueueDispatcher] 推送消息出错, queueName:{}, error:{}", queueName, e.getMessage());
+            }
+            //处理期间又有新的 signal 到达，再处理一轮
+        } while (!signals.compareAndSet(seen, 0));
+    }
+}
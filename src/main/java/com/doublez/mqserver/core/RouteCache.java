@@ -0,0 +1,75 @@
+package com.doublez.mqserver.core;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 路由结果缓存：key 是交换机和 routingKey，value 是消息要进入的队列名
+ * 缓存的是队列名，发送消息时再查找队列对象，所以创建、删除队列不影响缓存；交换机的绑定变化或者交换机被删除时清除这个交换机的缓存
+ * 每个交换机最多缓存 maxKeysPerExchange 个 routingKey，满了之后随便淘汰一个
+ */
+public class RouteCache {
+    public static final int DEFAULT_MAX_KEYS_PER_EXCHANGE = 1024;
+
+    private final int maxKeysPerExchange;
+    //key: exchangeName, value: (key: routingKey, value: 队列名)
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, List<String>>> routes = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RouteCache() {
+        this(DEFAULT_MAX_KEYS_PER_EXCHANGE);
+    }
+
+    public RouteCache(int maxKeysPerExchange) {
+        this.maxKeysPerExchange = maxKeysPerExchange;
+    }
+
+    //没有缓存的时候调用 loader 计算路由结果，loader 返回的列表不能再被修改
+    public List<String> get(String exchangeName, String routingKey, Supplier<List<String>> loader) {
+        String key = routingKey == null ? "" : routingKey;
+        //先拿到交换机的缓存再计算：计算期间绑定发生变化的话，这个缓存已经被清除了，结果不会被后面的消息用到
+        ConcurrentHashMap<String, List<String>> exchangeRoutes = routes.computeIfAbsent(exchangeName, k -> new ConcurrentHashMap<>());
+        List<String> queueNames = exchangeRoutes.get(key);
+        if (queueNames != null) {
+            hits.increment();
+            return queueNames;
+        }
+        misses.increment();
+        queueNames = loader.get();
+        if (exchangeRoutes.size() >= maxKeysPerExchange) {
+            Iterator<String> iterator = exchangeRoutes.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        exchangeRoutes.put(key, queueNames);
+        return queueNames;
+    }
+
+    //绑定修改完成之后调用
+    public void invalidate(String exchangeName) {
+        routes.remove(exchangeName);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, List<String>> exchangeRoutes : routes.values()) {
+            size += exchangeRoutes.size();
+        }
+        return size;
+    }
+}
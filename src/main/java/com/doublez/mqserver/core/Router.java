@@ -12,96 +12,47 @@ public class Router {
     //2. 使用 . 分割
     //3. 允许使用# 和 * 作为通配符，但是通配符只能是单独的分段
     public boolean checkBindingKey(String bindingKey) {
-        // 1. 规则：空字符串通常被认为是无效的路由键
-        if (bindingKey == null || bindingKey.isEmpty()) {
-            //todo
-            return true;
-        }
-
-        // 2. 规则：不允许以 '.' 开头或结尾，也不允许出现连续的 '..' (空分段)
-        if (bindingKey.startsWith(".") || bindingKey.endsWith(".")) {
-            return false;
-        }
-        if (bindingKey.contains("..")) {
-            return false;
-        }
-
-        // 3. 使用 '.' 分割字符串为各个分段
-        // 注意：split 方法的参数是正则表达式，所以 '.' 需要转义为 "\\."
-        String[] segments = bindingKey.split("\\.");
-
-        // 4. 验证每个分段
-        for (String segment : segments) {
-            // 分割后不应该出现空分段，此检查主要用于防御性编程，
-            // 因为前面的 `contains("..")` 已经处理了这种情况。
-            if (segment.isEmpty()) {
-                return false;
-            }
-
-            // 规则 3：检查分段是否为单独的通配符
-            if (segment.equals("*") || segment.equals("#")) {
-                continue; // 是合法的通配符分段
-            }
-
-            // 规则 1：检查分段是否只包含数字、字母、下划线
-            for (char ch : segment.toCharArray()) {
-                if (!((ch >= 'a' && ch <= 'z') ||
-                        (ch >= 'A' && ch <= 'Z') ||
-                        (ch >= '0' && ch <= '9') ||
-                        (ch == '_'))) {
-                    // 如果分段中包含除了数字、字母、下划线之外的字符，则不合法
-                    // 这也包括了通配符没有单独成段的情况（如 "foo*bar"）
-                    return false;
-                }
-            }
-        }
-
-        // 所有分段都合法，则整个 bindingKey 合法
-        return true;
+        return checkKey(bindingKey, true);
     }
     //routingKey 构造规则
     //1. 数字，字母，下划线
     //2. 使用 . 分割
     public boolean checkRoutingKey(String routingKey) {
-        if (routingKey == null || routingKey.isEmpty()) {
+        return checkKey(routingKey, false);
+    }
+
+    // 一次扫描完成所有检查, 不切分字符串
+    private static boolean checkKey(String key, boolean allowWildcard) {
+        // 1. 空字符串通常被认为是无效的路由键
+        if (key == null || key.isEmpty()) {
             //todo
             return true;
         }
-
-        // 2. 规则：不允许以 '.' 开头或结尾，也不允许出现连续的 '..' (空分段)
-        // 路由键通常不允许以点开始或结束，也不允许有空的分段
-        if (routingKey.startsWith(".") || routingKey.endsWith(".")) {
-            return false;
-        }
-        if (routingKey.contains("..")) {
-            return false;
-        }
-
-        // 3. 使用 '.' 分割字符串为各个分段
-        // 注意：split 方法的参数是正则表达式，所以 '.' 需要转义为 "\\."
-        String[] segments = routingKey.split("\\.");
-
-        // 4. 验证每个分段
-        for (String segment : segments) {
-            // 分割后不应该出现空分段，此检查主要用于防御性编程，
-            // 因为前面的 `contains("..")` 已经处理了这种情况。
-            if (segment.isEmpty()) {
-                return false;
-            }
-
-            // 规则 1：检查分段是否只包含数字、字母、下划线
-            for (char ch : segment.toCharArray()) {
-                if (!((ch >= 'a' && ch <= 'z') ||
-                        (ch >= 'A' && ch <= 'Z') ||
-                        (ch >= '0' && ch <= '9') ||
-                        (ch == '_'))) {
-                    // 如果分段中包含除了数字、字母、下划线之外的字符，则不合法
+        int length = key.length();
+        int segmentStart = 0;
+        // 末尾当成一个 . 处理, 最后一段和中间的段一样检查
+        for (int i = 0; i <= length; i++) {
+            char ch = i == length ? '.' : key.charAt(i);
+            if (ch == '.') {
+                // 2. 不允许出现空分段: 以 . 开头或结尾, 或者连续的 ..
+                if (i == segmentStart) {
+                    return false;
+                }
+                segmentStart = i + 1;
+            } else if (ch == '*' || ch == '#') {
+                // 3. 通配符只能单独成段（如 "foo*bar" 不合法）
+                if (!allowWildcard || i != segmentStart || (i + 1 < length && key.charAt(i + 1) != '.')) {
                     return false;
                 }
+            } else if (!((ch >= 'a' && ch <= 'z') ||
+                    (ch >= 'A' && ch <= 'Z') ||
+                    (ch >= '0' && ch <= '9') ||
+                    (ch == '_'))) {
+                // 4. 分段中只能包含数字、字母、下划线
+                return false;
             }
         }
-
-        // 所有分段都合法，则整个 routingKey 合法
+        // 所有分段都合法
         return true;
     }
 
@@ -116,53 +67,72 @@ public class Router {
         }
     }
 
-    // 通过 DP 的方式重新实现这个方法
-    //todo 自己写一遍
+    // 逐个绑定匹配, VirtualHost 路由 topic 消息时使用 TopicTrie 一次找出所有匹配的队列
     private boolean routeTopic(Binding binding, Message message) {
-        // 按照 . 来切分 binding key 和 routing key
-
-        // 无通配符
-        String[] routingTokens = message.getRoutingKey().split("\\.");
-        // 有通配符
-        String[] bindingTokens = binding.getBindingKey().split("\\.");
-        int m = routingTokens.length;
-        int n = bindingTokens.length;
+        return matchTopic(binding.getBindingKey(), message.getRoutingKey());
+    }
 
-        // 1. 初始化 dp 表. 由于要考虑空串, dp 表的长和宽都要 + 1
-        // dp[i][j] 表示的含义是 bindingTokens 中的 [0, j] 能否和 routingTokens 中的 [0, i] 匹配.
-        boolean[][] dp = new boolean[m + 1][n + 1];
-        // 空的 bindingKey 和 空的 routingKey 可以匹配
-        dp[0][0] = true;
-        // 如果 routingKey 为空, bindingKey 只有连续为 # 的时候, 才能匹配.
-        for (int j = 1; j <= n; j++) {
-            if (bindingTokens[j - 1].equals("#")) {
-                dp[0][j] = true;
-            } else {
-                break;
-            }
+    // bindingKey 和 routingKey 是否匹配. 直接在原字符串上按照分段的下标比较, 不切分字符串, 也不需要 dp 表
+    // 和通配符匹配一样: * 匹配一段, # 匹配任意多段; 遇到不匹配时回到最近的 # 让它多匹配一段 routingKey
+    // 分段的起点超过字符串长度表示已经走完了
+    public static boolean matchTopic(String bindingKey, String routingKey) {
+        if (bindingKey == null) {
+            bindingKey = "";
         }
-        // 2. 遍历所有情况
-        for (int i = 1; i <= m; i++) {
-            for (int j = 1; j <= n; j++) {
-                if (bindingTokens[j - 1].equals("#")) {
-                    dp[i][j] = dp[i - 1][j] || dp[i][j - 1];
-                } else if (bindingTokens[j - 1].equals("*")) {
-                    // 如果 bindingTokens j 位置为 *, 那么 bindingTokens j - 1 位置和 routingKey i - 1 位置匹配即可.
-                    dp[i][j] = dp[i - 1][j - 1];
-                } else {
-                    // 如果 bindingTokens j 位置为普通字符串, 那么要求 bindingTokens j - 1 位置 和 routingKey i - 1
-                    // 位置匹配
-                    // 并且 bindingTokens j 位置和 routingKey i 位置相同, 才认为是匹配
-                    if (bindingTokens[j - 1].equals(routingTokens[i - 1])) {
-                        dp[i][j] = dp[i - 1][j - 1];
-                    } else {
-                        dp[i][j] = false;
-                    }
+        if (routingKey == null) {
+            routingKey = "";
+        }
+        int bindingLength = bindingKey.length();
+        int routingLength = routingKey.length();
+        int b = 0;
+        int r = 0;
+        // 最近一个 # 的位置, 以及它匹配到的 routingKey 位置
+        int hashB = -1;
+        int hashR = -1;
+        while (r <= routingLength) {
+            int routingEnd = segmentEnd(routingKey, r);
+            if (b <= bindingLength) {
+                int bindingEnd = segmentEnd(bindingKey, b);
+                if (isWildcard(bindingKey, b, bindingEnd, '#')) {
+                    // 先让 # 匹配 0 段
+                    hashB = b;
+                    hashR = r;
+                    b = bindingEnd + 1;
+                    continue;
+                }
+                if (isWildcard(bindingKey, b, bindingEnd, '*')
+                        || (bindingEnd - b == routingEnd - r && bindingKey.regionMatches(b, routingKey, r, bindingEnd - b))) {
+                    b = bindingEnd + 1;
+                    r = routingEnd + 1;
+                    continue;
                 }
             }
+            if (hashB < 0) {
+                return false;
+            }
+            // # 多匹配一段
+            hashR = segmentEnd(routingKey, hashR) + 1;
+            r = hashR;
+            b = segmentEnd(bindingKey, hashB) + 1;
         }
-        // 3. 处理返回值, 直接返回 dp 表的最后一个位置
-        return dp[m][n];
+        // routingKey 走完了, bindingKey 剩下的只能是 #
+        while (b <= bindingLength) {
+            int bindingEnd = segmentEnd(bindingKey, b);
+            if (!isWildcard(bindingKey, b, bindingEnd, '#')) {
+                return false;
+            }
+            b = bindingEnd + 1;
+        }
+        return true;
     }
 
+    // 从 start 开始的分段的结束位置（不包含）
+    static int segmentEnd(String key, int start) {
+        int dot = key.indexOf('.', start);
+        return dot < 0 ? key.length() : dot;
+    }
+
+    static boolean isWildcard(String key, int start, int end, char wildcard) {
+        return end - start == 1 && key.charAt(start) == wildcard;
+    }
 }
@@ -0,0 +1,116 @@
+package com.doublez.mqserver.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一个 topic 交换机上所有 bindingKey 组成的前缀树
+ * bindingKey 按照 . 切分，每一段是一个节点，* 和 # 也是普通的子节点；绑定的队列挂在 bindingKey 最后一段的节点上
+ * 路由的时候沿着 routingKey 走一遍树，就能拿到所有匹配的队列，不需要和每个绑定逐个匹配
+ * 修改加锁，查询不加锁：子节点和队列都放在并发容器里，查询最多看不到正在进行的修改
+ */
+public class TopicTrie {
+    private static final String STAR = "*";
+    private static final String HASH = "#";
+
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        //bindingKey 在这个节点结束的队列
+        final Set<String> queueNames = ConcurrentHashMap.newKeySet();
+
+        boolean isEmpty() {
+            return children.isEmpty() && queueNames.isEmpty();
+        }
+    }
+
+    private final Node root = new Node();
+
+    public synchronized void add(String bindingKey, String queueName) {
+        Node node = root;
+        for (String token : split(bindingKey)) {
+            node = node.children.computeIfAbsent(token, k -> new Node());
+        }
+        node.queueNames.add(queueName);
+    }
+
+    public synchronized void remove(String bindingKey, String queueName) {
+        List<String> tokens = split(bindingKey);
+        //记下经过的节点，删除之后把空的节点从下往上剪掉
+        List<Node> path = new ArrayList<>(tokens.size() + 1);
+        Node node = root;
+        path.add(node);
+        for (String token : tokens) {
+            node = node.children.get(token);
+            if (node == null) {
+                return;
+            }
+            path.add(node);
+        }
+        node.queueNames.remove(queueName);
+        for (int i = tokens.size(); i > 0 && path.get(i).isEmpty(); i--) {
+            path.get(i - 1).children.remove(tokens.get(i - 1));
+        }
+    }
+
+    public boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    //返回 bindingKey 和 routingKey 匹配的所有队列
+    public Set<String> match(String routingKey) {
+        Set<String> result = new HashSet<>();
+        match(root, routingKey == null ? "" : routingKey, 0, result);
+        return result;
+    }
+
+    //node 已经匹配了 routingKey 中 start 之前的分段，start 超过长度表示已经走完了
+    private void match(Node node, String routingKey, int start, Set<String> result) {
+        int length = routingKey.length();
+        //# 可以匹配 0 段或者多段
+        Node hash = node.children.get(HASH);
+        if (hash != null) {
+            for (int next = start; ; next = Router.segmentEnd(routingKey, next) + 1) {
+                match(hash, routingKey, next, result);
+                if (next > length) {
+                    break;
+                }
+            }
+        }
+        if (start > length) {
+            result.addAll(node.queueNames);
+            return;
+        }
+        int end = Router.segmentEnd(routingKey, start);
+        Node exact = node.children.get(routingKey.substring(start, end));
+        if (exact != null) {
+            match(exact, routingKey, end + 1, result);
+        }
+        //* 匹配一段
+        Node star = node.children.get(STAR);
+        if (star != null) {
+            match(star, routingKey, end + 1, result);
+        }
+    }
+
+    //和 split("\\.") 的结果一样，不经过正则表达式，只在修改绑定的时候使用
+    static List<String> split(String key) {
+        List<String> tokens = new ArrayList<>();
+        if (key == null) {
+            key = "";
+        }
+        for (int start = 0; start <= key.length(); ) {
+            int end = Router.segmentEnd(key, start);
+            tokens.add(key.substring(start, end));
+            start = end + 1;
+        }
+        //split 会去掉末尾的空字符串, 只剩一个空字符串的时候保留
+        while (tokens.size() > 1 && tokens.get(tokens.size() - 1).isEmpty()) {
+            tokens.remove(tokens.size() - 1);
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,148 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.BinaryReader;
+import com.doublez.common.BinaryWriter;
+import com.doublez.common.MqException;
+import com.doublez.mqserver.core.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 持久化消息的共享消息体存储
+ * 一条消息进入多个持久化队列时，消息体只在这里写一次，每个队列的记录中只保存 (bodySegmentId, bodyPosition)
+ * 复用 QueueLog 的分段格式，记录内容是 [body 长度(varint)] [body]
+ * 每条记录有一个引用数，等于还没有被删除的队列记录数；减到 0 之后记录标记为删除，最早的段中没有剩余的记录之后整段删除
+ * 引用数只保存在内存中，重启之后恢复队列消息的时候重新计算
+ * 队列并行恢复期间，还没有加载的队列的引用没有计算进来，所以所有队列恢复完成之前引用数减到 0 也不删除记录
+ */
+@Slf4j
+class BodyStore implements Closeable {
+    private final DirectoryLock directoryLock;
+    private final QueueLog queueLog;
+    //key: segmentId, value: (key: position, value: 引用数)
+    private final TreeMap<Long, Map<Long, Integer>> references = new TreeMap<>();
+    //completeRecovery 之前为 true
+    private boolean recovering = true;
+
+    private BodyStore(DirectoryLock directoryLock, QueueLog queueLog) {
+        this.directoryLock = directoryLock;
+        this.queueLog = queueLog;
+    }
+
+    //目录被其他数据中心使用的时候抛出 MqException
+    static BodyStore open(File dir, long segmentSize) throws IOException, MqException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("[BodyStore] 创建共享消息体目录失败! dir:" + dir.getAbsolutePath());
+        }
+        DirectoryLock directoryLock = DirectoryLock.acquire(dir);
+        try {
+            return new BodyStore(directoryLock, QueueLog.open(dir, segmentSize));
+        } catch (IOException | MqException e) {
+            directoryLock.close();
+            throw e;
+        }
+    }
+
+    //写入的数据由组提交线程和队列日志一起 force
+    QueueLog getQueueLog() {
+        return queueLog;
+    }
+
+    //把消息体写一次，每条消息都指向这条记录，引用数是消息的数量
+    synchronized void write(byte[] body, List<Message> messages) throws IOException {
+        BinaryWriter writer = new BinaryWriter(8 + body.length);
+        writer.writeBytes(body);
+        //QueueLog 把记录位置写回消息对象，这里只用来接收位置
+        Message holder = new Message();
+        queueLog.append(holder, writer.toByteArray());
+        references.computeIfAbsent(holder.getSegmentId(), k -> new HashMap<>())
+                .merge(holder.getPosition(), messages.size(), Integer::sum);
+        for (Message message : messages) {
+            message.setBodySegmentId(holder.getSegmentId());
+            message.setBodyPosition(holder.getPosition());
+        }
+    }
+
+    synchronized byte[] read(long segmentId, long position) throws IOException, MqException {
+        try {
+            return new BinaryReader(queueLog.read(segmentId, position)).readBytes();
+        } catch (IOException e) {
+            throw new MqException("[BodyStore] 消息体记录格式错误! segmentId:" + segmentId + ", position:" + position);
+        }
+    }
+
+    //只检查记录是否已经写入，不读取消息体，惰性队列恢复时用来代替 read
+    synchronized boolean contains(long segmentId, long position) throws IOException {
+        try {
+            return queueLog.readFlag(segmentId, position) == LogSegment.FLAG_VALID;
+        } catch (MqException e) {
+            return false;
+        }
+    }
+
+    //恢复队列消息的时候，每条引用这条记录的有效消息调用一次
+    synchronized void retain(long segmentId, long position) {
+        references.computeIfAbsent(segmentId, k -> new HashMap<>()).merge(position, 1, Integer::sum);
+    }
+
+    //引用这条记录的队列消息被删除了
+    synchronized void release(long segmentId, long position) throws IOException, MqException {
+        Map<Long, Integer> segment = references.get(segmentId);
+        if (segment == null || !segment.containsKey(position)) {
+            log.warn("[BodyStore] 释放不存在的引用, segmentId:{}, position:{}", segmentId, position);
+            return;
+        }
+        if (segment.merge(position, -1, Integer::sum) > 0 || recovering) {
+            return;
+        }
+        segment.remove(position);
+        queueLog.markDeleted(segmentId, position);
+        if (segment.isEmpty()) {
+            references.remove(segmentId);
+            sweep();
+        }
+    }
+
+    //所有队列恢复完成之后调用：删除恢复期间引用数减到 0 的记录和没有任何引用的旧段
+    synchronized void completeRecovery() throws IOException, MqException {
+        recovering = false;
+        for (Iterator<Map.Entry<Long, Map<Long, Integer>>> segments = references.entrySet().iterator(); segments.hasNext(); ) {
+            Map.Entry<Long, Map<Long, Integer>> segment = segments.next();
+            for (Iterator<Map.Entry<Long, Integer>> records = segment.getValue().entrySet().iterator(); records.hasNext(); ) {
+                Map.Entry<Long, Integer> record = records.next();
+                if (record.getValue() <= 0) {
+                    queueLog.markDeleted(segment.getKey(), record.getKey());
+                    records.remove();
+                }
+            }
+            if (segment.getValue().isEmpty()) {
+                segments.remove();
+            }
+        }
+        sweep();
+    }
+
+    //删除没有任何引用的旧段
+    synchronized void sweep() throws IOException {
+        long keepFrom = references.isEmpty() ? queueLog.activeSegmentId()
+                : Math.min(references.firstKey(), queueLog.activeSegmentId());
+        queueLog.deleteSegmentsBefore(keepFrom);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            queueLog.close();
+        } finally {
+            directoryLock.close();
+        }
+    }
+}
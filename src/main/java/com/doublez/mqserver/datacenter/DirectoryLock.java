@@ -0,0 +1,71 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.MqException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 目录的独占锁
+ * 共享消息体目录和溢出目录在 ./data 下只有一份，同一时间只能有一个数据中心使用，
+ * 第二个使用者打开的时候直接失败，而不是和第一个使用者互相覆盖、删除对方的文件
+ * 同一个进程中的使用者用 HELD 判断（关闭同一个文件的其他 FileChannel 会释放进程持有的文件锁），
+ * 其他进程用目录下的 .lock 文件锁判断
+ */
+@Slf4j
+class DirectoryLock implements Closeable {
+    static final String LOCK_FILE = ".lock";
+    //当前进程已经锁住的目录
+    private static final Set<String> HELD = ConcurrentHashMap.newKeySet();
+
+    private final String path;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private DirectoryLock(String path, FileChannel channel, FileLock lock) {
+        this.path = path;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    //目录需要已经存在
+    static DirectoryLock acquire(File dir) throws IOException, MqException {
+        String path = dir.getCanonicalPath();
+        if (!HELD.add(path)) {
+            throw new MqException("[DirectoryLock] 目录已经被当前进程中的其他数据中心使用! dir:" + path);
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw new MqException("[DirectoryLock] 目录已经被其他进程使用! dir:" + path);
+            }
+            return new DirectoryLock(path, channel, lock);
+        } catch (IOException | MqException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            HELD.remove(path);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+            channel.close();
+        } finally {
+            HELD.remove(path);
+        }
+    }
+}
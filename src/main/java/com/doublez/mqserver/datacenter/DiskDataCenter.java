@@ -1,15 +1,20 @@
 package com.doublez.mqserver.datacenter;
 
+import com.doublez.Application;
 import com.doublez.common.MqException;
 import com.doublez.mqserver.core.Binding;
 import com.doublez.mqserver.core.Exchange;
 import com.doublez.mqserver.core.MSGQueue;
 import com.doublez.mqserver.core.Message;
 import lombok.Data;
+import org.springframework.core.env.Environment;
 
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * 统一管理数据类，对使用者进行封装
@@ -20,8 +25,17 @@ public class DiskDataCenter {
     //管理数据文件中的数据
     private MessageFileManager messageFileManager = new MessageFileManager();
 
-    public void init(){
+    public void init() throws IOException, MqException {
         dataBaseManager.init();
+        //刷盘策略和段大小从配置文件中读取
+        Environment environment = Application.context.getEnvironment();
+        messageFileManager.setFlushPolicy(FlushPolicy.parse(environment.getProperty("mq.storage.flush-policy")));
+        messageFileManager.setSegmentSize(environment.getProperty("mq.storage.segment-size", Long.class,
+                MessageFileManager.DEFAULT_SEGMENT_SIZE));
+        messageFileManager.setCompactionRate(environment.getProperty("mq.storage.compaction-rate", Long.class,
+                MessageFileManager.DEFAULT_COMPACTION_RATE));
+        messageFileManager.setStatCheckpointInterval(environment.getProperty("mq.storage.stat-checkpoint-interval", Long.class,
+                MessageFileManager.DEFAULT_STAT_CHECKPOINT_INTERVAL_MS));
         messageFileManager.init();
     }
 
@@ -66,13 +80,53 @@ public class DiskDataCenter {
     public void sendMessage(MSGQueue queue, Message message) throws IOException, MqException {
         messageFileManager.sendMessage(queue,message);
     }
-    public void deleteMessage(MSGQueue queue, Message message) throws IOException, MqException, ClassNotFoundException {
+    //不阻塞调用线程，future 在消息按照刷盘策略落盘之后完成
+    public CompletableFuture<Void> sendMessageAsync(MSGQueue queue, Message message) throws IOException, MqException {
+        return messageFileManager.sendMessageAsync(queue,message);
+    }
+    //同一个队列的一批消息一次写入
+    public CompletableFuture<Void> sendMessagesAsync(MSGQueue queue, List<Message> messages) throws IOException, MqException {
+        return messageFileManager.sendMessagesAsync(queue,messages);
+    }
+    //同一条消息进入多个持久化队列时，消息体只写一次
+    public void shareBody(List<Message> messages) throws IOException, MqException {
+        messageFileManager.shareBody(messages);
+    }
+    //消息没有写入队列日志时释放共享消息体的引用
+    public void releaseSharedBody(Message message) throws IOException, MqException {
+        messageFileManager.releaseSharedBody(message);
+    }
+    public void deleteMessage(MSGQueue queue, Message message) throws IOException, MqException {
         messageFileManager.deleteMessage(queue,message);
+        //gc 在后台压缩线程中进行，不阻塞确认消息的线程
         if(messageFileManager.checkGC(queue.getName())){
-            messageFileManager.gc(queue);
+            messageFileManager.requestGC(queue);
         }
     }
-    public LinkedList<Message> loadMessageFromQueue(String queueName) throws MqException, ClassNotFoundException, IOException {
+    public LinkedList<Message> loadMessageFromQueue(String queueName) throws MqException, IOException {
         return messageFileManager.loadMessageFromQueue(queueName);
     }
+    public void loadMessageFromQueue(String queueName, Consumer<Message> visitor) throws MqException, IOException {
+        messageFileManager.loadMessageFromQueue(queueName, visitor);
+    }
+    //惰性队列只加载消息的索引，消息体推送之前再用 readBody 读回
+    public void loadMessageFromQueue(String queueName, Consumer<Message> visitor, boolean indexOnly) throws MqException, IOException {
+        messageFileManager.loadMessageFromQueue(queueName, visitor, indexOnly);
+    }
+    //关闭消息文件：已经提交的消息先落盘，写入正常关闭的统计检查点
+    public void close() throws IOException {
+        messageFileManager.close();
+    }
+    //所有队列的消息都恢复之后调用
+    public void completeRecovery() throws IOException {
+        messageFileManager.completeRecovery();
+    }
+    //读回换出内存的持久化消息的消息体
+    public byte[] readBody(MSGQueue queue, Message message) throws IOException, MqException {
+        return messageFileManager.readBody(queue, message);
+    }
+    //gc 移动消息之后通知内存中的消息对象
+    public void setRelocationListener(BiConsumer<String, Message> relocationListener) {
+        messageFileManager.setRelocationListener(relocationListener);
+    }
 }
@@ -0,0 +1,118 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.MqException;
+
+/**
+ * 持久化消息的刷盘（fsync）策略
+ * ALWAYS   -> 每一批写入之后都 force()，发布者返回时消息一定已经落盘
+ * INTERVAL -> 每隔 intervalMs 毫秒 force() 一次，同一个时间窗口内的发布者共享一次 force()
+ * BATCH    -> 累计 batchSize 条消息 force() 一次，最多等待 intervalMs 毫秒
+ * NEVER    -> 只写入 page cache，由操作系统决定什么时候落盘
+ */
+public class FlushPolicy {
+    public enum Mode {
+        ALWAYS, INTERVAL, BATCH, NEVER
+    }
+    //BATCH 策略下凑不够一批时的最长等待时间
+    public static final long DEFAULT_BATCH_MAX_DELAY_MS = 10;
+
+    private final Mode mode;
+    private final long intervalMs;
+    private final int batchSize;
+
+    private FlushPolicy(Mode mode, long intervalMs, int batchSize) {
+        this.mode = mode;
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+    }
+
+    public static FlushPolicy always() {
+        return new FlushPolicy(Mode.ALWAYS, 0, 1);
+    }
+
+    public static FlushPolicy never() {
+        return new FlushPolicy(Mode.NEVER, 0, 1);
+    }
+
+    public static FlushPolicy everyMillis(long intervalMs) {
+        return new FlushPolicy(Mode.INTERVAL, intervalMs, Integer.MAX_VALUE);
+    }
+
+    public static FlushPolicy everyMessages(int batchSize) {
+        return new FlushPolicy(Mode.BATCH, DEFAULT_BATCH_MAX_DELAY_MS, batchSize);
+    }
+
+    //解析配置中的策略: always / never / interval:毫秒 / batch:消息数
+    public static FlushPolicy parse(String text) throws MqException {
+        if (text == null || text.isBlank()) {
+            return always();
+        }
+        String[] parts = text.trim().toLowerCase().split(":");
+        try {
+            switch (parts[0]) {
+                case "always":
+                    return always();
+                case "never":
+                    return never();
+                //间隔和消息数必须是正数
+                case "interval":
+                    long intervalMs = Long.parseLong(parts[1]);
+                    if (intervalMs > 0) {
+                        return everyMillis(intervalMs);
+                    }
+                    break;
+                case "batch":
+                    int batchSize = Integer.parseInt(parts[1]);
+                    if (batchSize > 0) {
+                        return everyMessages(batchSize);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            //统一在下面抛出异常
+        }
+        throw new MqException("[FlushPolicy] 无法识别的刷盘策略: " + text);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    //已经有 pending 条消息写入但没有落盘，最早的一条等待了 waitedMs 毫秒，判断现在是否需要 force()
+    boolean shouldFlush(int pending, long waitedMs) {
+        if (pending == 0) {
+            return false;
+        }
+        switch (mode) {
+            case INTERVAL:
+                return waitedMs >= intervalMs;
+            case BATCH:
+                return pending >= batchSize || waitedMs >= intervalMs;
+            default:
+                //ALWAYS 和 NEVER 每一批都直接完成
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case INTERVAL:
+                return "interval:" + intervalMs;
+            case BATCH:
+                return "batch:" + batchSize;
+            default:
+                return mode.name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.MqException;
+import com.doublez.mqserver.core.MSGQueue;
+import com.doublez.mqserver.core.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 持久化消息的组提交线程
+ * 并发的发布者把写入请求放进队列后等待 future，写线程把同一时间到达的请求合并成一次写入，
+ * 再按照 FlushPolicy 对这一批（或者一个时间窗口内的多批）只调用一次 force()，然后统一唤醒发布者
+ */
+@Slf4j
+class GroupCommitWriter {
+    //一次最多合并的请求数量
+    private static final int MAX_BATCH = 1024;
+    //空闲时检查是否关闭的间隔
+    private static final long IDLE_POLL_MS = 100;
+
+    //一条（或者同一个队列的一批）待写入的消息，一批消息只有一个 future
+    static class AppendRequest {
+        final MSGQueue queue;
+        final List<Message> messages;
+        final List<byte[]> payloads;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        AppendRequest(MSGQueue queue, Message message, byte[] payload) {
+            this(queue, List.of(message), List.of(payload));
+        }
+
+        AppendRequest(MSGQueue queue, List<Message> messages, List<byte[]> payloads) {
+            this.queue = queue;
+            this.messages = messages;
+            this.payloads = payloads;
+        }
+    }
+
+    //把同一个队列的一批消息写入日志，返回写入的日志，用于之后按照顺序 force()
+    @FunctionalInterface
+    interface BatchAppender {
+        List<QueueLog> append(MSGQueue queue, List<AppendRequest> requests) throws IOException, MqException;
+    }
+
+    private final BlockingQueue<AppendRequest> requests = new LinkedBlockingQueue<>();
+    private final FlushPolicy flushPolicy;
+    private final BatchAppender appender;
+    //已经写入但是还没有 force() 的请求，只在写线程中访问
+    private final List<AppendRequest> unflushed = new ArrayList<>();
+    private int unflushedMessages = 0;
+    //按照加入的顺序 force，共享消息体存储排在引用它的队列日志前面
+    private final Set<QueueLog> dirtyLogs = new LinkedHashSet<>();
+    private long firstUnflushedAt;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    GroupCommitWriter(FlushPolicy flushPolicy, BatchAppender appender) {
+        this.flushPolicy = flushPolicy;
+        this.appender = appender;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::run, "group-commit-writer");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("[GroupCommitWriter] 组提交线程启动, flushPolicy:{}", flushPolicy);
+    }
+
+    //提交一条写入请求，future 在消息按照刷盘策略落盘之后完成
+    CompletableFuture<Void> submit(AppendRequest request) {
+        if (!running) {
+            request.future.completeExceptionally(new MqException("[GroupCommitWriter] 组提交线程没有运行!"));
+            return request.future;
+        }
+        requests.add(request);
+        return request.future;
+    }
+
+    //停止写线程，已经提交的请求会先写完并落盘
+    void shutdown() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<AppendRequest> batch = new ArrayList<>();
+        while (running || !requests.isEmpty()) {
+            try {
+                AppendRequest first = requests.poll(waitTime(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    requests.drainTo(batch, MAX_BATCH - 1);
+                    write(batch);
+                    batch.clear();
+                }
+                long waited = unflushed.isEmpty() ? 0 : System.currentTimeMillis() - firstUnflushedAt;
+                if (flushPolicy.shouldFlush(unflushedMessages, waited)) {
+                    flush();
+                }
+            } catch (InterruptedException e) {
+                log.error("[GroupCommitWriter] 组提交线程被中断");
+                break;
+            }
+        }
+        flush();
+        //中断退出时剩下的请求不会再被处理
+        AppendRequest request;
+        while ((request = requests.poll()) != null) {
+            request.future.completeExceptionally(new MqException("[GroupCommitWriter] 组提交线程已经停止!"));
+        }
+    }
+
+    //下一次 poll 最多等待的时间，有未落盘的数据时不能超过刷盘策略的期限
+    private long waitTime() {
+        if (unflushed.isEmpty()) {
+            return IDLE_POLL_MS;
+        }
+        long deadline = firstUnflushedAt + flushPolicy.getIntervalMs();
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    //按照队列分组，每个队列的一组消息只写入一次
+    private void write(List<AppendRequest> batch) {
+        Map<String, List<AppendRequest>> groups = new LinkedHashMap<>();
+        for (AppendRequest request : batch) {
+            groups.computeIfAbsent(request.queue.getName(), k -> new ArrayList<>()).add(request);
+        }
+        for (List<AppendRequest> group : groups.values()) {
+            try {
+                List<QueueLog> queueLogs = appender.append(group.get(0).queue, group);
+                if (unflushed.isEmpty()) {
+                    firstUnflushedAt = System.currentTimeMillis();
+                }
+                dirtyLogs.addAll(queueLogs);
+                unflushed.addAll(group);
+                for (AppendRequest request : group) {
+                    unflushedMessages += request.messages.size();
+                }
+            } catch (IOException | MqException | RuntimeException e) {
+                log.error("[GroupCommitWriter] 写入消息失败, queueName:{}, e:{}", group.get(0).queue.getName(), e.getMessage());
+                for (AppendRequest request : group) {
+                    request.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    //对这一段时间写入过的日志 force()，然后唤醒等待的发布者
+    private void flush() {
+        if (unflushed.isEmpty()) {
+            return;
+        }
+        Exception failure = null;
+        if (flushPolicy.getMode() != FlushPolicy.Mode.NEVER) {
+            for (QueueLog queueLog : dirtyLogs) {
+                try {
+                    queueLog.force();
+                } catch (IOException e) {
+                    log.error("[GroupCommitWriter] force 失败, e:{}", e.getMessage());
+                    failure = e;
+                }
+            }
+        }
+        for (AppendRequest request : unflushed) {
+            if (failure == null) {
+                request.future.complete(null);
+            } else {
+                request.future.completeExceptionally(failure);
+            }
+        }
+        unflushed.clear();
+        unflushedMessages = 0;
+        dirtyLogs.clear();
+    }
+}
@@ -0,0 +1,436 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.BinaryTool;
+import com.doublez.common.MqException;
+import com.doublez.mqserver.core.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 队列日志中的一个段文件
+ * 文件格式: [段头: magic(4) + version(4)] [记录] [记录] ...
+ * 记录格式: [长度(4)] [有效标记(1)] [CRC32(4)] [消息内容(长度)]，消息内容的格式见 MessageRecord
+ * 有效标记在记录中的位置是固定的，删除消息只需要把这一个字节改成 0x0，不需要重新序列化消息
+ * CRC32 只覆盖消息内容，修改有效标记不影响校验和
+ * 只有活跃段持有长期打开的 FileChannel，写入位置保存在内存中，不再每次调用 File.length()
+ * 封存的段不会再追加，整个文件通过 MappedByteBuffer 映射，读取记录时直接返回映射内存上的切片
+ */
+@Slf4j
+class LogSegment implements Closeable {
+    static final int MAGIC = 0x4D515347;//"MQSG"
+    //版本 1 的记录没有有效标记，有效性保存在序列化的 Message 中
+    //版本 2 的记录有有效标记，但是消息内容还是 Java 序列化的 Message
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 8;
+    //记录头: 长度(4) + 有效标记(1) + CRC32(4)
+    static final int RECORD_HEADER_SIZE = 9;
+    //有效标记和校验和相对记录开头的偏移量
+    static final int FLAG_OFFSET = 4;
+    static final int CRC_OFFSET = 5;
+    static final byte FLAG_VALID = 0x1;
+    static final byte FLAG_DELETED = 0x0;
+    //升级段文件时使用的临时文件后缀
+    static final String UPGRADE_SUFFIX = ".upgrade";
+    //压缩段文件时使用的临时文件后缀
+    static final String COMPACT_SUFFIX = ".compact";
+
+    private final long id;
+    private final File file;
+    //只有活跃段才会打开
+    private FileChannel channel;
+    //封存段的内存映射，第一次读取的时候创建
+    private MappedByteBuffer mapped;
+    //下一条记录写入的位置
+    private long writePosition;
+
+    private LogSegment(long id, File file) {
+        this.id = id;
+        this.file = file;
+    }
+
+    //创建一个新的段文件并写入段头，作为活跃段返回
+    //段头落盘之后才返回，目录项由调用者刷盘
+    static LogSegment create(File dir, long id) throws IOException {
+        LogSegment segment = new LogSegment(id, new File(dir, fileName(id)));
+        segment.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            segment.channel.write(header);
+        }
+        segment.channel.force(true);
+        segment.writePosition = HEADER_SIZE;
+        return segment;
+    }
+
+    //打开一个已经存在的段文件，校验段头并通过扫描记录恢复写入位置
+    //按照封存段打开，如果是最后一个段需要再调用 activate
+    static LogSegment open(File file, long id) throws IOException, MqException {
+        LogSegment segment = new LogSegment(id, file);
+        segment.writePosition = file.length();
+        MappedByteBuffer buffer = segment.map();
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new MqException("[LogSegment] 段文件格式错误! file:" + file.getAbsolutePath());
+        }
+        int version = buffer.getInt(4);
+        if (version == 1 || version == 2) {
+            //旧版本的段先转换成当前的格式再打开
+            upgrade(file, buffer, version);
+            segment.mapped = null;
+            segment.writePosition = file.length();
+            buffer = segment.map();
+        } else if (version != VERSION) {
+            throw new MqException("[LogSegment] 不支持的段文件版本! version:" + version + ", file:" + file.getAbsolutePath());
+        }
+        //在映射内存上只读取记录头，跳过记录内容
+        int position = HEADER_SIZE;
+        int length = buffer.limit();
+        while (position + RECORD_HEADER_SIZE <= length) {
+            int size = buffer.getInt(position);
+            if (size <= 0 || (long) position + RECORD_HEADER_SIZE + size > length) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + size;
+        }
+        segment.writePosition = position;
+        segment.mapped = buffer;
+        return segment;
+    }
+
+    //版本 1 的记录是 [长度(4)] [序列化的 Message]，有效性需要反序列化之后才知道
+    //版本 2 的记录是 [长度(4)] [有效标记(1)] [序列化的 Message]
+    //把每一条记录反序列化之后按照 MessageRecord 重新编码，先写入临时文件，落盘之后再原子地替换原来的段文件，
+    //中途崩溃只会留下临时文件
+    private static void upgrade(File file, MappedByteBuffer old, int version) throws IOException, MqException {
+        int oldHeaderSize = version == 1 ? 4 : 5;
+        File upgradeFile = new File(file.getPath() + UPGRADE_SUFFIX);
+        int count = 0;
+        try (FileChannel out = FileChannel.open(upgradeFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip());
+            int position = HEADER_SIZE;
+            while (position + oldHeaderSize <= old.limit()) {
+                int size = old.getInt(position);
+                if (size <= 0 || (long) position + oldHeaderSize + size > old.limit()) {
+                    break;
+                }
+                Message message;
+                try {
+                    message = (Message) BinaryTool.fromBytes(old.slice(position + oldHeaderSize, size));
+                } catch (ClassNotFoundException e) {
+                    throw new MqException("[LogSegment] 升级段文件时反序列化失败! file:" + file.getAbsolutePath());
+                }
+                byte flag = version == 1 ? message.getIsValid() : old.get(position + FLAG_OFFSET);
+                byte[] payload = MessageRecord.encode(message);
+                writeFully(out, recordHeader(payload, flag));
+                writeFully(out, ByteBuffer.wrap(payload));
+                position += oldHeaderSize + size;
+                count++;
+            }
+            out.force(false);
+        }
+        Files.move(upgradeFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("[LogSegment] 段文件升级完成, file:{}, version:{} -> {}, count:{}", file.getName(), version, VERSION, count);
+    }
+
+    static String fileName(long id) {
+        return String.format("queue_data_%08d.txt", id);
+    }
+
+    //根据文件名解析段编号，不是段文件返回 -1
+    static long parseId(String fileName) {
+        if (!fileName.startsWith("queue_data_") || !fileName.endsWith(".txt")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring("queue_data_".length(), fileName.length() - ".txt".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long getId() {
+        return id;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getWritePosition() {
+        return writePosition;
+    }
+
+    //活跃段在打开的时候需要把上次崩溃残留的半条记录截断
+    void activate() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        //活跃段还会继续追加，不使用封存段的映射
+        mapped = null;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //崩溃时最后几条记录的长度可能已经写入但是内容不完整，从第一条校验失败的记录开始截断
+        if (writePosition > HEADER_SIZE) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, writePosition);
+            int position = HEADER_SIZE;
+            //记录头或者记录内容不完整的时候也从这里截断，不能越界读取
+            while (position + RECORD_HEADER_SIZE <= writePosition) {
+                int size = buffer.getInt(position);
+                if (size <= 0 || (long) position + RECORD_HEADER_SIZE + size > writePosition
+                        || buffer.getInt(position + CRC_OFFSET) != crc(buffer.slice(position + RECORD_HEADER_SIZE, size))) {
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + size;
+            }
+            writePosition = position;
+        }
+        if (channel.size() > writePosition) {
+            log.info("[LogSegment] 截断不完整的记录, file:{}, size:{}, writePosition:{}", file.getName(), channel.size(), writePosition);
+            channel.truncate(writePosition);
+        }
+    }
+
+    //追加一批有效的记录，通过一次 gathering write 写入，返回每条记录开始的位置
+    long[] append(List<byte[]> payloads) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[payloads.size() * 2];
+        long[] positions = new long[payloads.size()];
+        long position = writePosition;
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] payload = payloads.get(i);
+            buffers[i * 2] = recordHeader(payload, FLAG_VALID);
+            buffers[i * 2 + 1] = ByteBuffer.wrap(payload);
+            positions[i] = position;
+            position += RECORD_HEADER_SIZE + payload.length;
+        }
+        channel.position(writePosition);
+        long remaining = position - writePosition;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        writePosition = position;
+        return positions;
+    }
+
+    //把活跃段中已经写入的数据刷到磁盘
+    void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    //读取 position 处的一条记录内容（不包含记录头）
+    //封存段直接返回映射内存上的只读切片，不会复制数据
+    ByteBuffer read(long position) throws IOException, MqException {
+        if (channel != null) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, header, position);
+            ByteBuffer payload = ByteBuffer.allocate(checkSize(header.getInt(0), position));
+            readFully(channel, payload, position + RECORD_HEADER_SIZE);
+            return checkCrc(header.getInt(CRC_OFFSET), payload.flip(), position);
+        }
+        MappedByteBuffer buffer = map();
+        int size = checkSize(buffer.getInt((int) position), position);
+        ByteBuffer payload = buffer.slice((int) position + RECORD_HEADER_SIZE, size).asReadOnlyBuffer();
+        return checkCrc(buffer.getInt((int) position + CRC_OFFSET), payload, position);
+    }
+
+    //把 position 处记录的有效标记改成 flag，只写一个字节，返回修改之前的标记
+    byte writeFlag(long position, byte flag) throws IOException, MqException {
+        if (position < HEADER_SIZE || position + RECORD_HEADER_SIZE > writePosition) {
+            throw new MqException("[LogSegment] 记录位置错误! file:" + file.getName() + ", position:" + position);
+        }
+        long flagPosition = position + FLAG_OFFSET;
+        if (channel != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            readFully(channel, buffer, flagPosition);
+            byte old = buffer.get(0);
+            if (old != flag) {
+                buffer.put(0, flag).rewind();
+                channel.write(buffer, flagPosition);
+            }
+            return old;
+        }
+        MappedByteBuffer buffer = map();
+        byte old = buffer.get((int) flagPosition);
+        if (old != flag) {
+            buffer.put((int) flagPosition, flag);
+        }
+        return old;
+    }
+
+    //遍历段内所有完整的记录，记录内容是映射内存上的切片，只在 visit 期间有效
+    //校验和不一致说明段文件损坏，直接抛出异常
+    void scan(RecordVisitor visitor) throws IOException, MqException {
+        MappedByteBuffer buffer = view();
+        int position = HEADER_SIZE;
+        while (position < writePosition) {
+            int size = checkSize(buffer.getInt(position), position);
+            byte flag = buffer.get(position + FLAG_OFFSET);
+            ByteBuffer payload = buffer.slice(position + RECORD_HEADER_SIZE, size).asReadOnlyBuffer();
+            visitor.visit(position, flag, checkCrc(buffer.getInt(position + CRC_OFFSET), payload, position));
+            position += RECORD_HEADER_SIZE + size;
+        }
+    }
+
+    //统计段中的记录数和有效记录数 {total, valid}，只读取记录头
+    int[] countRecords() throws IOException, MqException {
+        MappedByteBuffer buffer = view();
+        int total = 0;
+        int valid = 0;
+        int position = HEADER_SIZE;
+        while (position < writePosition) {
+            int size = checkSize(buffer.getInt(position), position);
+            total++;
+            if (buffer.get(position + FLAG_OFFSET) == FLAG_VALID) {
+                valid++;
+            }
+            position += RECORD_HEADER_SIZE + size;
+        }
+        return new int[]{total, valid};
+    }
+
+    //读取 position 处记录的有效标记
+    byte readFlag(long position) throws IOException, MqException {
+        if (position < HEADER_SIZE || position + RECORD_HEADER_SIZE > writePosition) {
+            throw new MqException("[LogSegment] 记录位置错误! file:" + file.getName() + ", position:" + position);
+        }
+        if (channel != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            readFully(channel, buffer, position + FLAG_OFFSET);
+            return buffer.get(0);
+        }
+        return map().get((int) position + FLAG_OFFSET);
+    }
+
+    //把封存段中的有效记录原样（记录头和校验和不变）复制到 target，当前段不做任何修改
+    //每复制一条记录调用一次 listener，listener 返回 false 时放弃复制并返回 false
+    //复制期间其他线程仍然可以删除消息，只会修改当前段中的有效标记
+    boolean copyValidRecords(File target, CopyListener listener) throws IOException, MqException {
+        if (channel != null) {
+            throw new MqException("[LogSegment] 活跃段不能压缩! file:" + file.getName());
+        }
+        MappedByteBuffer buffer = map();
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip());
+            long outPosition = HEADER_SIZE;
+            int position = HEADER_SIZE;
+            while (position < writePosition) {
+                int size = checkSize(buffer.getInt(position), position);
+                if (buffer.get(position + FLAG_OFFSET) == FLAG_VALID) {
+                    ByteBuffer payload = buffer.slice(position + RECORD_HEADER_SIZE, size).asReadOnlyBuffer();
+                    checkCrc(buffer.getInt(position + CRC_OFFSET), payload, position);
+                    writeFully(out, buffer.slice(position, RECORD_HEADER_SIZE + size));
+                    if (!listener.copied(position, outPosition, payload)) {
+                        return false;
+                    }
+                    outPosition += RECORD_HEADER_SIZE + size;
+                }
+                position += RECORD_HEADER_SIZE + size;
+            }
+            out.force(false);
+        }
+        return true;
+    }
+
+    //段写满之后封存，落盘后关闭长期持有的 FileChannel，之后的读写通过内存映射
+    void seal() throws IOException {
+        force();
+        close();
+    }
+
+    //活跃段临时映射已经写入的部分，封存段使用缓存的映射
+    private MappedByteBuffer view() throws IOException {
+        return channel != null
+                ? channel.map(FileChannel.MapMode.READ_ONLY, 0, writePosition)
+                : map();
+    }
+
+    //映射封存段已经写入的部分，映射在关闭 FileChannel 之后依然有效，直到被 GC 回收
+    private MappedByteBuffer map() throws IOException {
+        if (mapped == null) {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                mapped = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, writePosition);
+            }
+        }
+        return mapped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    //释放映射，段文件被删除之后调用
+    void release() throws IOException {
+        close();
+        mapped = null;
+    }
+
+    private int checkSize(int size, long position) throws MqException {
+        if (size <= 0 || position + RECORD_HEADER_SIZE + size > writePosition) {
+            throw new MqException("[LogSegment] 记录长度错误! file:" + file.getName() + ", position:" + position + ", size:" + size);
+        }
+        return size;
+    }
+
+    private ByteBuffer checkCrc(int expected, ByteBuffer payload, long position) throws MqException {
+        if (crc(payload) != expected) {
+            throw new MqException("[LogSegment] 记录校验和错误! file:" + file.getName() + ", position:" + position);
+        }
+        return payload;
+    }
+
+    //有效的记录头: [长度] [有效标记] [消息内容的 CRC32]
+    private static ByteBuffer recordHeader(byte[] payload, byte flag) {
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE)
+                .putInt(payload.length)
+                .put(flag)
+                .putInt(crc(ByteBuffer.wrap(payload)))
+                .flip();
+    }
+
+    private static int crc(ByteBuffer payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload.duplicate());
+        return (int) crc32.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(long position, byte flag, ByteBuffer payload) throws IOException, MqException;
+    }
+
+    @FunctionalInterface
+    interface CopyListener {
+        boolean copied(long oldPosition, long newPosition, ByteBuffer payload) throws IOException, MqException;
+    }
+}
@@ -1,17 +1,31 @@
 package com.doublez.mqserver.datacenter;
 
+import com.doublez.Application;
 import com.doublez.common.MqException;
 import com.doublez.mqserver.core.Binding;
 import com.doublez.mqserver.core.Exchange;
 import com.doublez.mqserver.core.MSGQueue;
 import com.doublez.mqserver.core.Message;
+import com.doublez.mqserver.core.TopicTrie;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
 
 
+import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 public class MemoryDataCenter {
@@ -21,13 +35,51 @@ public class MemoryDataCenter {
     private ConcurrentHashMap<String, MSGQueue> queueMap = new ConcurrentHashMap<>();
     //绑定（Binding）：嵌套的`HashMap`，`key`: ExchangeName, `value`: HashMap(`key`: queueName,` value`: Binding Object)
     private ConcurrentHashMap<String, ConcurrentHashMap<String, Binding>> bindingsMap = new ConcurrentHashMap<>();
+    //每个交换机的 bindingKey 前缀树，和 bindingsMap 一起修改，topic 交换机路由时使用, key: ExchangeName
+    private ConcurrentHashMap<String, TopicTrie> topicTries = new ConcurrentHashMap<>();
     //消息（Message）：使用`HashMap`，`key`: MessageId, `value`: Message Object
     private ConcurrentHashMap<String,Message> messageMap = new ConcurrentHashMap<>();
-    //队列和消息直接的关联：`嵌套的HashMap`, `key`: queueName, `value`: LinkedList(每个元素都是Message Object)
-    private ConcurrentHashMap<String, LinkedList<Message>> queueMessageMap = new ConcurrentHashMap<>();
+    //已经交给组提交线程、还没有放进 messageMap 的持久化消息, key: messageId
+    //落盘之后到投递之前 gc 也可能移动这些消息，relocate 需要更新同一个消息对象
+    private ConcurrentHashMap<String,Message> inFlightMessages = new ConcurrentHashMap<>();
+    //队列和消息直接的关联：`key`: queueName, `value`: MessageBuffer(按照顺序存放等待推送的 Message Object)
+    private ConcurrentHashMap<String, MessageBuffer> queueMessageMap = new ConcurrentHashMap<>();
     //未被确认的消息：`嵌套的HashMap`, `key`: queueName, `value`: HashMap(key: messageId, value: Message)
     private ConcurrentHashMap<String, ConcurrentHashMap<String, Message>> queueMessageWaitACK = new ConcurrentHashMap<>();
 
+    //默认每个队列在内存中保留 64MB 等待推送的消息体，所有队列合计 256MB
+    public static final long DEFAULT_QUEUE_BODY_LIMIT = 64L * 1024 * 1024;
+    public static final long DEFAULT_TOTAL_BODY_LIMIT = 256L * 1024 * 1024;
+    //推送一批消息的时候，顺便把后面这么多条换出内存的消息体读回来
+    private static final int READ_AHEAD = 64;
+    //内存预算，0 表示不限制。超出之后新来的消息体换出内存：持久化消息只保留在队列日志中，非持久化消息写入溢出文件
+    private long queueBodyLimit = DEFAULT_QUEUE_BODY_LIMIT;
+    private long totalBodyLimit = DEFAULT_TOTAL_BODY_LIMIT;
+    //等待推送的消息中，消息体在内存中的字节数, key: queueName
+    private ConcurrentHashMap<String, AtomicLong> queueBodyBytes = new ConcurrentHashMap<>();
+    private AtomicLong totalBodyBytes = new AtomicLong(0);
+    //用来读回换出内存的持久化消息，没有调用 init 的时候不换出
+    private DiskDataCenter diskDataCenter;
+    //非持久化消息的溢出文件，第一次用到的时候创建
+    private SpillLog spillLog;
+
+    //默认最多同时恢复 8 个队列
+    public static final int DEFAULT_RECOVERY_PARALLELISM = Math.min(8, Runtime.getRuntime().availableProcessors());
+    //还在恢复消息的队列，恢复完成之后删除, key: queueName
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> recoveringQueues = new ConcurrentHashMap<>();
+    //所有队列恢复完成之后完成
+    private volatile CompletableFuture<Void> recoveryFuture = CompletableFuture.completedFuture(null);
+
+    //开启消息体换出，内存预算从配置文件中读取
+    public void init(DiskDataCenter diskDataCenter) {
+        Environment environment = Application.context.getEnvironment();
+        queueBodyLimit = environment.getProperty("mq.memory.queue-body-limit", Long.class, DEFAULT_QUEUE_BODY_LIMIT);
+        totalBodyLimit = environment.getProperty("mq.memory.total-body-limit", Long.class, DEFAULT_TOTAL_BODY_LIMIT);
+        this.diskDataCenter = diskDataCenter;
+        //gc 之后内存中的消息需要指向新的位置，才能正确地读回消息体和删除消息
+        diskDataCenter.setRelocationListener(this::relocate);
+    }
+
     public void insertExchange(Exchange exchange) {
         exchangeMap.put(exchange.getName(), exchange);
         log.info("[MemoryDataCenter] 交互机添加成功, exchangeName：{}" ,exchange.getName());
@@ -49,11 +101,47 @@ public class MemoryDataCenter {
         return queueMap.get(queueName);
     }
 
+    //删除队列的同时丢掉它还没有推送和还没有确认的消息，消息体占用的内存预算和溢出文件中的记录一起释放
     public void deleteQueue(String queueName) {
         queueMap.remove(queueName);
+        MessageBuffer messages = queueMessageMap.remove(queueName);
+        if(messages != null) {
+            List<Message> remaining = new ArrayList<>();
+            messages.drainTo(remaining, Integer.MAX_VALUE);
+            for(Message message : remaining) {
+                messageMap.remove(message.getMessageId());
+                discardSpilled(queueName, message);
+            }
+        }
+        ConcurrentHashMap<String, Message> waitACK = queueMessageWaitACK.remove(queueName);
+        if(waitACK != null) {
+            for(String messageId : waitACK.keySet()) {
+                messageMap.remove(messageId);
+            }
+        }
+        //预读可能刚刚把消息体计入了预算，所以最后再扣除
+        AtomicLong bytes = queueBodyBytes.remove(queueName);
+        if(bytes != null) {
+            totalBodyBytes.addAndGet(-bytes.get());
+        }
         log.info("[MemoryDataCenter] 队列删除成功, queueName：{}", queueName);
     }
 
+    //被删除的队列中换出到溢出文件的消息体不会再读回
+    private void discardSpilled(String queueName, Message message) {
+        synchronized (message) {
+            if(message.getBodyLocation() != Message.BODY_IN_SPILL) {
+                return;
+            }
+            try {
+                spillLog().release(message);
+            } catch (IOException | MqException e) {
+                log.error("[MemoryDataCenter] 释放溢出的消息体失败, queueName:{}, messageId:{}, e:{}",
+                        queueName, message.getMessageId(), e.getMessage());
+            }
+        }
+    }
+
     public void insertBinding(Binding binding) throws MqException {
         //1. 先查找 exchangeName 对于的hash表是否存在
 //        ConcurrentHashMap<String, Binding> bindingMap = bindingsMap.get(binding.getExchangeName());
@@ -70,6 +158,8 @@ public class MemoryDataCenter {
             }
             //bindingsMap 键值对中的bindingMap存的是对象的引用，这里直接put就可以，不需要再put到bindingsMap中
             bindingMap.put(binding.getQueueName(), binding);
+            topicTries.computeIfAbsent(binding.getExchangeName(), k -> new TopicTrie())
+                    .add(binding.getBindingKey(), binding.getQueueName());
         }
         log.info("[MemoryDataCenter] 绑定添加成功, queueName: {}, exchangeName:{}",binding.getQueueName(),binding.getExchangeName());
         //下面方法等价于上面，但是异常无法抛出（除非使用一个标志位）
@@ -101,12 +191,24 @@ public class MemoryDataCenter {
         return bindingsMap.get(exchangeName);
     }
 
+    //topic 交换机上 bindingKey 和 routingKey 匹配的所有队列名
+    public Set<String> matchTopic(String exchangeName, String routingKey) {
+        TopicTrie trie = topicTries.get(exchangeName);
+        return trie == null ? Collections.emptySet() : trie.match(routingKey);
+    }
+
     public void deleteBinding(Binding binding) throws MqException {
         ConcurrentHashMap<String,Binding> bindingMap = bindingsMap.get(binding.getExchangeName());
         if(!bindingMap.containsKey(binding.getQueueName())) {
             throw new MqException("[MemoryDataCenter] 绑定不存在 exchange :" + binding.getExchangeName() + ", queueName : " + binding.getQueueName());
         }
-        bindingMap.remove(binding.getQueueName());
+        synchronized(bindingMap) {
+            Binding removed = bindingMap.remove(binding.getQueueName());
+            TopicTrie trie = topicTries.get(binding.getExchangeName());
+            if(removed != null && trie != null) {
+                trie.remove(removed.getBindingKey(), removed.getQueueName());
+            }
+        }
         log.info("[MemoryDataCenter] 绑定删除成功, queueName: {}, exchangeName:{}",binding.getQueueName(),binding.getExchangeName());
     }
 
@@ -114,6 +216,14 @@ public class MemoryDataCenter {
         messageMap.put(message.getMessageId(), message);
         log.info("[MemoryDataCenter] 添加信息成功, messageId:{}",message.getMessageId());
     }
+    //持久化消息写入段文件之前调用，落盘之后由 sendMessage 放进 messageMap
+    public void addInFlightMessage(Message message) {
+        inFlightMessages.put(message.getMessageId(), message);
+    }
+    //写入段文件失败，这条消息不会再被投递
+    public void removeInFlightMessage(Message message) {
+        inFlightMessages.remove(message.getMessageId());
+    }
     public Message getMessage(String messageId) {
         return messageMap.get(messageId);
     }
@@ -129,35 +239,59 @@ public class MemoryDataCenter {
 //            messages = new LinkedList<>();
 //        }
 //        messages.add(message);
-        LinkedList<Message> messages = queueMessageMap.computeIfAbsent(queue.getName(), k -> new LinkedList<>());
-        //TODO 这里锁可以进一步优化
-        synchronized(messages) {
-            messages.add(message);
-        }
-        //添加一份到消息中心
+        //写入不需要加锁
+        MessageBuffer messages = queueMessageMap.computeIfAbsent(queue.getName(), k -> new MessageBuffer());
+        //超出内存预算的消息体换出内存
+        admit(queue, message);
+        messages.offer(message);
+        //添加一份到消息中心，先放进 messageMap 再移出 inFlightMessages，relocate 任何时候都能找到这条消息
         addMessage(message);
+        inFlightMessages.remove(message.getMessageId());
         log.info("[MemoryDataCenter] 添加信息到队列中成功，queueName:{}, messageId: {}",queue.getName(),message.getMessageId());
     }
     //获取消息
     public Message pollQueueMessages(String queueName) {
-        LinkedList<Message> messages = queueMessageMap.get(queueName);
-        if(messages == null || messages.isEmpty()) {
+        MessageBuffer messages = queueMessageMap.get(queueName);
+        if(messages == null) {
             return null;
         }
         Message currentMessage = messages.poll();
+        if(currentMessage == null) {
+            return null;
+        }
+        leave(queueName, currentMessage);
         log.info("[MemoryDataCenter] 信息从队列取出成功，queueName:{}, messageId: {}",queueName,currentMessage.getMessageId());
         return currentMessage;
     }
+    //一次最多取出 max 条消息放进 target，返回取出的数量
+    public int pollQueueMessages(String queueName, int max, Collection<? super Message> target) {
+        MessageBuffer messages = queueMessageMap.get(queueName);
+        if(messages == null) {
+            return 0;
+        }
+        List<Message> polled = new ArrayList<>(Math.min(max, READ_AHEAD));
+        int count = messages.drainTo(polled, max);
+        for(Message message : polled) {
+            leave(queueName, message);
+        }
+        target.addAll(polled);
+        //预读：消费者马上就会推进到后面的消息
+        if(diskDataCenter != null && count > 0) {
+            List<Message> ahead = new ArrayList<>(READ_AHEAD);
+            messages.peek(ahead, READ_AHEAD);
+            for(Message message : ahead) {
+                pageIn(queueName, message, true);
+            }
+        }
+        return count;
+    }
     //获取消息数量
     public int getMessageCount(String queueName) {
-        LinkedList<Message> messages = queueMessageMap.get(queueName);
-        if(messages == null || messages.isEmpty()) {
+        MessageBuffer messages = queueMessageMap.get(queueName);
+        if(messages == null) {
             return 0;
         }
-        //加锁
-        synchronized (messages) {
-            return messages.size();
-        }
+        return messages.size();
     }
     //添加未确认的消息
     public void addMessageWaitACK(String queueName, Message message) {
@@ -181,38 +315,254 @@ public class MemoryDataCenter {
         }
         return messageMap.get(messageId);
     }
+    //等待推送的消息体在内存中占用的字节数
+    public long getQueueBodyBytes(String queueName) {
+        AtomicLong bytes = queueBodyBytes.get(queueName);
+        return bytes == null ? 0 : bytes.get();
+    }
+    public long getTotalBodyBytes() {
+        return totalBodyBytes.get();
+    }
+
+    //消息进入队列：内存预算还够就记账，不够就换出消息体；惰性队列的消息体总是换出
+    private void admit(MSGQueue queue, Message message) {
+        byte[] body = message.getBody();
+        if(diskDataCenter == null || body == null) {
+            return;
+        }
+        AtomicLong queueBytes = queueBodyBytes.computeIfAbsent(queue.getName(), k -> new AtomicLong(0));
+        boolean overBudget = queue.isLazy()
+                || (queueBodyLimit > 0 && queueBytes.get() + body.length > queueBodyLimit)
+                || (totalBodyLimit > 0 && totalBodyBytes.get() + body.length > totalBodyLimit);
+        if(overBudget) {
+            try {
+                if(message.getDeliveryMode() == 2 && queue.isDurable()) {
+                    //持久化消息已经写入了队列日志，直接丢掉内存中的消息体
+                    message.setBodyLocation(Message.BODY_IN_LOG);
+                } else {
+                    spillLog().write(message);
+                    message.setBodyLocation(Message.BODY_IN_SPILL);
+                }
+                message.setBody(null);
+                return;
+            } catch (IOException | MqException e) {
+                log.error("[MemoryDataCenter] 换出消息体失败, 保留在内存中, queueName:{}, messageId:{}, e:{}",
+                        queue.getName(), message.getMessageId(), e.getMessage());
+            }
+        }
+        queueBytes.addAndGet(body.length);
+        totalBodyBytes.addAndGet(body.length);
+    }
+
+    //消息离开队列准备推送：换出的消息体读回来，在内存中的消息体不再计入预算
+    private void leave(String queueName, Message message) {
+        if(diskDataCenter == null) {
+            return;
+        }
+        if(!pageIn(queueName, message, false) && message.getBody() != null) {
+            AtomicLong queueBytes = queueBodyBytes.get(queueName);
+            if(queueBytes != null) {
+                queueBytes.addAndGet(-message.getBody().length);
+            }
+            totalBodyBytes.addAndGet(-message.getBody().length);
+        }
+    }
+
+    //把换出的消息体读回内存，stillQueued 表示消息还在队列中（预读），读回的消息体需要计入预算
+    //返回这次是否读回了消息体。加锁顺序是消息锁 -> 队列锁（readBody），持有队列锁的时候不能再加消息锁
+    private boolean pageIn(String queueName, Message message, boolean stillQueued) {
+        synchronized (message) {
+            byte location = message.getBodyLocation();
+            if(location == Message.BODY_IN_MEMORY) {
+                return false;
+            }
+            try {
+                byte[] body;
+                if(location == Message.BODY_IN_LOG) {
+                    MSGQueue queue = queueMap.get(queueName);
+                    if(queue == null) {
+                        throw new MqException("[MemoryDataCenter] 队列不存在, queueName:" + queueName);
+                    }
+                    body = diskDataCenter.readBody(queue, message);
+                } else {
+                    body = spillLog().read(message);
+                }
+                message.setBody(body);
+                message.setBodyLocation(Message.BODY_IN_MEMORY);
+                if(stillQueued && body != null) {
+                    queueBodyBytes.computeIfAbsent(queueName, k -> new AtomicLong(0)).addAndGet(body.length);
+                    totalBodyBytes.addAndGet(body.length);
+                }
+                return true;
+            } catch (IOException | MqException e) {
+                log.error("[MemoryDataCenter] 读回消息体失败, queueName:{}, messageId:{}, e:{}",
+                        queueName, message.getMessageId(), e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    //gc 把持久化消息移动到了新的位置
+    //调用时压缩线程持有队列锁；持久化消息的位置只在队列锁中读写（readBody、deleteMessage），这里不再加消息锁，
+    //否则和 pageIn 的加锁顺序（消息锁 -> 队列锁）相反，会死锁
+    //已经落盘但是还在等待投递的消息不在 messageMap 中，在 inFlightMessages 中找到同一个消息对象
+    private void relocate(String queueName, Message relocated) {
+        Message message = messageMap.get(relocated.getMessageId());
+        if(message == null) {
+            message = inFlightMessages.get(relocated.getMessageId());
+        }
+        if(message == null) {
+            return;
+        }
+        message.setSegmentId(relocated.getSegmentId());
+        message.setPosition(relocated.getPosition());
+    }
+
+    //关闭溢出文件，调用之前恢复线程需要已经结束
+    public synchronized void close() throws IOException {
+        if(spillLog != null) {
+            spillLog.close();
+            spillLog = null;
+        }
+    }
+
+    private synchronized SpillLog spillLog() throws IOException, MqException {
+        if(spillLog == null) {
+            spillLog = SpillLog.open(new File("./data/.spill"), MessageFileManager.DEFAULT_SEGMENT_SIZE);
+        }
+        return spillLog;
+    }
+
     // 从硬盘中读取数据，把持久化存储的数据恢复到内存中
-    public void recovery(DiskDataCenter diskDataCenter) throws IOException, MqException, ClassNotFoundException {
+    //从硬盘恢复数据：交换机、队列、绑定直接恢复，队列中的消息由线程池并行加载
+    //mq.recovery.lazy 为 true 时不等待消息加载完成就返回，已经恢复的队列可以马上使用，
+    //发送消息、删除队列时遇到还在恢复的队列，需要先调用 awaitRecovered 等待这个队列恢复完成
+    public void recovery(DiskDataCenter diskDataCenter) throws IOException, MqException {
         //清空所有数据
         exchangeMap.clear();
         queueMap.clear();
         bindingsMap.clear();
+        topicTries.clear();
         messageMap.clear();
+        inFlightMessages.clear();
         queueMessageMap.clear();
         queueMessageWaitACK.clear();
+        queueBodyBytes.clear();
+        totalBodyBytes.set(0);
+        recoveringQueues.clear();
         //1. 恢复所有的交互机数据
         for(Exchange exchange : diskDataCenter.selectAllExchange()){
             exchangeMap.put(exchange.getName(), exchange);
         }
-        //2. 恢复所有的队列数据 以及 队列和消息之间的关系 以及 消息数据
-        for(MSGQueue queue : diskDataCenter.selectAllQueue()){
-            LinkedList<Message> messages = diskDataCenter.loadMessageFromQueue(queue.getName());
-            //恢复消息数据
-            for(Message message : messages){
-                messageMap.put(message.getMessageId(), message);
-            }
-            //恢复所有的队列数据
+        //2. 恢复所有的队列数据 以及 队列和消息之间的关系，消息之后再加载
+        List<MSGQueue> queues = diskDataCenter.selectAllQueue();
+        for(MSGQueue queue : queues){
             queueMap.put(queue.getName(), queue);
-            // 队列和消息之间的关系
-            queueMessageMap.put(queue.getName(), messages);
+            queueMessageMap.put(queue.getName(), new MessageBuffer());
+            recoveringQueues.put(queue.getName(), new CompletableFuture<>());
         }
         //3. 恢复所有的绑定数据
         for(Binding binding : diskDataCenter.selectAllBinding()){
             ConcurrentHashMap<String,Binding> bindingMap = bindingsMap.computeIfAbsent(binding.getExchangeName(), k -> new ConcurrentHashMap<>());
             bindingMap.put(binding.getQueueName(), binding);
+            topicTries.computeIfAbsent(binding.getExchangeName(), k -> new TopicTrie())
+                    .add(binding.getBindingKey(), binding.getQueueName());
         }
         //4. 未确认的消息不需要从硬盘中读取，因为等待ack的时候如果服务重启，那么就会被恢复成“未被取走的消息”
+        //5. 每个队列的消息交给一个恢复线程加载
+        Environment environment = Application.context.getEnvironment();
+        int parallelism = Math.max(1, environment.getProperty("mq.recovery.parallelism", Integer.class, DEFAULT_RECOVERY_PARALLELISM));
+        boolean lazy = environment.getProperty("mq.recovery.lazy", Boolean.class, false);
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "queue-recovery-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long startTime = System.currentTimeMillis();
+        AtomicInteger recovered = new AtomicInteger(0);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(queues.size());
+        for(MSGQueue queue : queues){
+            futures.add(CompletableFuture.runAsync(() -> recoverQueue(diskDataCenter, queue, recovered, queues.size()), executor));
+        }
+        //6. 所有队列的引用都统计完了，删除不再被引用的共享消息体
+        recoveryFuture = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenRun(() -> {
+            try {
+                diskDataCenter.completeRecovery();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            log.info("[MemoryDataCenter] 所有队列恢复完成, 队列数:{}, 耗时:{} ms", queues.size(), System.currentTimeMillis() - startTime);
+        });
+        recoveryFuture.whenComplete((v, e) -> executor.shutdown());
+        if(lazy){
+            return;
+        }
+        try {
+            recoveryFuture.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException){
+                throw (IOException) cause;
+            }
+            if(cause instanceof MqException){
+                throw (MqException) cause;
+            }
+            throw e;
+        }
+    }
 
+    //在恢复线程中逐条加载一个队列的消息，超出内存预算的消息体不保留在内存中
+    //惰性的持久化队列只加载索引，消息体留在段文件中，推送之前再读回
+    private void recoverQueue(DiskDataCenter diskDataCenter, MSGQueue queue, AtomicInteger recovered, int total) {
+        CompletableFuture<Void> future = recoveringQueues.get(queue.getName());
+        long startTime = System.currentTimeMillis();
+        MessageBuffer buffer = queueMessageMap.get(queue.getName());
+        AtomicInteger count = new AtomicInteger(0);
+        boolean indexOnly = queue.isLazy() && queue.isDurable();
+        try {
+            diskDataCenter.loadMessageFromQueue(queue.getName(), message -> {
+                if(indexOnly) {
+                    message.setBodyLocation(Message.BODY_IN_LOG);
+                }
+                messageMap.put(message.getMessageId(), message);
+                admit(queue, message);
+                buffer.offer(message);
+                count.incrementAndGet();
+            }, indexOnly);
+        } catch (IOException | MqException e) {
+            log.error("[MemoryDataCenter] 队列恢复失败, queueName:{}, e:{}", queue.getName(), e.getMessage());
+            //先完成再删除，等待这个队列的线程都能看到结果
+            future.completeExceptionally(e);
+            recoveringQueues.remove(queue.getName());
+            throw new CompletionException(e);
+        }
+        future.complete(null);
+        recoveringQueues.remove(queue.getName());
+        log.info("[MemoryDataCenter] 队列恢复完成 ({}/{}), queueName:{}, 惰性队列:{}, 消息数:{}, 耗时:{} ms", recovered.incrementAndGet(), total,
+                queue.getName(), indexOnly, count.get(), System.currentTimeMillis() - startTime);
+    }
+
+    //队列还在恢复的时候阻塞到恢复完成，之后写入的消息排在恢复的消息后面
+    public void awaitRecovered(String queueName) throws MqException {
+        CompletableFuture<Void> future = recoveringQueues.get(queueName);
+        if(future == null){
+            return;
+        }
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw new MqException("[MemoryDataCenter] 队列恢复失败, queueName:" + queueName + ", e:" + e.getCause().getMessage());
+        }
+    }
+
+    //还没有恢复完成的队列数量
+    public int getRecoveringQueueCount() {
+        return recoveringQueues.size();
+    }
 
+    //所有队列的消息都恢复之后完成
+    public CompletableFuture<Void> getRecoveryFuture() {
+        return recoveryFuture;
     }
 }
@@ -0,0 +1,164 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.mqserver.core.Message;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 一个队列在内存中等待推送的消息
+ * 消息存放在固定大小的数组块中，块用单向链表连起来，写满一块再分配下一块，每条消息不需要额外分配链表节点
+ * 写入是无锁的：生产者先用 getAndIncrement 领取一个序号，再把消息写进序号对应的格子，多个生产者互不阻塞
+ * 读取的一方通常只有这个队列的推送线程，这里仍然加一把（几乎没有竞争的）锁，保证多个线程同时读取也是安全的
+ */
+class MessageBuffer {
+    private static final int CHUNK_SHIFT = 10;
+    //每一块的格子数
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final class Chunk {
+        //第几块，块中第一个格子的序号是 id * CHUNK_SIZE
+        final long id;
+        final AtomicReferenceArray<Message> slots = new AtomicReferenceArray<>(CHUNK_SIZE);
+        final AtomicReference<Chunk> next = new AtomicReference<>();
+
+        Chunk(long id) {
+            this.id = id;
+        }
+    }
+
+    //下一个要领取的序号
+    private final AtomicLong producerIndex = new AtomicLong(0);
+    //生产者查找块的起点，只会往后移动
+    private final AtomicReference<Chunk> producerChunk;
+    //下一个要读取的序号，只在持有读锁时修改
+    private volatile long consumerIndex = 0;
+    private volatile Chunk consumerChunk;
+    private final Object consumerLock = new Object();
+
+    MessageBuffer() {
+        Chunk first = new Chunk(0);
+        producerChunk = new AtomicReference<>(first);
+        consumerChunk = first;
+    }
+
+    //任意线程都可以调用
+    void offer(Message message) {
+        if (message == null) {
+            throw new NullPointerException();
+        }
+        long index = producerIndex.getAndIncrement();
+        Chunk chunk = findChunk(index >>> CHUNK_SHIFT);
+        chunk.slots.set((int) (index & CHUNK_MASK), message);
+    }
+
+    //没有消息返回 null
+    Message poll() {
+        synchronized (consumerLock) {
+            return pollLocked();
+        }
+    }
+
+    //最多取出 max 条消息放进 target，返回取出的数量
+    int drainTo(Collection<? super Message> target, int max) {
+        synchronized (consumerLock) {
+            int count = 0;
+            Message message;
+            while (count < max && (message = pollLocked()) != null) {
+                target.add(message);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    //不取出，按照顺序把接下来的最多 max 条消息放进 target，遇到还没有写完的消息就停止
+    int peek(Collection<? super Message> target, int max) {
+        synchronized (consumerLock) {
+            long index = consumerIndex;
+            long end = Math.min(producerIndex.get(), index + max);
+            Chunk chunk = consumerChunk;
+            int count = 0;
+            for (; index < end; index++) {
+                int offset = (int) (index & CHUNK_MASK);
+                if (chunk.id != index >>> CHUNK_SHIFT) {
+                    chunk = chunk.next.get();
+                    if (chunk == null) {
+                        break;
+                    }
+                }
+                Message message = chunk.slots.get(offset);
+                if (message == null) {
+                    break;
+                }
+                target.add(message);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    //已经领取了序号的消息都算在内，正在写入的消息在 poll 的时候会等它写完
+    int size() {
+        //先读 consumerIndex，保证结果不会是负数
+        long consumed = consumerIndex;
+        long produced = producerIndex.get();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, produced - consumed));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private Message pollLocked() {
+        long index = consumerIndex;
+        if (index >= producerIndex.get()) {
+            return null;
+        }
+        int offset = (int) (index & CHUNK_MASK);
+        Chunk chunk = consumerChunk;
+        if (offset == 0 && chunk.id != index >>> CHUNK_SHIFT) {
+            //上一块已经读完，移动到下一块；序号已经被领取，下一块一定会被创建出来
+            Chunk next;
+            while ((next = chunk.next.get()) == null) {
+                Thread.onSpinWait();
+            }
+            chunk = next;
+            consumerChunk = chunk;
+        }
+        //序号已经领取但是消息还没有写进来，生产者马上就会写完
+        Message message;
+        while ((message = chunk.slots.get(offset)) == null) {
+            Thread.onSpinWait();
+        }
+        chunk.slots.lazySet(offset, null);
+        consumerIndex = index + 1;
+        return message;
+    }
+
+    private Chunk findChunk(long id) {
+        Chunk chunk = producerChunk.get();
+        if (chunk.id > id) {
+            //其他生产者已经把起点移动到了后面的块，从读取的位置开始找。
+            //这个序号还没有被读取，所以读取位置所在的块不会在它后面
+            chunk = consumerChunk;
+        }
+        while (chunk.id < id) {
+            Chunk next = chunk.next.get();
+            if (next == null) {
+                Chunk created = new Chunk(chunk.id + 1);
+                next = chunk.next.compareAndSet(null, created) ? created : chunk.next.get();
+            }
+            chunk = next;
+        }
+        //把起点往后移动，后面的生产者少走几步
+        Chunk start = producerChunk.get();
+        while (start.id < chunk.id && !producerChunk.compareAndSet(start, chunk)) {
+            start = producerChunk.get();
+        }
+        return chunk;
+    }
+}
@@ -7,19 +7,194 @@ import com.doublez.mqserver.core.Message;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 @Slf4j
 public class MessageFileManager {
-    //用内部静态来来存储队列的统计信息
-    public static class Stat{
-        public int totalCount;//总消息数量
-        public int validCount;//有效消息数量
+    //内存中的队列统计，发送和删除消息只修改计数，由检查点线程定期写入统计文件
+    private static class StatCounter {
+        final AtomicInteger totalCount = new AtomicInteger();
+        final AtomicInteger validCount = new AtomicInteger();
+        //上次写入检查点之后有修改
+        final AtomicBoolean dirty = new AtomicBoolean(false);
+        //队列已经删除，不再写入检查点，只在持有这个对象的锁时访问
+        boolean destroyed = false;
+
+        void add(int total, int valid) {
+            totalCount.addAndGet(total);
+            validCount.addAndGet(valid);
+            dirty.set(true);
+        }
+    }
+
+    //默认的段文件大小 64MB
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    //小于这个大小的消息体直接写在每个队列的记录中，共享存储中的引用省不了多少空间
+    static final int SHARED_BODY_MIN_SIZE = 1024;
+    //后台压缩默认的复制速度 32MB/s
+    public static final long DEFAULT_COMPACTION_RATE = 32 * 1024 * 1024;
+    //默认每秒把有修改的统计数写入检查点
+    public static final long DEFAULT_STAT_CHECKPOINT_INTERVAL_MS = 1000;
+
+    //单个段文件的大小上限，超过之后创建新的段
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    //持久化消息的刷盘策略
+    private FlushPolicy flushPolicy = FlushPolicy.always();
+    //key: queueName, value: 队列对应的分段日志，打开之后长期持有
+    private final ConcurrentHashMap<String, QueueLog> queueLogs = new ConcurrentHashMap<>();
+    //key: queueName, value: 打开队列日志时使用的锁
+    private final ConcurrentHashMap<String, Object> openLocks = new ConcurrentHashMap<>();
+    //组提交线程，所有持久化消息的写入都经过它
+    private GroupCommitWriter groupCommitWriter;
+    //gc 把消息移动到新的位置之后调用，参数是队列名和带有新位置的消息
+    private BiConsumer<String, Message> relocationListener;
+    //多个队列共享的消息体
+    private BodyStore bodyStore;
+    //后台压缩线程，每秒最多复制 compactionRate 字节
+    private SegmentCompactor compactor;
+    private long compactionRate = DEFAULT_COMPACTION_RATE;
+    //已经恢复过的队列，共享消息体的引用数只在第一次加载的时候计算
+    private final Set<String> recoveredQueues = ConcurrentHashMap.newKeySet();
+    //正在加载消息的队列，加载期间不压缩，段文件不会在遍历的时候被替换
+    private final Set<String> loadingQueues = ConcurrentHashMap.newKeySet();
+    //key: queueName, value: 内存中的统计数，和分段日志一起在第一次使用的时候加载
+    private final ConcurrentHashMap<String, StatCounter> stats = new ConcurrentHashMap<>();
+    //定期写入统计检查点的线程
+    private ScheduledExecutorService statCheckpointer;
+    private long statCheckpointIntervalMs = DEFAULT_STAT_CHECKPOINT_INTERVAL_MS;
+
+    public MessageFileManager() {
+    }
+
+    public MessageFileManager(long segmentSize) {
+        setSegmentSize(segmentSize);
+    }
+
+    //需要在 init 之前设置，封存的段整个映射到内存中，所以不能超过 2GB
+    public void setSegmentSize(long segmentSize) {
+        if(segmentSize <= LogSegment.HEADER_SIZE || segmentSize > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("[MessageFileManager] 段文件大小不合法, segmentSize:" + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    //需要在 init 之前设置
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    //需要在 init 之前设置，0 表示不限速
+    public void setCompactionRate(long compactionRate) {
+        if(compactionRate < 0){
+            throw new IllegalArgumentException("[MessageFileManager] 压缩速度不合法, compactionRate:" + compactionRate);
+        }
+        this.compactionRate = compactionRate;
+    }
+
+    //需要在 init 之前设置
+    public void setStatCheckpointInterval(long statCheckpointIntervalMs) {
+        if(statCheckpointIntervalMs <= 0){
+            throw new IllegalArgumentException("[MessageFileManager] 检查点间隔不合法, interval:" + statCheckpointIntervalMs);
+        }
+        this.statCheckpointIntervalMs = statCheckpointIntervalMs;
+    }
+
+    //内存中的消息对象通过它得到 gc 之后的新位置
+    public void setRelocationListener(BiConsumer<String, Message> relocationListener) {
+        this.relocationListener = relocationListener;
+    }
+
+    public void init() throws IOException, MqException {
+        bodyStore = BodyStore.open(new File(getQueueDir(".bodies")), segmentSize);
+        //启动组提交线程
+        groupCommitWriter = new GroupCommitWriter(flushPolicy, this::appendBatch);
+        groupCommitWriter.start();
+        //启动后台压缩线程
+        compactor = new SegmentCompactor(this::compact, compactionRate);
+        compactor.start();
+        //启动统计检查点线程
+        statCheckpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stat-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statCheckpointer.scheduleWithFixedDelay(this::checkpointStats, statCheckpointIntervalMs,
+                statCheckpointIntervalMs, TimeUnit.MILLISECONDS);
     }
 
-    public void init(){
-        //目前不需要初始化，留一个接口用于之后的扩展
+    //停止组提交线程（已经提交的消息会先落盘），关闭所有段文件
+    public void close() throws IOException {
+        //先停止压缩，压缩线程不会再访问段文件
+        if(compactor != null){
+            compactor.shutdown();
+            compactor = null;
+        }
+        if(groupCommitWriter != null){
+            groupCommitWriter.shutdown();
+            groupCommitWriter = null;
+        }
+        //不会再有写入，统计数作为正常关闭的检查点写入
+        if(statCheckpointer != null){
+            statCheckpointer.shutdown();
+            try {
+                statCheckpointer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            statCheckpointer = null;
+        }
+        //一个队列失败不影响其他队列和共享消息体目录的关闭，最后抛出第一个异常
+        IOException failure = null;
+        for(Map.Entry<String, StatCounter> entry : stats.entrySet()){
+            try {
+                writeCheckpoint(entry.getKey(), entry.getValue(), true);
+            } catch (IOException e) {
+                //和检查点线程一样，队列目录已经不存在的时候不需要检查点
+                if(!new File(getQueueDir(entry.getKey())).isDirectory()){
+                    log.warn("[MessageFileManager] 队列目录不存在, 不写入正常关闭的检查点, queueName:{}", entry.getKey());
+                    continue;
+                }
+                log.error("[MessageFileManager] 写入正常关闭的检查点失败, queueName:{}, e:{}", entry.getKey(), e.getMessage());
+                failure = failure == null ? e : failure;
+            }
+        }
+        stats.clear();
+        for(QueueLog queueLog : queueLogs.values()){
+            try {
+                queueLog.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        queueLogs.clear();
+        if(bodyStore != null){
+            try {
+                bodyStore.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+            bodyStore = null;
+        }
+        recoveredQueues.clear();
+        if(failure != null){
+            throw failure;
+        }
     }
     // 1. 预定消息所在的目录和文件夹
     // 1. 获取指定消息队列的所在文件夹
@@ -27,38 +202,96 @@ public class MessageFileManager {
         return "./data/" + queueName;
     }
 
-    // 2. 获取 消息队列所属的消息数据文件路径 data.txt/.bin
-    private String getQueueDataPath(String queueName) {
+    // 2. 获取 旧版本的单文件消息数据路径，只在迁移到分段日志的时候使用
+    private String getLegacyQueueDataPath(String queueName) {
         return getQueueDir(queueName) + "/queue_data.txt";
     }
 
-    //3. 获取 消息队列所属的消息统计文件路径
+    // 旧版本 gc 时写入的新数据文件，gc 中途崩溃会残留下来
+    private String getLegacyQueueDataNewPath(String queueName) {
+        return getQueueDir(queueName) + "/queue_data_new.txt";
+    }
+
+    //3. 获取 消息队列所属的消息统计检查点路径
     private String getQueueStatPath(String queueName) {
+        return getQueueDir(queueName) + "/queue_stat.bin";
+    }
+
+    // 旧版本的文本统计文件，每次发送、删除消息都重写；不再读取，打开日志的时候重新计算统计数之后删除
+    private String getLegacyQueueStatPath(String queueName) {
         return getQueueDir(queueName) + "/queue_stat.txt";
     }
-    //4. 读取统计文件内容
-    private Stat readStat(String queueName) throws MqException {
-        Stat stat = new Stat();
-        try(InputStream in = new FileInputStream(getQueueStatPath(queueName))) {
-            Scanner scanner = new Scanner(in);
-            stat.totalCount = scanner.nextInt();
-            stat.validCount = scanner.nextInt();
-            return stat;
+    //4. 读取内存中统计数的快照，统计数只由发送、删除消息和 gc 修改
+    private StatCheckpoint readStat(String queueName) throws MqException {
+        StatCounter counter = getStatCounter(queueName);
+        return new StatCheckpoint(counter.totalCount.get(), counter.validCount.get(), false);
+    }
+
+    //队列的统计数和分段日志一起加载
+    private StatCounter getStatCounter(String queueName) throws MqException {
+        StatCounter counter = stats.get(queueName);
+        if(counter != null){
+            return counter;
+        }
+        if(!checkFilesExists(queueName)){
+            throw new MqException("[MessageFileManager] 队列消息文件不存在, queueName:" + queueName);
+        }
+        try {
+            getQueueLog(queueName);
         } catch (IOException e) {
-            log.error("读取stat文件错误", e);
-            throw new MqException("[MessageFileManager] 读取stat文件错误, stat:"+getQueueStatPath(queueName));
+            throw new MqException("[MessageFileManager] 打开队列日志失败, queueName:" + queueName + ", e:" + e.getMessage());
         }
+        return stats.get(queueName);
     }
-    //5. 写入统计文件内容，覆盖写入，如果不覆盖需要在FileOutputStream中添加true参数
-    private void writeStat(String queueName, Stat stat) throws MqException {
-        try(OutputStream out = new FileOutputStream(getQueueStatPath(queueName))) {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out));
-            bw.write(stat.totalCount + "\t" + stat.validCount );
-            //写入文件！！
-            bw.flush();
-        } catch (IOException e) {
-            log.error("写入stat文件错误", e);
-            throw new MqException("[MessageFileManager] 写入stat文件错误, stat:"+getQueueStatPath(queueName));
+
+    //打开队列日志的时候调用：正常关闭时写入的检查点直接使用，否则按照段文件中的记录头重新计算
+    //之后立即写入一个非正常关闭的检查点，崩溃之后不会再使用旧的统计数
+    private StatCounter loadStat(String queueName, QueueLog queueLog, boolean recompute) throws IOException, MqException {
+        StatCounter counter = new StatCounter();
+        StatCheckpoint checkpoint = recompute ? null : StatCheckpoint.read(new File(getQueueStatPath(queueName)));
+        if(checkpoint != null && checkpoint.clean){
+            counter.totalCount.set(checkpoint.totalCount);
+            counter.validCount.set(checkpoint.validCount);
+        } else {
+            int[] counts = queueLog.countRecords();
+            counter.totalCount.set(counts[0]);
+            counter.validCount.set(counts[1]);
+            log.info("[MessageFileManager] 按照段文件重新计算统计数, queueName:{}, totalCount:{}, validCount:{}",
+                    queueName, counts[0], counts[1]);
+        }
+        writeCheckpoint(queueName, counter, false);
+        return counter;
+    }
+
+    //检查点线程调用：只写入有修改的队列
+    private void checkpointStats() {
+        for(Map.Entry<String, StatCounter> entry : stats.entrySet()){
+            if(!entry.getValue().dirty.getAndSet(false)){
+                continue;
+            }
+            try {
+                writeCheckpoint(entry.getKey(), entry.getValue(), false);
+            } catch (IOException e) {
+                //队列目录已经不存在，不再写入这个队列的检查点
+                if(!new File(getQueueDir(entry.getKey())).isDirectory()){
+                    stats.remove(entry.getKey(), entry.getValue());
+                    log.warn("[MessageFileManager] 队列目录不存在, 停止写入统计检查点, queueName:{}", entry.getKey());
+                    continue;
+                }
+                entry.getValue().dirty.set(true);
+                log.error("[MessageFileManager] 写入统计检查点失败, queueName:{}, e:{}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    //和删除队列互斥，队列目录删除之后不会再创建检查点文件
+    private void writeCheckpoint(String queueName, StatCounter counter, boolean clean) throws IOException {
+        synchronized (counter) {
+            if(counter.destroyed){
+                return;
+            }
+            new StatCheckpoint(counter.totalCount.get(), counter.validCount.get(), clean)
+                    .write(new File(getQueueStatPath(queueName)));
         }
     }
 
@@ -72,231 +305,479 @@ public class MessageFileManager {
                 throw new IOException("[MessageFileManager] 创建目录失败! dirs:"+file.getAbsolutePath());
             }
         }
-        //6.2 创建队列数据文件
-        File DataQueuefile = new File(getQueueDataPath(queueName));
-        if(!DataQueuefile.exists()){
-            boolean DataOk = DataQueuefile.createNewFile();
-            if(!DataOk){
-                throw new IOException("[MessageFileManager] 创建数据文件失败! file:"+DataQueuefile.getAbsolutePath());
-            }
-        }
-        //6.3 创建队列消息统计文件
-        File statQueuefile = new File(getQueueStatPath(queueName));
-        if(!statQueuefile.exists()){
-            boolean StatOk = statQueuefile.createNewFile();
-            if(!StatOk){
-                throw new IOException("[MessageFileManager] 创建消息统计文件失败! file:"+statQueuefile.getAbsolutePath());
-            }
-        }
-
-        //6.4 设置初始值
-        Stat stat = new Stat();
-        stat.totalCount = 0;
-        stat.validCount = 0;
-        writeStat(queueName, stat);
+        //6.2 打开队列的分段日志，会创建第一个段文件和统计检查点
+        getQueueLog(queueName);
     }
 
     //7. 删除队列的目录和文件
     public void destroyQueueFiles(String queueName) throws IOException {
-        File dataQueuefile = new File(getQueueDataPath(queueName));
-        boolean ok1 = dataQueuefile.delete();
-        File statQueuefile = new File(getQueueStatPath(queueName));
-        boolean ok2 = statQueuefile.delete();
+        //7.1 队列中还没有删除的消息不再引用共享的消息体
+        if(bodyStore != null && checkFilesExists(queueName)){
+            try {
+                scanMessages(queueName, true, message -> {
+                    if(message.isBodyShared()){
+                        bodyStore.release(message.getBodySegmentId(), message.getBodyPosition());
+                    }
+                });
+            } catch (MqException e) {
+                log.error("[MessageFileManager] 释放共享消息体失败, queueName:{}, e:{}", queueName, e.getMessage());
+            }
+        }
+        recoveredQueues.remove(queueName);
+        //7.2 统计数不再写入检查点
+        StatCounter counter = stats.remove(queueName);
+        if(counter != null){
+            synchronized (counter) {
+                counter.destroyed = true;
+            }
+        }
+        //7.3 关闭打开的段文件，等待正在压缩这个队列的线程放弃
+        QueueLog queueLog = queueLogs.remove(queueName);
+        if(compactor != null){
+            compactor.cancel(queueName);
+        }
+        if(queueLog != null){
+            queueLog.close();
+        }
+        //7.4 目录下的段文件和统计文件都属于这个队列，全部删除
         File QueueDirFile = new File(getQueueDir(queueName));
-        boolean ok3 = QueueDirFile.delete();
-        if(!ok1 || !ok2 || !ok3){
+        boolean ok = true;
+        File[] files = QueueDirFile.listFiles();
+        if(files != null){
+            for(File file : files){
+                ok &= file.delete();
+            }
+        }
+        ok &= QueueDirFile.delete();
+        if(!ok){
             throw new IOException("[MessageFileManager] 删除队列目录和文件失败！file:"+QueueDirFile.getAbsolutePath());
         }
     }
     //8. 检查队列的目录和文件是否存在
     //用来判断生成者给broker server 生成消息，这个消息可能就需要被记录到文件上（取决消息是否要持久化）
     public boolean checkFilesExists(String queueName) {
-        File statQueuefile = new File(getQueueStatPath(queueName));
-        if(!statQueuefile.exists()){
+        //还没有打开过的旧版本队列只有文本统计文件
+        if(!new File(getQueueStatPath(queueName)).exists() && !new File(getLegacyQueueStatPath(queueName)).exists()){
             return false;
         }
-        File dataQueuefile = new File(getQueueDataPath(queueName));
-        return dataQueuefile.exists();
+        File queueDir = new File(getQueueDir(queueName));
+        return queueDir.isDirectory();
     }
 
-    //9. 把一个消息放到队列的对应文件中
-    public void sendMessage( MSGQueue queue, Message message) throws MqException, IOException {
-        //1. 先判断是否存在
-        if(!checkFilesExists(queue.getName())){
-            throw new MqException("[MessageFileManager] 队列消息文件不存在,queueName:"+ queue.getName());
+    //获取队列对应的分段日志，第一次使用的时候打开
+    private QueueLog getQueueLog(String queueName) throws IOException, MqException {
+        QueueLog queueLog = queueLogs.get(queueName);
+        if(queueLog != null){
+            return queueLog;
         }
-        //2. 将对象序列化转成byte数组
-        byte[] messageBites = BinaryTool.toBytes(message);
-        //防止多线程造成的写入错误，需要加锁
-        synchronized (queue) {
-            //3. 获取当前队列数据文件的长度，计算Message的对象offsetBeg 和 offsetEnd
-            //offsetBeg = length + 4;
-            //offsetEnd = length + 4 + message;
-            File dataQueuefile = new File(getQueueDataPath(queue.getName()));
-            message.setOffsetBeg(dataQueuefile.length() + 4);
-            message.setOffsetEnd(dataQueuefile.length() + 4 + messageBites.length);
-            //4. 写入消息到数据文件,需要追加到文件末尾
-            try(OutputStream out = new FileOutputStream(dataQueuefile, true)) {
-                try (DataOutputStream dos = new DataOutputStream(out)) {
-                    //4.1 先写入当前消息的长度，4个字节
-                    dos.writeInt(messageBites.length);
-                    //4.2 写入消息内容
-                    dos.write(messageBites);
+        //每个队列一把锁，并行恢复的时候不同队列可以同时打开
+        synchronized (openLocks.computeIfAbsent(queueName, k -> new Object())) {
+            queueLog = queueLogs.get(queueName);
+            if(queueLog == null){
+                queueLog = QueueLog.open(new File(getQueueDir(queueName)), segmentSize);
+                boolean migrated = migrateLegacyDataFile(queueName, queueLog);
+                File legacyStatFile = new File(getLegacyQueueStatPath(queueName));
+                boolean legacyStat = legacyStatFile.exists();
+                //迁移了旧的数据文件或者旧的统计文件，或者上次压缩没有完成，统计数都按照段文件重新计算
+                stats.put(queueName, loadStat(queueName, queueLog, migrated || legacyStat || queueLog.isCompactionRecovered()));
+                //新的检查点已经写入，旧的统计文件只在第一次打开的时候迁移一次
+                if(legacyStat){
+                    Files.deleteIfExists(legacyStatFile.toPath());
+                    log.info("[MessageFileManager] 旧版本的统计文件迁移完成, queueName:{}", queueName);
                 }
+                queueLogs.put(queueName, queueLog);
+            }
+            return queueLog;
+        }
+    }
+
+    //旧版本把所有消息追加到一个 queue_data.txt 中，打开日志的时候把其中的有效消息搬到段文件中，返回是否进行了迁移
+    private boolean migrateLegacyDataFile(String queueName, QueueLog queueLog) throws IOException, MqException {
+        File legacyFile = new File(getLegacyQueueDataPath(queueName));
+        //旧版本的 gc 先写完新文件，再删除旧文件，最后改名
+        //旧文件还在说明新文件可能没有写完，直接删除；旧文件已经删除说明新文件是完整的，继续改名
+        File legacyNewFile = new File(getLegacyQueueDataNewPath(queueName));
+        if(legacyNewFile.exists()){
+            if(legacyFile.exists()){
+                log.info("[MessageFileManager] 删除旧版本 gc 残留的文件, queueName:{}", queueName);
+                Files.delete(legacyNewFile.toPath());
+            } else {
+                log.info("[MessageFileManager] 完成旧版本 gc 没有完成的改名, queueName:{}", queueName);
+                Files.move(legacyNewFile.toPath(), legacyFile.toPath());
             }
-            //5. 更新消息统计文件
+        }
+        if(!legacyFile.exists()){
+            return false;
+        }
+        int count = 0;
+        try(DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(legacyFile)))){
+            while(true){
+                int messageSize;
+                try {
+                    messageSize = dis.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] buffer = new byte[messageSize];
+                dis.readFully(buffer);
+                Message message = (Message) BinaryTool.fromBytes(buffer);
+                if(message.getIsValid() != 0x1){
+                    continue;
+                }
+                queueLog.append(message, MessageRecord.encode(message));
+                count++;
+            }
+        } catch (ClassNotFoundException e) {
+            throw new MqException("[MessageFileManager] 迁移旧的数据文件失败! file:" + legacyFile.getAbsolutePath());
+        }
+        queueLog.force();
+        if(!legacyFile.delete()){
+            throw new IOException("[MessageFileManager] 删除旧的数据文件失败! file:" + legacyFile.getAbsolutePath());
+        }
+        log.info("[MessageFileManager] 旧的数据文件迁移完成, queueName:{}, count:{}", queueName, count);
+        return true;
+    }
+
+    //9. 把一个消息放到队列的对应文件中，阻塞到消息按照刷盘策略落盘
+    public void sendMessage( MSGQueue queue, Message message) throws MqException, IOException {
+        try {
+            sendMessageAsync(queue, message).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[MessageFileManager] 等待消息落盘时被中断, queueName:" + queue.getName(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof MqException){
+                throw (MqException) cause;
+            }
+            if(cause instanceof IOException){
+                throw (IOException) cause;
+            }
+            throw new IOException("[MessageFileManager] 写入消息失败, queueName:" + queue.getName(), cause);
+        }
+    }
+
+    //把消息交给组提交线程，返回的 future 在消息落盘之后完成，完成之后 message 上的 (segmentId, position) 才有效
+    public CompletableFuture<Void> sendMessageAsync(MSGQueue queue, Message message) throws MqException, IOException {
+        return sendMessagesAsync(queue, List.of(message));
+    }
+
+    //同一条消息进入多个队列时调用：消息体只写一次，messages 中的每条消息都指向它
+    //消息体太小的时候不共享，每个队列的记录各自保存消息体
+    public void shareBody(List<Message> messages) throws IOException, MqException {
+        if(messages.size() < 2){
+            return;
+        }
+        byte[] body = messages.get(0).getBody();
+        if(body == null || body.length < SHARED_BODY_MIN_SIZE){
+            return;
+        }
+        if(bodyStore == null){
+            throw new MqException("[MessageFileManager] 没有初始化, 无法写入共享消息体");
+        }
+        bodyStore.write(body, messages);
+    }
+
+    //引用了共享消息体的消息没有写入队列日志（写入失败、没有提交），释放它占用的引用
+    //释放之后消息不再指向共享存储，重复调用不会重复释放
+    public void releaseSharedBody(Message message) throws IOException, MqException {
+        if(!message.isBodyShared() || bodyStore == null){
+            return;
+        }
+        bodyStore.release(message.getBodySegmentId(), message.getBodyPosition());
+        message.setBodySegmentId(-1);
+        message.setBodyPosition(0);
+    }
+
+    //所有队列恢复完成之后调用：删除不再被任何队列引用的共享消息体
+    public void completeRecovery() throws IOException {
+        if(bodyStore != null){
             try {
-                Stat stat = readStat(queue.getName());
-                stat.totalCount++;
-                stat.validCount++;
-                writeStat(queue.getName(), stat);
+                bodyStore.completeRecovery();
             } catch (MqException e) {
-                log.error("数据已经写入data文件，但是stat文件写入失败，stat:{},导致文件数据不一致", queue.getName());
-                throw new IOException("[MessageFileManager] 更新stat文件失败"+queue.getName(),e);
+                throw new IOException("[MessageFileManager] 删除共享消息体失败, e:" + e.getMessage(), e);
             }
         }
     }
-    //10. 删除消息方法，逻辑删除 isValid 设置为0
-    public void deleteMessage(MSGQueue queue, Message message) throws MqException, IOException, ClassNotFoundException {
+
+    //同一个队列的一批消息作为一个请求交给组提交线程，保证在同一次写入中追加，并且只更新一次统计文件
+    public CompletableFuture<Void> sendMessagesAsync(MSGQueue queue, List<Message> messages) throws MqException, IOException {
+        //1. 先判断是否存在
+        if(!checkFilesExists(queue.getName())){
+            throw new MqException("[MessageFileManager] 队列消息文件不存在,queueName:"+ queue.getName());
+        }
+        if(groupCommitWriter == null){
+            throw new MqException("[MessageFileManager] 没有初始化, 无法写入消息,queueName:"+ queue.getName());
+        }
+        //2. 在发布者线程中把消息编码成记录内容，写线程只负责写入
+        List<byte[]> payloads = new ArrayList<>(messages.size());
+        for(Message message : messages){
+            payloads.add(MessageRecord.encode(message));
+        }
+        //3. 交给组提交线程
+        return groupCommitWriter.submit(new GroupCommitWriter.AppendRequest(queue, messages, payloads));
+    }
+
+    //组提交线程调用：把同一个队列的一批消息一次性追加到日志中，返回需要 force 的日志
+    //引用了共享消息体的消息，共享存储需要和队列日志一起落盘，并且先落盘
+    private List<QueueLog> appendBatch(MSGQueue queue, List<GroupCommitWriter.AppendRequest> requests) throws IOException, MqException {
+        List<Message> messages = new ArrayList<>(requests.size());
+        List<byte[]> payloads = new ArrayList<>(requests.size());
+        boolean sharesBody = false;
+        for(GroupCommitWriter.AppendRequest request : requests){
+            messages.addAll(request.messages);
+            payloads.addAll(request.payloads);
+            for(Message message : request.messages){
+                sharesBody |= message.isBodyShared();
+            }
+        }
+        //防止和删除消息、gc 同时修改文件，需要加锁
+        synchronized (queue) {
+            //1. 追加到队列的活跃段中，记录的位置 (segmentId, position) 会写回 message
+            QueueLog queueLog = getQueueLog(queue.getName());
+            queueLog.append(messages, payloads);
+            //2. 更新内存中的统计数，由检查点线程写入文件
+            getStatCounter(queue.getName()).add(messages.size(), messages.size());
+            return sharesBody ? List.of(bodyStore.getQueueLog(), queueLog) : List.of(queueLog);
+        }
+    }
+    //10. 删除消息方法，逻辑删除：把记录头中固定位置的有效标记改成 0x0
+    //只写一个字节，和消息大小无关，也不需要反序列化消息
+    public void deleteMessage(MSGQueue queue, Message message) throws MqException, IOException {
         synchronized (queue) {
             //更新消息文件
-            try(RandomAccessFile raf = new RandomAccessFile(getQueueDataPath(queue.getName()), "rw")) {
-                //1. 读取对应的message数据
-                byte[] bufferSrc = new byte[(int) (message.getOffsetEnd() - message.getOffsetBeg())];
-                raf.seek(message.getOffsetBeg());//指定光标位置
-                raf.read(bufferSrc);//读取
-                //2. 把读出的raf二进制对象转化为message对象
-                Message diskMsg = (Message) BinaryTool.fromBytes(bufferSrc);
-                //3. 把isValid设置为无效（此时设置的是硬盘中的message对象，内存中的不需要修改，因为会被自动销毁）
-                diskMsg.setIsValid((byte) 0x0);
-                //4. 对象转化为二进制重新写入文件
-                byte[] bufferDest = BinaryTool.toBytes(diskMsg);
-                //4.1 检查长度是否相同
-                if (bufferDest.length != bufferSrc.length) {
-                    // 你需要决定如何处理这种情况。
-                    // 选项1: 抛出异常，因为这违反了原地更新的假设
-                    throw new MqException("Error: 更新后的大小 (" + bufferDest.length +
-                            ") 与原先大小不匹配 (" + bufferSrc.length +
-                            ") 消息起使位置 " + message.getOffsetBeg());
-                }
-                //4.1 重新seek，因为上述seek之后会导致光标变化
-                raf.seek(message.getOffsetBeg());
-                raf.write(bufferDest);
+            boolean wasValid = getQueueLog(queue.getName()).markDeleted(message.getSegmentId(), message.getPosition());
+            if(!wasValid){
+                //重复删除，统计文件不需要再修改
+                log.info("[MessageFileManager] 消息已经被删除过, queueName:{}, messageId:{}", queue.getName(), message.getMessageId());
+                return;
+            }
+            //这个队列不再引用共享的消息体
+            if(message.isBodyShared() && bodyStore != null){
+                bodyStore.release(message.getBodySegmentId(), message.getBodyPosition());
             }
-            //更新统计文件
-            Stat stat = readStat(queue.getName());
-            if(stat.validCount > 0){
-                stat.validCount--;
+            //更新内存中的统计数
+            StatCounter counter = getStatCounter(queue.getName());
+            counter.validCount.updateAndGet(count -> Math.max(0, count - 1));
+            counter.dirty.set(true);
+        }
+    }
+    //读取一条已经写入的消息的消息体，用来把换出内存的消息体读回来
+    public byte[] readBody(MSGQueue queue, Message message) throws MqException, IOException {
+        //和 gc 互斥，gc 完成之后 message 上的位置已经更新
+        synchronized (queue) {
+            Message stored = MessageRecord.decode(getQueueLog(queue.getName()).read(message.getSegmentId(), message.getPosition()));
+            if(!Objects.equals(stored.getMessageId(), message.getMessageId())){
+                throw new MqException("[MessageFileManager] 消息位置错误! queueName:" + queue.getName()
+                        + ", messageId:" + message.getMessageId());
             }
-            writeStat(queue.getName(), stat);
+            return resolveBody(stored);
         }
     }
+
+    //共享的消息体从共享存储中读取
+    private byte[] resolveBody(Message stored) throws IOException, MqException {
+        if(!stored.isBodyShared()){
+            return stored.getBody();
+        }
+        if(bodyStore == null){
+            throw new MqException("[MessageFileManager] 没有初始化, 无法读取共享消息体");
+        }
+        return bodyStore.read(stored.getBodySegmentId(), stored.getBodyPosition());
+    }
     //11. 从文件中提取所有的消息内容，加载到内存中
-    public LinkedList<Message> loadMessageFromQueue(String queueName) throws MqException, IOException, ClassNotFoundException {
-        //该方法再程序启动的时候进行调用，不涉及多线程，不需要加锁
+    public LinkedList<Message> loadMessageFromQueue(String queueName) throws MqException, IOException {
         LinkedList<Message> messages = new LinkedList<>();
-        try(InputStream inputStream = new FileInputStream(getQueueDataPath(queueName))){
-            try(DataInputStream dis = new DataInputStream(inputStream)){
-                //定义光标
-                int currentOffset = 0;
-                while(true){
-                    //1. 读取当前消息长度
-                    //DataInputStream的readInt如果读到文件末尾会抛出EOFException异常，直接跳出循环
-                    int messageSize = dis.readInt();
-                    //2. 读取消息内容
-                    byte[] buffer = new byte[messageSize];
-                    int actuallySize = dis.read(buffer);
-                    if(actuallySize != messageSize){
-                        throw new MqException("[MessageFileManager] 读取文件格式错误！queueName:"+queueName);
-                    }
-                    //3. 把二进制转化为message对象
-                    Message message = (Message) BinaryTool.fromBytes(buffer);
-                    //4. 判断是否是无效数据
-                    if(message.getIsValid() != 0x1){
-                        //光标变化
-                        currentOffset += (4 + messageSize);
-                        continue;
+        loadMessageFromQueue(queueName, messages::add);
+        return messages;
+    }
+    //逐条读取有效的消息交给 visitor，不需要把整个队列的消息同时放在内存中
+    //共享的消息体会读出来，第一次加载这个队列的时候计算共享消息体的引用数
+    public void loadMessageFromQueue(String queueName, Consumer<Message> visitor) throws MqException, IOException {
+        loadMessageFromQueue(queueName, visitor, false);
+    }
+    //indexOnly 为 true 时只加载索引（messageId、记录位置），消息体留在磁盘上，body 为 null，
+    //恢复的耗时只和消息数量有关，和消息体的总大小无关
+    public void loadMessageFromQueue(String queueName, Consumer<Message> visitor, boolean indexOnly) throws MqException, IOException {
+        boolean countReferences = recoveredQueues.add(queueName);
+        loadingQueues.add(queueName);
+        try {
+            loadMessages(queueName, visitor, countReferences, indexOnly);
+        } finally {
+            loadingQueues.remove(queueName);
+        }
+        log.info("[MessageFileManager] 恢复Message 数据完成!");
+    }
+
+    private void loadMessages(String queueName, Consumer<Message> visitor, boolean countReferences, boolean indexOnly) throws MqException, IOException {
+        scanMessages(queueName, indexOnly, message -> {
+            if(message.isBodyShared()){
+                if(countReferences){
+                    bodyStore.retain(message.getBodySegmentId(), message.getBodyPosition());
+                }
+                if(indexOnly){
+                    //只确认共享消息体已经落盘，不读取
+                    if(!bodyStore.contains(message.getBodySegmentId(), message.getBodyPosition())){
+                        log.error("[MessageFileManager] 共享消息体不存在, 跳过这条消息, queueName:{}, messageId:{}",
+                                queueName, message.getMessageId());
+                        return;
                     }
-                    //5. 有效数据,加入队列
-                    //5.1 手动计算光标位置（DataInputStream 没有seek方法）
-                    message.setOffsetBeg(currentOffset + 4);
-                    message.setOffsetEnd(currentOffset + 4 + messageSize);
-                    //5.2 改变光标
-                    currentOffset += (4 + messageSize);
-                    messages.add(message);
+                    visitor.accept(message);
+                    return;
+                }
+                try {
+                    message.setBody(resolveBody(message));
+                } catch (MqException e) {
+                    //共享消息体没有落盘, 这条消息还没有确认给发布者
+                    log.error("[MessageFileManager] 读取共享消息体失败, 跳过这条消息, queueName:{}, messageId:{}, e:{}",
+                            queueName, message.getMessageId(), e.getMessage());
+                    return;
                 }
-            }catch (EOFException e){
-                log.info("[MessageFileManager] 恢复Message 数据完成!");
             }
-        }
-        return messages;
+            visitor.accept(message);
+        });
+    }
+
+    @FunctionalInterface
+    private interface MessageVisitor {
+        void visit(Message message) throws IOException, MqException;
+    }
+
+    //按照段的顺序遍历有效的消息，共享的消息体只有位置
+    private void scanMessages(String queueName, boolean indexOnly, MessageVisitor visitor) throws MqException, IOException {
+        //该方法再程序启动的时候进行调用，不涉及多线程，不需要加锁
+        //按照段的顺序依次读取每一条记录，记录内容是段文件映射内存上的切片
+        getQueueLog(queueName).scan((segmentId, position, flag, payload) -> {
+            //1. 判断是否是无效数据，有效标记在记录头中，无效数据不需要解码
+            if(flag != 0x1){
+                return;
+            }
+            //2. 把二进制转化为message对象
+            Message message = indexOnly ? MessageRecord.decodeIndex(payload) : MessageRecord.decode(payload);
+            message.setIsValid(flag);
+            //3. 有效数据, 记录位置后加入队列
+            message.setSegmentId(segmentId);
+            message.setPosition(position);
+            visitor.visit(message);
+        });
     }
     //12. 判断是否要对当前队列的消息文件进行GC
     public boolean checkGC(String queueName) throws MqException {
-        //读取Stat文件
-        Stat stat = readStat(queueName);
+        //读取内存中的统计数
+        StatCheckpoint stat = readStat(queueName);
         //自定义判断方法：总量大于2000，有效量小于0.5
         return stat.totalCount > 2000 && (double) stat.validCount / (double) stat.totalCount < 0.5;
     }
-    //13. 创建新的文件
-    private String getQueueDataNewPath(String queueName) {
-        return getQueueDir(queueName) + "/queue_data_new.txt";
+    //13. 提交后台压缩请求，不阻塞调用线程
+    public void requestGC(MSGQueue queue) {
+        if(compactor != null){
+            compactor.request(queue);
+        }
+    }
+    //在调用线程中立即对消息数据文件进行gc，不限速
+    public void gc(MSGQueue queue) throws MqException, IOException {
+        if(compactor == null){
+            throw new MqException("[MessageFileManager] 没有初始化, 无法进行gc, queueName:" + queue.getName());
+        }
+        compactor.compactNow(queue);
     }
-    //14. 对消息数据文件进行gc
-    public void gc(MSGQueue queue) throws MqException, IOException, ClassNotFoundException {
+
+    //压缩一个队列的消息文件：有效记录不到一半的封存段复制有效记录之后替换，没有有效记录的封存段直接删除
+    //复制的时候不持有队列锁，发送、删除消息可以同时进行；只有替换段文件、更新消息位置的时候持有队列锁
+    private void compact(MSGQueue queue, SegmentCompactor.Pacer pacer) throws IOException, MqException {
+        // 1. 记录gc耗时
+        long startTime = System.currentTimeMillis();
+        QueueLog queueLog = queueLogs.get(queue.getName());
+        if(queueLog == null || loadingQueues.contains(queue.getName())){
+            return;
+        }
+        //2. 活跃段中的无效记录超过一半时封存，之后的写入进入新的段，这个段可以被压缩
+        int[] activeCounts = queueLog.countActiveRecords();
+        if(activeCounts[0] > 0 && activeCounts[1] * 2 < activeCounts[0]){
+            queueLog.roll();
+        }
+        int removed = 0;
+        for(LogSegment segment : queueLog.sealedSegments()){
+            //正在加载消息的队列等下一次再压缩
+            if(pacer.isCancelled() || loadingQueues.contains(queue.getName())){
+                return;
+            }
+            //3. 只读取记录头，判断是否值得压缩
+            int[] counts = segment.countRecords();
+            if(counts[0] == 0 || counts[1] * 2 >= counts[0]){
+                continue;
+            }
+            removed += counts[1] == 0
+                    ? dropSegment(queue, queueLog, segment, counts[0])
+                    : compactSegment(queue, queueLog, segment, counts, pacer);
+        }
+        if(removed > 0){
+            long endTime = System.currentTimeMillis();
+            log.info("[MessageFileManager] gc 完成, queueName:{}, 删除记录数:{}, 消耗时间：{} ms",
+                    queue.getName(), removed, (endTime - startTime));
+        }
+    }
+
+    //段中的记录都已经被删除，直接删除段文件，返回删除的记录数
+    private int dropSegment(MSGQueue queue, QueueLog queueLog, LogSegment segment, int total) throws IOException, MqException {
         synchronized (queue) {
-            // 1. 记录gc耗时
-            long startTime = System.currentTimeMillis();
-            //1. 创建新的文件
-            File queueDataNewfile = new File(getQueueDataNewPath(queue.getName()));
-///            boolean ok = queueDataNewfile.mkdirs(); //这个是创建目录不是而不是创建文件！！
-            //1.1 不应该存在，存在说明上次gc意外退出，应该报错
-            if(queueDataNewfile.exists()){
-                throw new MqException("[MessageFileManager] gc时发现 queue_data_new 已经存在：queueDataNewFiles:"+queueDataNewfile.getName());
+            queueLog.deleteSegment(segment);
+            updateTotalCount(queue, total);
+        }
+        return total;
+    }
+
+    //把段中的有效记录复制到临时文件，再在队列锁中替换段文件并通知内存中的消息对象，返回删除的记录数
+    private int compactSegment(MSGQueue queue, QueueLog queueLog, LogSegment segment, int[] counts,
+                               SegmentCompactor.Pacer pacer) throws IOException, MqException {
+        File compacted = new File(segment.getFile().getPath() + LogSegment.COMPACT_SUFFIX);
+        //复制期间只会有消息被删除，有效记录不会超过统计时的数量
+        long[] oldPositions = new long[counts[1]];
+        long[] newPositions = new long[counts[1]];
+        List<Message> relocated = new ArrayList<>(counts[1]);
+        //1. 复制有效记录，不持有队列锁
+        boolean copied = segment.copyValidRecords(compacted, (oldPosition, newPosition, payload) -> {
+            if(relocated.size() == oldPositions.length){
+                throw new MqException("[MessageFileManager] 压缩时有效记录数超过统计结果, file:" + segment.getFile().getName());
             }
-            if(!queueDataNewfile.createNewFile()){
-                throw new MqException("[MessageFileManager] 创建文件失败：queueDataNewFiles:"+queueDataNewfile.getName());
+            oldPositions[relocated.size()] = oldPosition;
+            newPositions[relocated.size()] = newPosition;
+            Message message = new Message();
+            message.setMessageId(MessageRecord.decodeMessageId(payload));
+            message.setSegmentId(segment.getId());
+            message.setPosition(newPosition);
+            relocated.add(message);
+            return pacer.onCopied(LogSegment.RECORD_HEADER_SIZE + payload.remaining());
+        });
+        try {
+            if(!copied){
+                return 0;
             }
-            //2. 从原来的文件中读取所有有用的消息对象
-            LinkedList<Message> messages = loadMessageFromQueue(queue.getName());
-            //3. 把有效消息直接写入文件
-            /// 这里不能是queueDataNewFile.getName()
-            /// 因为这样是在当前工作目录（通常是项目根目录）下创建并打开一个名为 "queue_data_new.txt" 的文件进行写入。
-            try(OutputStream out = new FileOutputStream(queueDataNewfile)) {
-                try(DataOutputStream dos = new DataOutputStream(out)) {
-                    for(Message message : messages){
-                        //3.1 写入队列的消息文件
-                        //3.1.1 转化为二进制对象
-                        byte[] messageBitys = BinaryTool.toBytes(message);
-                        //3.1.2 写入文件
-                        dos.writeInt(messageBitys.length);
-                        dos.write(messageBitys);
+            //2. 替换段文件，复制之后才删除的消息在新的段中也标记为删除
+            synchronized (queue) {
+                if(pacer.isCancelled()){
+                    return 0;
+                }
+                queueLog.replaceSegment(segment, compacted, oldPositions, newPositions, relocated.size());
+                //3. 内存中的消息对象还指向旧的位置
+                if(relocationListener != null){
+                    for(Message message : relocated){
+                        relocationListener.accept(queue.getName(), message);
                     }
                 }
+                int removed = counts[0] - relocated.size();
+                updateTotalCount(queue, removed);
+                return removed;
             }
-            //4. 删除旧的数据文件，并且把新的数据文件进行重命名
-            File queueDataOldFile = new File(getQueueDataPath(queue.getName()));
-            boolean ok = queueDataOldFile.delete();
-            if(!ok){
-                throw new MqException("[MessageFileManager] 删除旧的文件失败！queueDataOldFiles:"+queueDataOldFile.getAbsolutePath());
-            }
-            ok = queueDataNewfile.renameTo(queueDataOldFile);
-            if(!ok){
-                throw new MqException("[MessageFileManager] 文件重命名失败 queueDataNewFiles:"+queueDataNewfile.getAbsolutePath() +
-                        "queueDataOldFiles:"+queueDataOldFile.getAbsolutePath());
-            }
-            //5. 更新消息统计文件
-            try {
-                Stat stat = readStat(queue.getName());
-                stat.totalCount = messages.size();
-                stat.validCount = messages.size();;
-                writeStat(queue.getName(), stat);
-            } catch (MqException e) {
-                log.error("数据已经写入data文件，但是stat文件写入失败，stat:{},导致文件数据不一致", queue.getName());
-                throw new IOException("[MessageFileManager] 更新stat文件失败"+queue.getName(),e);
-            }
-            long endTime = System.currentTimeMillis();
-            log.info("[MessageFileManager] gc 消耗时间：{} ms", (endTime - startTime));
+        } finally {
+            Files.deleteIfExists(compacted.toPath());
         }
     }
+
+    //gc 删除了 removed 条无效记录之后更新统计数
+    private void updateTotalCount(MSGQueue queue, int removed) throws MqException {
+        StatCounter counter = getStatCounter(queue.getName());
+        counter.totalCount.updateAndGet(count -> Math.max(counter.validCount.get(), count - removed));
+        counter.dirty.set(true);
+    }
 }
@@ -0,0 +1,95 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.BinaryReader;
+import com.doublez.common.BinaryWriter;
+import com.doublez.common.MqException;
+import com.doublez.mqserver.core.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 消息在段文件中的记录内容（不包含记录头）
+ * 格式: [版本(1)] [messageId] [routingKey] [deliveryMode(varint)] [body 长度(varint)] [body]
+ * 消息体在共享存储中的记录使用版本 2: [版本(1)] [messageId] [routingKey] [deliveryMode(varint)] [bodySegmentId(varlong)] [bodyPosition(varlong)]
+ * 字符串是 varint 长度前缀 + UTF-8，编码方式和 BinaryWriter 一致
+ * 不再使用 Java 序列化，记录中没有类描述信息，读取时也不需要反射
+ */
+class MessageRecord {
+    static final byte VERSION = 1;
+    static final byte VERSION_SHARED_BODY = 2;
+
+    private MessageRecord() {
+    }
+
+    static byte[] encode(Message message) {
+        if (message.isBodyShared()) {
+            BinaryWriter writer = new BinaryWriter(64);
+            writer.writeByte(VERSION_SHARED_BODY);
+            writer.writeString(message.getMessageId());
+            writer.writeString(message.getRoutingKey());
+            writer.writeVarInt(message.getDeliveryMode());
+            writer.writeVarLong(message.getBodySegmentId());
+            writer.writeVarLong(message.getBodyPosition());
+            return writer.toByteArray();
+        }
+        byte[] body = message.getBody();
+        BinaryWriter writer = new BinaryWriter(64 + (body == null ? 0 : body.length));
+        writer.writeByte(VERSION);
+        writer.writeString(message.getMessageId());
+        writer.writeString(message.getRoutingKey());
+        writer.writeVarInt(message.getDeliveryMode());
+        writer.writeBytes(body);
+        return writer.toByteArray();
+    }
+
+    //只解码 messageId，压缩段文件时用来找到内存中的消息对象
+    static String decodeMessageId(ByteBuffer payload) throws MqException {
+        try {
+            BinaryReader reader = new BinaryReader(payload.duplicate());
+            byte version = reader.readByte();
+            if (version != VERSION && version != VERSION_SHARED_BODY) {
+                throw new MqException("[MessageRecord] 不支持的记录版本! version:" + version);
+            }
+            return reader.readString();
+        } catch (IOException e) {
+            throw new MqException("[MessageRecord] 记录格式错误! " + e.getMessage());
+        }
+    }
+
+    //payload 可以是段文件映射内存上的切片，body 会被复制出来
+    //消息体在共享存储中的记录只解码出位置，body 为 null
+    static Message decode(ByteBuffer payload) throws MqException {
+        return decode(payload, true);
+    }
+
+    //只解码消息的索引信息，跳过 body 不复制，惰性队列恢复时使用，body 推送之前再从段文件读回
+    static Message decodeIndex(ByteBuffer payload) throws MqException {
+        return decode(payload, false);
+    }
+
+    private static Message decode(ByteBuffer payload, boolean withBody) throws MqException {
+        try {
+            BinaryReader reader = new BinaryReader(payload);
+            byte version = reader.readByte();
+            if (version != VERSION && version != VERSION_SHARED_BODY) {
+                throw new MqException("[MessageRecord] 不支持的记录版本! version:" + version);
+            }
+            Message message = new Message();
+            message.setMessageId(reader.readString());
+            message.setRoutingKey(reader.readString());
+            message.setDeliveryMode(reader.readVarInt());
+            if (version == VERSION_SHARED_BODY) {
+                message.setBodySegmentId(reader.readVarLong());
+                message.setBodyPosition(reader.readVarLong());
+            } else if (withBody) {
+                message.setBody(reader.readBytes());
+            } else {
+                reader.skipBytes();
+            }
+            return message;
+        } catch (IOException e) {
+            throw new MqException("[MessageRecord] 记录格式错误! " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.MqException;
+import com.doublez.mqserver.core.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+/**
+ * 一个队列的分段追加日志
+ * 消息只追加到活跃段，活跃段写满（超过 segmentSize）后封存并创建下一个段
+ * 消息在日志中的位置用 (segmentId, position) 表示
+ * 压缩段文件时先写临时文件，再写清单文件 compaction.manifest 记录要替换的段，替换完成后删除清单：
+ * 打开日志的时候，有清单并且临时文件完整就继续替换，否则删除临时文件，原来的段文件保持不变
+ */
+@Slf4j
+class QueueLog implements Closeable {
+    //压缩清单文件名
+    static final String MANIFEST_NAME = "compaction.manifest";
+    //写清单时使用的临时文件
+    private static final String MANIFEST_TMP_NAME = MANIFEST_NAME + ".tmp";
+
+    private final File dir;
+    private final long segmentSize;
+    //key: segmentId, value: 段文件，按照编号有序
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    //当前写入的段
+    private LogSegment active;
+    //打开的时候处理了上次没有完成的压缩，段中的记录数可能和统计文件不一致
+    private boolean compactionRecovered = false;
+
+    private QueueLog(File dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    //打开队列目录下的所有段文件，没有段文件时创建第一个段
+    static QueueLog open(File dir, long segmentSize) throws IOException, MqException {
+        QueueLog queueLog = new QueueLog(dir, segmentSize);
+        //先处理上次没有完成的压缩，之后再打开段文件
+        queueLog.compactionRecovered = recoverCompaction(dir);
+        File[] files = dir.listFiles();
+        TreeMap<Long, File> segmentFiles = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                //升级、压缩段文件时崩溃残留的临时文件，原来的段文件还是完整的
+                if (file.getName().endsWith(LogSegment.UPGRADE_SUFFIX) || file.getName().endsWith(LogSegment.COMPACT_SUFFIX)) {
+                    log.info("[QueueLog] 删除残留的临时文件, file:{}", file.getName());
+                    Files.delete(file.toPath());
+                    queueLog.compactionRecovered |= file.getName().endsWith(LogSegment.COMPACT_SUFFIX);
+                    continue;
+                }
+                long id = LogSegment.parseId(file.getName());
+                if (id >= 0) {
+                    segmentFiles.put(id, file);
+                }
+            }
+        }
+        //创建新段之后段头还没有落盘就崩溃，最后一个段可能连段头都不完整，里面不会有任何记录
+        if (!segmentFiles.isEmpty() && segmentFiles.lastEntry().getValue().length() < LogSegment.HEADER_SIZE) {
+            File empty = segmentFiles.pollLastEntry().getValue();
+            log.info("[QueueLog] 删除不完整的空段文件, file:{}", empty.getName());
+            Files.delete(empty.toPath());
+        }
+        for (Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+            queueLog.segments.put(entry.getKey(), LogSegment.open(entry.getValue(), entry.getKey()));
+        }
+        if (queueLog.segments.isEmpty()) {
+            queueLog.active = LogSegment.create(dir, 0);
+            queueLog.segments.put(0L, queueLog.active);
+            forceDirectory(dir);
+        } else {
+            queueLog.active = queueLog.segments.lastEntry().getValue();
+            queueLog.active.activate();
+        }
+        return queueLog;
+    }
+
+    //清单文件存在说明压缩已经写完临时文件，临时文件完整的时候继续替换，不完整的时候放弃
+    //清单文件不存在时残留的临时文件在之后打开段文件的时候删除
+    //返回是否处理了没有完成的压缩
+    private static boolean recoverCompaction(File dir) throws IOException {
+        Files.deleteIfExists(new File(dir, MANIFEST_TMP_NAME).toPath());
+        File manifest = new File(dir, MANIFEST_NAME);
+        if (!manifest.exists()) {
+            return false;
+        }
+        long segmentId = -1;
+        long length = -1;
+        try (Scanner scanner = new Scanner(manifest)) {
+            segmentId = scanner.nextLong();
+            length = scanner.nextLong();
+        } catch (NoSuchElementException e) {
+            log.warn("[QueueLog] 压缩清单文件格式错误, dir:{}", dir.getName());
+        }
+        if (segmentId >= 0) {
+            File segmentFile = new File(dir, LogSegment.fileName(segmentId));
+            File compacted = new File(segmentFile.getPath() + LogSegment.COMPACT_SUFFIX);
+            if (compacted.exists() && compacted.length() == length) {
+                Files.move(compacted.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                forceDirectory(dir);
+                log.info("[QueueLog] 完成上次没有完成的压缩, dir:{}, segmentId:{}", dir.getName(), segmentId);
+            } else if (compacted.exists()) {
+                log.warn("[QueueLog] 压缩的临时文件不完整, 放弃这次压缩, dir:{}, segmentId:{}", dir.getName(), segmentId);
+            } else {
+                //临时文件已经替换了段文件，只是清单还没有删除
+                log.info("[QueueLog] 压缩已经完成, 删除清单文件, dir:{}, segmentId:{}", dir.getName(), segmentId);
+            }
+        }
+        Files.delete(manifest.toPath());
+        forceDirectory(dir);
+        return true;
+    }
+
+    //清单内容: segmentId 和临时文件的长度，先写入临时的清单文件，落盘之后再原子地改名
+    private void writeManifest(long segmentId, long length) throws IOException {
+        File manifest = new File(dir, MANIFEST_NAME);
+        File tmp = new File(dir, MANIFEST_TMP_NAME);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write((segmentId + "\t" + length).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(dir);
+    }
+
+    //把目录项的修改（创建、改名、删除）刷到磁盘，不支持的平台忽略
+    private static void forceDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("[QueueLog] 目录不支持 force, dir:{}", dir.getName());
+        }
+    }
+
+    boolean isCompactionRecovered() {
+        return compactionRecovered;
+    }
+
+    //追加一条消息记录，并把记录位置写回 message
+    synchronized void append(Message message, byte[] payload) throws IOException {
+        append(List.of(message), List.of(payload));
+    }
+
+    //追加一批消息记录，同一个段中的记录只写入一次，记录位置写回每个 message
+    synchronized void append(List<Message> messages, List<byte[]> payloads) throws IOException {
+        int from = 0;
+        while (from < payloads.size()) {
+            //计算活跃段还能放下多少条记录，一条都放不下就换一个新段
+            long position = active.getWritePosition();
+            int to = from;
+            while (to < payloads.size()
+                    && (position == LogSegment.HEADER_SIZE
+                    || position + LogSegment.RECORD_HEADER_SIZE + payloads.get(to).length <= segmentSize)) {
+                position += LogSegment.RECORD_HEADER_SIZE + payloads.get(to).length;
+                to++;
+            }
+            if (to == from) {
+                roll();
+                continue;
+            }
+            long[] positions = active.append(payloads.subList(from, to));
+            for (int i = from; i < to; i++) {
+                messages.get(i).setSegmentId(active.getId());
+                messages.get(i).setPosition(positions[i - from]);
+            }
+            from = to;
+        }
+    }
+
+    //把写入的数据刷到磁盘，封存的段在封存的时候已经刷过了
+    synchronized void force() throws IOException {
+        active.force();
+    }
+
+    //读取消息记录的内容，封存段返回的是映射内存上的切片
+    synchronized ByteBuffer read(long segmentId, long position) throws IOException, MqException {
+        return segment(segmentId).read(position);
+    }
+
+    //只读取记录的有效标记，位置超出段文件时抛出异常
+    synchronized byte readFlag(long segmentId, long position) throws IOException, MqException {
+        return segment(segmentId).readFlag(position);
+    }
+
+    //把记录的有效标记改成删除，只写一个字节，返回这条记录之前是否有效
+    synchronized boolean markDeleted(long segmentId, long position) throws IOException, MqException {
+        return segment(segmentId).writeFlag(position, LogSegment.FLAG_DELETED) == LogSegment.FLAG_VALID;
+    }
+
+    //按照段的顺序遍历所有记录
+    //封存的段不会再追加，遍历的时候不持有锁，恢复大队列的时候不会挡住删除消息；只有活跃段在锁中遍历
+    void scan(SegmentRecordVisitor visitor) throws IOException, MqException {
+        List<LogSegment> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(segments.values());
+        }
+        for (LogSegment segment : snapshot) {
+            LogSegment.RecordVisitor segmentVisitor = (position, flag, payload) -> visitor.visit(segment.getId(), position, flag, payload);
+            synchronized (this) {
+                if (segment == active) {
+                    segment.scan(segmentVisitor);
+                    continue;
+                }
+            }
+            segment.scan(segmentVisitor);
+        }
+    }
+
+    //当前写入的段的编号
+    synchronized long activeSegmentId() {
+        return active.getId();
+    }
+
+    //当前所有段的编号
+    synchronized List<Long> segmentIds() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    //新建一个活跃段，之后的写入都进入新段，返回新段的编号
+    synchronized long roll() throws IOException {
+        active.seal();
+        long nextId = active.getId() + 1;
+        active = LogSegment.create(dir, nextId);
+        segments.put(nextId, active);
+        forceDirectory(dir);
+        log.info("[QueueLog] 创建新的段文件, dir:{}, segmentId:{}", dir.getName(), nextId);
+        return nextId;
+    }
+
+    //统计活跃段的 {记录数, 有效记录数}
+    synchronized int[] countActiveRecords() throws IOException, MqException {
+        return active.countRecords();
+    }
+
+    //除了活跃段之外的所有段，封存的段不会再追加记录，可以在不持有锁的情况下复制
+    synchronized List<LogSegment> sealedSegments() {
+        return new ArrayList<>(segments.headMap(active.getId()).values());
+    }
+
+    //用压缩之后的文件原子地替换段文件，调用者需要持有队列锁，保证替换期间消息的位置不会被使用
+    //copied 条记录从 oldPositions 复制到了 newPositions，复制之后才被删除的记录先在临时文件中标记为删除
+    //1. 临时文件落盘 2. 写清单 3. 改名替换段文件 4. 删除清单，任何一步崩溃都可以在打开的时候恢复
+    synchronized void replaceSegment(LogSegment old, File compacted, long[] oldPositions, long[] newPositions, int copied)
+            throws IOException, MqException {
+        if (segments.get(old.getId()) != old) {
+            throw new MqException("[QueueLog] 段文件已经被替换! dir:" + dir.getName() + ", segmentId:" + old.getId());
+        }
+        try (FileChannel channel = FileChannel.open(compacted.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer flag = ByteBuffer.allocate(1);
+            for (int i = 0; i < copied; i++) {
+                if (old.readFlag(oldPositions[i]) != LogSegment.FLAG_VALID) {
+                    flag.clear();
+                    flag.put(0, LogSegment.FLAG_DELETED);
+                    channel.write(flag, newPositions[i] + LogSegment.FLAG_OFFSET);
+                }
+            }
+            channel.force(false);
+        }
+        writeManifest(old.getId(), compacted.length());
+        old.release();
+        Files.move(compacted.toPath(), old.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(dir);
+        segments.put(old.getId(), LogSegment.open(old.getFile(), old.getId()));
+        Files.delete(new File(dir, MANIFEST_NAME).toPath());
+    }
+
+    //统计所有段的 {记录数, 有效记录数}
+    synchronized int[] countRecords() throws IOException, MqException {
+        int[] counts = new int[2];
+        for (LogSegment segment : segments.values()) {
+            int[] segmentCounts = segment.countRecords();
+            counts[0] += segmentCounts[0];
+            counts[1] += segmentCounts[1];
+        }
+        return counts;
+    }
+
+    //删除一个没有有效记录的封存段
+    synchronized void deleteSegment(LogSegment old) throws IOException, MqException {
+        if (segments.get(old.getId()) != old || old == active) {
+            throw new MqException("[QueueLog] 不能删除这个段! dir:" + dir.getName() + ", segmentId:" + old.getId());
+        }
+        segments.remove(old.getId());
+        old.release();
+        if (!old.getFile().delete()) {
+            throw new IOException("[QueueLog] 删除段文件失败! file:" + old.getFile().getAbsolutePath());
+        }
+    }
+
+    //删除编号小于 segmentId 的所有段
+    synchronized void deleteSegmentsBefore(long segmentId) throws IOException {
+        while (!segments.isEmpty() && segments.firstKey() < segmentId) {
+            Map.Entry<Long, LogSegment> entry = segments.pollFirstEntry();
+            entry.getValue().release();
+            if (!entry.getValue().getFile().delete()) {
+                throw new IOException("[QueueLog] 删除段文件失败! file:" + entry.getValue().getFile().getAbsolutePath());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    private LogSegment segment(long segmentId) throws MqException {
+        LogSegment segment = segments.get(segmentId);
+        if (segment == null) {
+            throw new MqException("[QueueLog] 段文件不存在! dir:" + dir.getName() + ", segmentId:" + segmentId);
+        }
+        return segment;
+    }
+
+    @FunctionalInterface
+    interface SegmentRecordVisitor {
+        void visit(long segmentId, long position, byte flag, ByteBuffer payload) throws IOException, MqException;
+    }
+}
@@ -0,0 +1,170 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.MqException;
+import com.doublez.mqserver.core.MSGQueue;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息文件的后台压缩线程
+ * 确认消息的线程只提交压缩请求，同一个队列在等待期间只排队一次，压缩在这个线程中进行
+ * 复制封存段的时候不持有队列锁，只有替换段文件、更新内存中的消息位置的时候短暂加锁
+ * 复制的速度限制在 bytesPerSecond 以内，避免压缩占满磁盘带宽，0 表示不限制
+ */
+@Slf4j
+class SegmentCompactor {
+    //空闲时检查是否关闭的间隔
+    private static final long IDLE_POLL_MS = 100;
+
+    //压缩一个队列，每复制一条记录调用一次 pacer
+    @FunctionalInterface
+    interface QueueCompaction {
+        void compact(MSGQueue queue, Pacer pacer) throws IOException, MqException;
+    }
+
+    private final QueueCompaction compaction;
+    private final long bytesPerSecond;
+    private final BlockingQueue<MSGQueue> requests = new LinkedBlockingQueue<>();
+    //已经在排队的队列名
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    //同一时间只压缩一个队列
+    private final Object runLock = new Object();
+    //正在压缩的队列，删除这个队列的时候通知压缩放弃
+    private volatile String current;
+    private volatile boolean cancelled = false;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    SegmentCompactor(QueueCompaction compaction, long bytesPerSecond) {
+        this.compaction = compaction;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::run, "segment-compactor");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("[SegmentCompactor] 压缩线程启动, bytesPerSecond:{}", bytesPerSecond);
+    }
+
+    //正在进行的压缩会在复制完下一条记录之后放弃
+    void shutdown() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        requests.clear();
+        pending.clear();
+    }
+
+    //不阻塞调用线程，队列已经在排队的时候什么都不做
+    void request(MSGQueue queue) {
+        if (running && pending.add(queue.getName())) {
+            requests.offer(queue);
+        }
+    }
+
+    //在调用线程中立即压缩，不限速
+    void compactNow(MSGQueue queue) throws IOException, MqException {
+        compact(queue, 0);
+    }
+
+    //队列被删除之前调用：取消排队的请求，等待正在进行的压缩放弃
+    void cancel(String queueName) {
+        pending.remove(queueName);
+        if (queueName.equals(current)) {
+            cancelled = true;
+        }
+        synchronized (runLock) {
+            //只用来等待正在进行的压缩结束
+        }
+    }
+
+    private void run() {
+        while (running) {
+            MSGQueue queue;
+            try {
+                queue = requests.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            //排队期间被取消的请求不再处理
+            if (queue == null || !pending.remove(queue.getName())) {
+                continue;
+            }
+            try {
+                compact(queue, bytesPerSecond);
+            } catch (IOException | MqException e) {
+                log.error("[SegmentCompactor] 压缩失败, queueName:{}, e:{}", queue.getName(), e.getMessage());
+            }
+        }
+        log.info("[SegmentCompactor] 压缩线程退出");
+    }
+
+    private void compact(MSGQueue queue, long rate) throws IOException, MqException {
+        synchronized (runLock) {
+            cancelled = false;
+            current = queue.getName();
+            try {
+                compaction.compact(queue, new Pacer(rate));
+            } finally {
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * 一次压缩的限速器，同时检查压缩是否需要放弃
+     */
+    class Pacer {
+        private final long rate;
+        private final long startTime = System.nanoTime();
+        private long copiedBytes = 0;
+
+        private Pacer(long rate) {
+            this.rate = rate;
+        }
+
+        //队列被删除或者压缩线程正在关闭
+        boolean isCancelled() {
+            return cancelled || (thread == Thread.currentThread() && !running);
+        }
+
+        //复制了 bytes 字节之后调用，复制得比限速快的时候睡眠，返回 false 表示需要放弃这次压缩
+        boolean onCopied(long bytes) {
+            if (isCancelled()) {
+                return false;
+            }
+            copiedBytes += bytes;
+            if (rate <= 0) {
+                return true;
+            }
+            long expected = (long) (copiedBytes * 1e9 / rate);
+            long ahead = expected - (System.nanoTime() - startTime);
+            if (ahead >= 1_000_000L) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(ahead);
+                } catch (InterruptedException e) {
+                    //关闭压缩线程时被中断
+                    return false;
+                }
+            }
+            return !isCancelled();
+        }
+    }
+}
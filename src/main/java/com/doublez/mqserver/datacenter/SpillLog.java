@@ -0,0 +1,95 @@
+package com.doublez.mqserver.datacenter;
+
+import com.doublez.common.MqException;
+import com.doublez.mqserver.core.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * 非持久化消息的溢出文件
+ * 队列在内存中的消息体超过预算之后，非持久化消息的消息体暂存到这里，推送之前再读回内存
+ * 复用 QueueLog 的分段格式，但是不刷盘，重启的时候直接清空（非持久化消息本来就不需要在重启之后保留）
+ * 消息读回之后记录标记为删除，最早的段中没有剩余的记录之后整段删除
+ */
+@Slf4j
+class SpillLog implements Closeable {
+    private final DirectoryLock directoryLock;
+    private final QueueLog queueLog;
+    //key: segmentId, value: 段中还没有读回的记录数
+    private final TreeMap<Long, Integer> liveRecords = new TreeMap<>();
+
+    private SpillLog(DirectoryLock directoryLock, QueueLog queueLog) {
+        this.directoryLock = directoryLock;
+        this.queueLog = queueLog;
+    }
+
+    //先锁住目录，目录被其他数据中心使用的时候抛出 MqException，不会删除对方正在使用的文件
+    //然后清空目录中上一次运行留下的文件，创建新的溢出文件
+    static SpillLog open(File dir, long segmentSize) throws IOException, MqException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("[SpillLog] 创建溢出目录失败! dir:" + dir.getAbsolutePath());
+        }
+        DirectoryLock directoryLock = DirectoryLock.acquire(dir);
+        try {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.getName().equals(DirectoryLock.LOCK_FILE) && !file.delete()) {
+                        throw new IOException("[SpillLog] 删除旧的溢出文件失败! file:" + file.getAbsolutePath());
+                    }
+                }
+            }
+            log.info("[SpillLog] 创建溢出文件, dir:{}", dir.getPath());
+            return new SpillLog(directoryLock, QueueLog.open(dir, segmentSize));
+        } catch (IOException | MqException e) {
+            directoryLock.close();
+            throw e;
+        }
+    }
+
+    //写入消息，记录位置写回 message 的 (segmentId, position)
+    synchronized void write(Message message) throws IOException {
+        queueLog.append(message, MessageRecord.encode(message));
+        liveRecords.merge(message.getSegmentId(), 1, Integer::sum);
+    }
+
+    //读回消息体，读过的记录不会再被读取
+    synchronized byte[] read(Message message) throws IOException, MqException {
+        long segmentId = message.getSegmentId();
+        Message stored = MessageRecord.decode(queueLog.read(segmentId, message.getPosition()));
+        if (!Objects.equals(stored.getMessageId(), message.getMessageId())) {
+            throw new MqException("[SpillLog] 消息位置错误! messageId:" + message.getMessageId());
+        }
+        discard(segmentId, message.getPosition());
+        return stored.getBody();
+    }
+
+    //消息不会再被读回（所在的队列被删除了），只把记录标记为删除
+    synchronized void release(Message message) throws IOException, MqException {
+        discard(message.getSegmentId(), message.getPosition());
+    }
+
+    private void discard(long segmentId, long position) throws IOException, MqException {
+        if (queueLog.markDeleted(segmentId, position)) {
+            liveRecords.computeIfPresent(segmentId, (id, count) -> count > 1 ? count - 1 : null);
+            //最早的剩余记录之前的段都已经读完了
+            long keepFrom = liveRecords.isEmpty() ? queueLog.activeSegmentId()
+                    : Math.min(liveRecords.firstKey(), queueLog.activeSegmentId());
+            queueLog.deleteSegmentsBefore(keepFrom);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            queueLog.close();
+        } finally {
+            directoryLock.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.doublez.mqserver.datacenter;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * 队列消息统计的二进制检查点 queue_stat.bin
+ * 格式: [magic(4)] [version(4)] [正常关闭标记(1)] [totalCount(4)] [validCount(4)] [CRC32(4)]，CRC32 覆盖前面所有字节
+ * 运行期间的统计数只保存在内存中，定期写入检查点；只有正常关闭时写入的检查点可以在启动时直接使用，
+ * 否则（崩溃之后）按照段文件中的记录头重新计算
+ * 先写入临时文件，落盘之后再原子地改名，检查点不会只写了一半
+ */
+@Slf4j
+class StatCheckpoint {
+    static final int MAGIC = 0x4D515354;//"MQST"
+    static final int VERSION = 1;
+    static final int SIZE = 21;
+    static final String TMP_SUFFIX = ".tmp";
+
+    final int totalCount;
+    final int validCount;
+    //正常关闭时写入，之后没有再修改过统计数
+    final boolean clean;
+
+    StatCheckpoint(int totalCount, int validCount, boolean clean) {
+        this.totalCount = totalCount;
+        this.validCount = validCount;
+        this.clean = clean;
+    }
+
+    //文件不存在或者内容损坏返回 null，调用者需要重新计算统计数
+    static StatCheckpoint read(File file) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length != SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(SIZE - 4) != crc(bytes)) {
+            log.warn("[StatCheckpoint] 检查点文件损坏, file:{}", file.getAbsolutePath());
+            return null;
+        }
+        return new StatCheckpoint(buffer.getInt(9), buffer.getInt(13), buffer.get(8) == 1);
+    }
+
+    void write(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .put((byte) (clean ? 1 : 0))
+                .putInt(totalCount)
+                .putInt(validCount);
+        buffer.putInt(crc(buffer.array()));
+        buffer.flip();
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, SIZE - 4);
+        return (int) crc32.getValue();
+    }
+}
@@ -0,0 +1,143 @@
+package com.doublez.common;
+
+import com.doublez.mqserver.core.BasicProperties;
+import com.doublez.mqserver.core.ExchangeType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class WireCodecTest {
+
+    @Test
+    void testPublishRoundTrip() throws IOException, ClassNotFoundException {
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setMessageId("M-1");
+        basicProperties.setRoutingKey("key");
+        basicProperties.setDeliveryMode(2);
+        BasicPublishArguments arguments = new BasicPublishArguments();
+        arguments.setRid("R-1");
+        arguments.setChannelId("C-1");
+        arguments.setExchangeName("exchange");
+        arguments.setRoutingKey("key");
+        arguments.setBasicProperties(basicProperties);
+        arguments.setBody("hello".getBytes());
+
+        byte[] payload = WireCodec.encodeArguments(0x9, arguments, WireCodec.Format.BINARY);
+        Assertions.assertEquals(WireCodec.Format.BINARY, WireCodec.detect(payload));
+        //二进制格式不带类描述信息，比 Java 序列化小得多
+        Assertions.assertTrue(payload.length < BinaryTool.toBytes(arguments).length / 4);
+
+        BasicPublishArguments decoded = (BasicPublishArguments) WireCodec.decodeArguments(0x9, payload);
+        Assertions.assertEquals("R-1", decoded.getRid());
+        Assertions.assertEquals("C-1", decoded.getChannelId());
+        Assertions.assertEquals("exchange", decoded.getExchangeName());
+        Assertions.assertEquals(basicProperties, decoded.getBasicProperties());
+        Assertions.assertArrayEquals("hello".getBytes(), decoded.getBody());
+    }
+
+    @Test
+    void testDeclareArguments() throws IOException, ClassNotFoundException {
+        Map<String, Object> map = new HashMap<>();
+        map.put("aaa", 1);
+        map.put("bbb", "text");
+        map.put("ccc", null);
+        map.put("ddd", 3.5);
+        ExchangeDeclareArguments arguments = new ExchangeDeclareArguments();
+        arguments.setRid("R-2");
+        arguments.setChannelId("C-2");
+        arguments.setExchangeName("exchange");
+        arguments.setExchangeType(ExchangeType.TOPIC);
+        arguments.setDurable(true);
+        arguments.setArguments(map);
+
+        byte[] payload = WireCodec.encodeArguments(0x3, arguments, WireCodec.Format.BINARY);
+        ExchangeDeclareArguments decoded = (ExchangeDeclareArguments) WireCodec.decodeArguments(0x3, payload);
+        Assertions.assertEquals(arguments, decoded);
+
+        //null 字段
+        QueueDeclareArguments queueArguments = new QueueDeclareArguments();
+        queueArguments.setRid("R-3");
+        payload = WireCodec.encodeArguments(0x5, queueArguments, WireCodec.Format.BINARY);
+        Assertions.assertEquals(queueArguments, WireCodec.decodeArguments(0x5, payload));
+    }
+
+    @Test
+    void testReturns() throws IOException, ClassNotFoundException {
+        SubScribeReturns subScribeReturns = new SubScribeReturns();
+        subScribeReturns.setRid("");
+        subScribeReturns.setChannelId("C-1");
+        subScribeReturns.setOk(true);
+        subScribeReturns.setConsumerTag("C-1");
+        subScribeReturns.setBasicProperties(new BasicProperties());
+        subScribeReturns.setBody(new byte[]{1, 2, 3});
+        byte[] payload = WireCodec.encodeReturns(0xc, subScribeReturns, WireCodec.Format.BINARY);
+        SubScribeReturns decoded = (SubScribeReturns) WireCodec.decodeReturns(0xc, payload);
+        Assertions.assertEquals(subScribeReturns.getConsumerTag(), decoded.getConsumerTag());
+        Assertions.assertEquals(subScribeReturns.getBasicProperties(), decoded.getBasicProperties());
+        Assertions.assertArrayEquals(subScribeReturns.getBody(), decoded.getBody());
+        Assertions.assertTrue(decoded.isOk());
+    }
+
+    @Test
+    void testPublishBatch() throws IOException, ClassNotFoundException {
+        List<BasicPublishArguments> entries = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            BasicPublishArguments entry = new BasicPublishArguments();
+            entry.setExchangeName("exchange");
+            entry.setRoutingKey("key" + i);
+            entry.setBody(new byte[]{(byte) i});
+            entries.add(entry);
+        }
+        BasicPublishBatchArguments arguments = new BasicPublishBatchArguments();
+        arguments.setRid("R-5");
+        arguments.setChannelId("C-5");
+        arguments.setEntries(entries);
+        byte[] payload = WireCodec.encodeArguments(0xd, arguments, WireCodec.Format.BINARY);
+        BasicPublishBatchArguments decoded = (BasicPublishBatchArguments) WireCodec.decodeArguments(0xd, payload);
+        Assertions.assertEquals("R-5", decoded.getRid());
+        Assertions.assertEquals(10, decoded.getEntries().size());
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals("key" + i, decoded.getEntries().get(i).getRoutingKey());
+            Assertions.assertArrayEquals(new byte[]{(byte) i}, decoded.getEntries().get(i).getBody());
+        }
+
+        //每条消息的结果
+        boolean[] results = new boolean[10];
+        results[0] = true;
+        results[9] = true;
+        BasicPublishBatchReturns returns = new BasicPublishBatchReturns();
+        returns.setRid("R-5");
+        returns.setResults(results);
+        payload = WireCodec.encodeReturns(0xd, returns, WireCodec.Format.BINARY);
+        BasicPublishBatchReturns decodedReturns = (BasicPublishBatchReturns) WireCodec.decodeReturns(0xd, payload);
+        Assertions.assertArrayEquals(results, decodedReturns.getResults());
+        Assertions.assertFalse(decodedReturns.isOk());
+    }
+
+    //旧客户端发送的 Java 序列化 payload 依然可以解析
+    @Test
+    void testJavaFallback() throws IOException, ClassNotFoundException {
+        BasicAckArguments arguments = new BasicAckArguments();
+        arguments.setRid("R-4");
+        arguments.setChannelId("C-4");
+        arguments.setQueueName("queue");
+        arguments.setMessageId("M-4");
+        byte[] payload = WireCodec.encodeArguments(0xb, arguments, WireCodec.Format.JAVA);
+        Assertions.assertEquals(WireCodec.Format.JAVA, WireCodec.detect(payload));
+        Assertions.assertEquals(arguments, WireCodec.decodeArguments(0xb, payload));
+
+        BasicReturns returns = new BasicReturns();
+        returns.setRid("R-4");
+        returns.setOk(true);
+        payload = WireCodec.encodeReturns(0xb, returns, WireCodec.Format.JAVA);
+        Assertions.assertEquals(returns, WireCodec.decodeReturns(0xb, payload));
+
+        Assertions.assertThrows(IOException.class, () -> WireCodec.decodeArguments(0xb, new byte[]{0x7f}));
+        Assertions.assertThrows(IOException.class, () -> WireCodec.decodeArguments(0xb, new byte[]{WireCodec.VERSION, 5}));
+    }
+}
@@ -2,6 +2,7 @@ package com.doublez.mqserver;
 
 
 import com.doublez.Application;
+import com.doublez.common.BasicPublishArguments;
 import com.doublez.common.Consumer;
 import com.doublez.common.MqException;
 import com.doublez.mqclinet.Channel;
@@ -19,6 +20,13 @@ import org.springframework.boot.SpringApplication;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class MqClientTests {
     private BrokerServer brokerServer = null;
@@ -167,4 +175,207 @@ public class MqClientTests {
         channel.close();
         connection.close();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testManyMessages() throws IOException, InterruptedException, MqException {
+        Connection connection = factory.newConnection();
+        Channel producer = connection.createChannel();
+        Channel consumer = connection.createChannel();
+        Assertions.assertNotNull(producer);
+        Assertions.assertNotNull(consumer);
+
+        boolean ok = producer.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null);
+        Assertions.assertTrue(ok);
+        ok = producer.queueDeclare("testQueue", true, false, false, null);
+        Assertions.assertTrue(ok);
+
+        // 推送的消息和控制请求的响应走同一个连接, 帧之间不能交错
+        int count = 200;
+        CountDownLatch latch = new CountDownLatch(count);
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        ok = consumer.basicConsume("testQueue", true, (consumerTag, basicProperties, body) -> {
+            received.add(new String(body, StandardCharsets.UTF_8));
+            latch.countDown();
+        });
+        Assertions.assertTrue(ok);
+        for (int i = 0; i < count; i++) {
+            ok = producer.basicPublish("testExchange", "testQueue", null, ("hello " + i).getBytes(StandardCharsets.UTF_8));
+            Assertions.assertTrue(ok);
+        }
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(count, received.size());
+
+        producer.close();
+        consumer.close();
+        connection.close();
+    }
+
+    @Test
+    public void testPublishAsync() throws IOException, InterruptedException, MqException {
+        factory.setMaxOutstandingPublishes(64);
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertNotNull(channel);
+
+        boolean ok = channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null);
+        Assertions.assertTrue(ok);
+        ok = channel.queueDeclare("testQueue", true, false, false, null);
+        Assertions.assertTrue(ok);
+
+        // 不等待每一条消息的响应, 同时最多有 64 条消息等待确认
+        int count = 500;
+        List<CompletableFuture<Boolean>> confirms = new ArrayList<>();
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliveryMode(2);
+        for (int i = 0; i < count; i++) {
+            confirms.add(channel.basicPublishAsync("testExchange", "testQueue", basicProperties, ("hello " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        channel.waitForConfirms();
+        for (CompletableFuture<Boolean> confirm : confirms) {
+            Assertions.assertTrue(confirm.isDone());
+            Assertions.assertTrue(confirm.join());
+        }
+        // 发送到不存在的交换机会得到失败的确认
+        Assertions.assertFalse(channel.basicPublishAsync("noExchange", "testQueue", null, new byte[1]).join());
+
+        CountDownLatch latch = new CountDownLatch(count);
+        ok = channel.basicConsume("testQueue", true, (consumerTag, properties, body) -> latch.countDown());
+        Assertions.assertTrue(ok);
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testPublishBatch() throws IOException, InterruptedException, MqException {
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertNotNull(channel);
+
+        boolean ok = channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null);
+        Assertions.assertTrue(ok);
+        ok = channel.queueDeclare("testQueue", true, false, false, null);
+        Assertions.assertTrue(ok);
+
+        // 一个请求发送多条消息, 中间夹一条发送到不存在的交换机的消息
+        int count = 300;
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliveryMode(2);
+        List<BasicPublishArguments> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BasicPublishArguments entry = new BasicPublishArguments();
+            entry.setExchangeName(i == 100 ? "noExchange" : "testExchange");
+            entry.setRoutingKey("testQueue");
+            entry.setBasicProperties(basicProperties);
+            entry.setBody(("hello " + i).getBytes(StandardCharsets.UTF_8));
+            entries.add(entry);
+        }
+        boolean[] results = channel.basicPublishBatch(entries);
+        Assertions.assertEquals(count, results.length);
+        for (int i = 0; i < count; i++) {
+            Assertions.assertEquals(i != 100, results[i]);
+        }
+
+        // 除了发送失败的那一条, 其他消息都能收到
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(count - 1);
+        ok = channel.basicConsume("testQueue", true, (consumerTag, properties, body) -> {
+            received.add(new String(body, StandardCharsets.UTF_8));
+            latch.countDown();
+        });
+        Assertions.assertTrue(ok);
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(count - 1, received.size());
+        Assertions.assertFalse(received.contains("hello 100"));
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testSharedChannel() throws IOException, InterruptedException {
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertNotNull(channel);
+
+        boolean ok = channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null);
+        Assertions.assertTrue(ok);
+        ok = channel.queueDeclare("testQueue", true, false, false, null);
+        Assertions.assertTrue(ok);
+
+        // 多个线程共用一个 channel, 每个线程只会拿到自己请求的响应
+        int threads = 8;
+        int count = 50;
+        Set<String> failures = ConcurrentHashMap.newKeySet();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        // 交换机不存在的请求一定返回 false, 可以检查响应有没有串
+                        if (!channel.basicPublish("testExchange", "testQueue", null, new byte[]{(byte) id})
+                                || channel.basicPublish("noExchange", "testQueue", null, new byte[]{(byte) id})) {
+                            failures.add(id + "-" + i);
+                        }
+                    }
+                } catch (IOException e) {
+                    failures.add(e.getMessage());
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assertions.assertTrue(failures.isEmpty(), failures.toString());
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testFlowControl() throws IOException, InterruptedException {
+        // 重新启动一个磁盘水位线一定会超过的服务器
+        brokerServer.stop();
+        System.setProperty("mq.flow.disk-free-limit", String.valueOf(Long.MAX_VALUE));
+        try {
+            brokerServer = new BrokerServer(9090);
+        } finally {
+            System.clearProperty("mq.flow.disk-free-limit");
+        }
+        BrokerServer server = brokerServer;
+        t = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+
+        factory.setRequestTimeoutMillis(500);
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertNotNull(channel);
+        boolean ok = channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null);
+        Assertions.assertTrue(ok);
+        ok = channel.queueDeclare("testQueue", true, false, false, null);
+        Assertions.assertTrue(ok);
+
+        // 已经读到的消息正常处理, 之后服务器暂停读取这个连接并推送阻塞通知
+        ok = channel.basicPublish("testExchange", "testQueue", null, "hello".getBytes());
+        Assertions.assertTrue(ok);
+        for (int i = 0; i < 100 && !connection.isBlocked(); i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertTrue(connection.isBlocked());
+        // 阻塞期间发送消息会一直等待, 直到超时
+        Assertions.assertThrows(IOException.class,
+                () -> channel.basicPublish("testExchange", "testQueue", null, "hello".getBytes()));
+
+        connection.close();
+    }
+}
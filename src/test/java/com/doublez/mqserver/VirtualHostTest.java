@@ -4,6 +4,7 @@ import com.doublez.Application;
 import com.doublez.common.Consumer;
 import com.doublez.mqserver.core.BasicProperties;
 import com.doublez.mqserver.core.ExchangeType;
+import com.doublez.mqserver.core.MSGQueue;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
@@ -14,6 +15,15 @@ import org.springframework.boot.test.context.SpringBootTest;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -29,6 +39,7 @@ class VirtualHostTest {
 
     @AfterEach
     public void tearDown() throws IOException {
+        virtualHost.close();
         virtualHost = null;
         File file = new File("./data");
         Application.context.close();
@@ -232,6 +243,83 @@ class VirtualHostTest {
         Thread.sleep(500);
     }
 
+    @Test
+    public void testFanoutSharedBody() throws InterruptedException, IOException {
+        boolean ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.FANOUT, true, false, null);
+        Assertions.assertTrue(ok);
+        for (int i = 1; i <= 3; i++) {
+            ok = virtualHost.queueDeclare("testQueue" + i, true, false, false, null);
+            Assertions.assertTrue(ok);
+            ok = virtualHost.queueBind("testQueue" + i, "testExchange", "");
+            Assertions.assertTrue(ok);
+        }
+        byte[] body = new byte[64 * 1024];
+        Arrays.fill(body, (byte) 'x');
+        BasicProperties properties = new BasicProperties();
+        properties.setDeliveryMode(2);
+        ok = virtualHost.basicPublish("testExchange", "", properties, body);
+        Assertions.assertTrue(ok);
+
+        // 消息体只写了一次, 每个队列的记录中只有引用
+        for (int i = 1; i <= 3; i++) {
+            File segment = new File("./data/defaulttestQueue" + i + "/queue_data_00000000.txt");
+            Assertions.assertTrue(segment.length() < 1024, "queue segment length: " + segment.length());
+        }
+
+        // 重启之后每个队列都能读到完整的消息体, 每个队列的消息有自己的 messageId
+        virtualHost.close();
+        virtualHost = new VirtualHost("default");
+        List<String> messageIds = new CopyOnWriteArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            ok = virtualHost.basicConsume("testConsumer" + i, "testQueue" + i, true, (consumerTag, basicProperties, received) -> {
+                Assertions.assertArrayEquals(body, received);
+                messageIds.add(basicProperties.getMessageId());
+            });
+            Assertions.assertTrue(ok);
+        }
+        Thread.sleep(500);
+        Assertions.assertEquals(3, messageIds.size());
+        Assertions.assertEquals(3, Set.copyOf(messageIds).size());
+    }
+
+    @Test
+    public void testSharedBodyReleasedOnFailedPublish() throws Exception {
+        // 每个消息体单独占一个段, 引用数减到 0 之后整段删除
+        System.setProperty("mq.storage.segment-size", "4096");
+        try {
+            virtualHost.close();
+            virtualHost = new VirtualHost("default");
+            boolean ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.FANOUT, true, false, null);
+            Assertions.assertTrue(ok);
+            for (int i = 1; i <= 2; i++) {
+                ok = virtualHost.queueDeclare("testQueue" + i, true, false, false, null);
+                Assertions.assertTrue(ok);
+                ok = virtualHost.queueBind("testQueue" + i, "testExchange", "");
+                Assertions.assertTrue(ok);
+            }
+            // 第二个队列的文件被删掉, 写入这个队列失败, 这个队列的引用需要释放
+            FileUtils.deleteDirectory(new File("./data/defaulttestQueue2"));
+            byte[] body = new byte[64 * 1024];
+            Arrays.fill(body, (byte) 'x');
+            BasicProperties properties = new BasicProperties();
+            properties.setDeliveryMode(2);
+            for (int i = 0; i < 2; i++) {
+                ok = virtualHost.basicPublish("testExchange", "", properties, body);
+                Assertions.assertFalse(ok);
+            }
+
+            // 第一个队列写入的消息被消费之后, 第一个消息体没有引用了, 所在的段被删除
+            ok = virtualHost.basicConsume("testConsumer", "testQueue1", true,
+                    (consumerTag, basicProperties, bytes) -> Assertions.assertArrayEquals(body, bytes));
+            Assertions.assertTrue(ok);
+            Thread.sleep(500);
+            Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+            Assertions.assertFalse(new File("./data/.bodies/queue_data_00000000.txt").exists());
+        } finally {
+            System.clearProperty("mq.storage.segment-size");
+        }
+    }
+
     @Test
     public void testBasicConsumeTopic() throws InterruptedException {
         boolean ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.TOPIC, false, false, null);
@@ -259,6 +347,41 @@ class VirtualHostTest {
         Thread.sleep(500);
     }
 
+    @Test
+    public void testRouteCache() {
+        boolean ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.TOPIC, false, false, null);
+        Assertions.assertTrue(ok);
+        ok = virtualHost.queueDeclare("testQueue1", false, false, false, null);
+        Assertions.assertTrue(ok);
+        ok = virtualHost.queueDeclare("testQueue2", false, false, false, null);
+        Assertions.assertTrue(ok);
+        ok = virtualHost.queueBind("testQueue1", "testExchange", "aaa.*");
+        Assertions.assertTrue(ok);
+
+        // 同一个 routingKey 第二次发送命中缓存
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange", "aaa.bbb", null, "hello".getBytes()));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange", "aaa.bbb", null, "hello".getBytes()));
+        Assertions.assertEquals(1, virtualHost.getRouteCache().getMisses());
+        Assertions.assertEquals(1, virtualHost.getRouteCache().getHits());
+        Assertions.assertEquals(2, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+
+        // 新增绑定之后缓存失效, 新的队列也能收到消息
+        ok = virtualHost.queueBind("testQueue2", "testExchange", "#");
+        Assertions.assertTrue(ok);
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange", "aaa.bbb", null, "hello".getBytes()));
+        Assertions.assertEquals(2, virtualHost.getRouteCache().getMisses());
+        Assertions.assertEquals(3, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+        Assertions.assertEquals(1, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue2"));
+
+        // 解除绑定之后缓存失效, 旧的队列不再收到消息
+        ok = virtualHost.queueUnbind("testQueue1", "testExchange");
+        Assertions.assertTrue(ok);
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange", "aaa.bbb", null, "hello".getBytes()));
+        Assertions.assertEquals(3, virtualHost.getRouteCache().getMisses());
+        Assertions.assertEquals(3, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+        Assertions.assertEquals(2, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue2"));
+    }
+
     @Test
     public void testBasicAck() throws InterruptedException {
         boolean ok = virtualHost.queueDeclare("testQueue", true,
@@ -294,4 +417,249 @@ class VirtualHostTest {
 
         Thread.sleep(500);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBasicQos() throws InterruptedException {
+        boolean ok = virtualHost.queueDeclare("testQueue", true,
+                false, false, null);
+        Assertions.assertTrue(ok);
+        ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT,
+                true, false, null);
+        Assertions.assertTrue(ok);
+        for (int i = 0; i < 5; i++) {
+            ok = virtualHost.basicPublish("testExchange", "testQueue", null, ("hello" + i).getBytes());
+            Assertions.assertTrue(ok);
+        }
+
+        // 预取数量为 2, 不确认的话最多只能收到 2 条消息
+        List<String> received = new CopyOnWriteArrayList<>();
+        ok = virtualHost.basicConsume("testConsumerTag", "testQueue", false, 2,
+                (consumerTag, basicProperties, body) -> received.add(basicProperties.getMessageId()));
+        Assertions.assertTrue(ok);
+        Thread.sleep(500);
+        Assertions.assertEquals(2, received.size());
+
+        // 确认一条之后, 再推送一条
+        ok = virtualHost.basicAck("testQueue", received.get(0));
+        Assertions.assertTrue(ok);
+        Thread.sleep(500);
+        Assertions.assertEquals(3, received.size());
+    }
+
+    @Test
+    public void testBasicQosCallbackThrows() throws InterruptedException {
+        boolean ok = virtualHost.queueDeclare("testQueue", true,
+                false, false, null);
+        Assertions.assertTrue(ok);
+        ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT,
+                true, false, null);
+        Assertions.assertTrue(ok);
+        for (int i = 0; i < 3; i++) {
+            ok = virtualHost.basicPublish("testExchange", "testQueue", null, ("hello" + i).getBytes());
+            Assertions.assertTrue(ok);
+        }
+
+        // 预取数量为 1, 回调抛出异常的消息没有推送出去, 名额归还之后继续推送后面的消息
+        List<String> received = new CopyOnWriteArrayList<>();
+        ok = virtualHost.basicConsume("testConsumerTag", "testQueue", false, 1,
+                (consumerTag, basicProperties, body) -> {
+                    received.add(basicProperties.getMessageId());
+                    if (received.size() == 1) {
+                        throw new IllegalStateException("consumer failed");
+                    }
+                });
+        Assertions.assertTrue(ok);
+        Thread.sleep(500);
+        Assertions.assertEquals(2, received.size());
+    }
+
+    @Test
+    public void testPaging() throws InterruptedException, IOException {
+        // 每个队列只在内存中保留 1KB 的消息体, 超出的部分换出到磁盘
+        System.setProperty("mq.memory.queue-body-limit", "1024");
+        try {
+            virtualHost.close();
+            virtualHost = new VirtualHost("default");
+            boolean ok = virtualHost.queueDeclare("testQueue", true,
+                    false, false, null);
+            Assertions.assertTrue(ok);
+            ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT,
+                    true, false, null);
+            Assertions.assertTrue(ok);
+            // 一半持久化消息, 一半非持久化消息, 每条 300 字节
+            List<String> expected = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                BasicProperties basicProperties = new BasicProperties();
+                basicProperties.setDeliveryMode(i % 2 == 0 ? 2 : 1);
+                String body = String.format("%-300s", "hello" + i);
+                expected.add(body);
+                ok = virtualHost.basicPublish("testExchange", "testQueue", basicProperties, body.getBytes());
+                Assertions.assertTrue(ok);
+            }
+            Assertions.assertTrue(virtualHost.getMemoryDataCenter().getQueueBodyBytes("defaulttestQueue") <= 1024);
+
+            // 换出的消息体在推送的时候读回来
+            List<String> received = new CopyOnWriteArrayList<>();
+            ok = virtualHost.basicConsume("testConsumerTag", "testQueue", true,
+                    (consumerTag, basicProperties, body) -> received.add(new String(body)));
+            Assertions.assertTrue(ok);
+            Thread.sleep(500);
+            Assertions.assertEquals(expected.size(), received.size());
+            Assertions.assertTrue(received.containsAll(expected));
+            Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getQueueBodyBytes("defaulttestQueue"));
+        } finally {
+            System.clearProperty("mq.memory.queue-body-limit");
+        }
+    }
+
+    @Test
+    public void testDeleteQueueReleasesBodyBytes() throws IOException {
+        // 一部分消息体留在内存中, 超出 1KB 的部分写入溢出文件
+        System.setProperty("mq.memory.queue-body-limit", "1024");
+        try {
+            virtualHost.close();
+            virtualHost = new VirtualHost("default");
+            boolean ok = virtualHost.queueDeclare("testQueue", false,
+                    false, false, null);
+            Assertions.assertTrue(ok);
+            ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT,
+                    true, false, null);
+            Assertions.assertTrue(ok);
+            for (int i = 0; i < 10; i++) {
+                ok = virtualHost.basicPublish("testExchange", "testQueue", new BasicProperties(),
+                        String.format("%-300s", "hello" + i).getBytes());
+                Assertions.assertTrue(ok);
+            }
+            Assertions.assertTrue(virtualHost.getMemoryDataCenter().getTotalBodyBytes() > 0);
+
+            ok = virtualHost.queueDelete("testQueue");
+            Assertions.assertTrue(ok);
+            Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getTotalBodyBytes());
+            Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getQueueBodyBytes("defaulttestQueue"));
+            Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue"));
+        } finally {
+            System.clearProperty("mq.memory.queue-body-limit");
+        }
+    }
+
+    @Test
+    public void testParallelRecovery() throws Exception {
+        boolean ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT,
+                true, false, null);
+        Assertions.assertTrue(ok);
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliveryMode(2);
+        for (int q = 0; q < 4; q++) {
+            ok = virtualHost.queueDeclare("testQueue" + q, true, false, false, null);
+            Assertions.assertTrue(ok);
+            for (int i = 0; i < 50; i++) {
+                ok = virtualHost.basicPublish("testExchange", "testQueue" + q, basicProperties, ("hello" + i).getBytes());
+                Assertions.assertTrue(ok);
+            }
+        }
+        // 两个线程并行恢复, 不等所有队列恢复完成就开始服务
+        System.setProperty("mq.recovery.parallelism", "2");
+        System.setProperty("mq.recovery.lazy", "true");
+        try {
+            virtualHost.close();
+            virtualHost = new VirtualHost("default");
+            // 发送到还在恢复的队列时, 等这个队列恢复完成之后再写入
+            ok = virtualHost.basicPublish("testExchange", "testQueue0", basicProperties, "hello50".getBytes());
+            Assertions.assertTrue(ok);
+            virtualHost.getMemoryDataCenter().getRecoveryFuture().get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getRecoveringQueueCount());
+            for (int q = 0; q < 4; q++) {
+                List<String> received = new CopyOnWriteArrayList<>();
+                ok = virtualHost.basicConsume("testConsumerTag" + q, "testQueue" + q, true,
+                        (consumerTag, properties, body) -> received.add(new String(body)));
+                Assertions.assertTrue(ok);
+                int expected = q == 0 ? 51 : 50;
+                for (int i = 0; i < 50 && received.size() < expected; i++) {
+                    Thread.sleep(20);
+                }
+                Assertions.assertEquals(expected, received.size());
+                // 推送在线程池中执行, 只检查内容不检查顺序
+                for (int i = 0; i < expected; i++) {
+                    Assertions.assertTrue(received.contains("hello" + i));
+                }
+            }
+        } finally {
+            System.clearProperty("mq.recovery.parallelism");
+            System.clearProperty("mq.recovery.lazy");
+        }
+    }
+
+    @Test
+    public void testLazyQueueRecovery() throws Exception {
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put(MSGQueue.ARG_QUEUE_MODE, MSGQueue.QUEUE_MODE_LAZY);
+        boolean ok = virtualHost.queueDeclare("testQueue", true, false, false, arguments);
+        Assertions.assertTrue(ok);
+        ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT,
+                true, false, null);
+        Assertions.assertTrue(ok);
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliveryMode(2);
+        List<String> expected = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String body = String.format("%-300s", "hello" + i);
+            expected.add(body);
+            ok = virtualHost.basicPublish("testExchange", "testQueue", basicProperties, body.getBytes());
+            Assertions.assertTrue(ok);
+        }
+        // 惰性队列的消息体不保留在内存中
+        Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getQueueBodyBytes("defaulttestQueue"));
+
+        // 重启之后只加载索引, 消息体在推送的时候读回来
+        virtualHost.close();
+        virtualHost = new VirtualHost("default");
+        Assertions.assertEquals(20, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue"));
+        Assertions.assertEquals(0, virtualHost.getMemoryDataCenter().getQueueBodyBytes("defaulttestQueue"));
+        List<String> received = new CopyOnWriteArrayList<>();
+        ok = virtualHost.basicConsume("testConsumerTag", "testQueue", true,
+                (consumerTag, properties, body) -> received.add(new String(body)));
+        Assertions.assertTrue(ok);
+        Thread.sleep(500);
+        Assertions.assertEquals(expected.size(), received.size());
+        Assertions.assertTrue(received.containsAll(expected));
+    }
+
+    @Test
+    public void testCloseWritesCleanCheckpoint() throws Exception {
+        boolean ok = virtualHost.queueDeclare("testQueue", true, false, false, null);
+        Assertions.assertTrue(ok);
+        ok = virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null);
+        Assertions.assertTrue(ok);
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliveryMode(2);
+        // 不等待落盘就关闭, 已经提交的消息在关闭的时候写入段文件
+        for (int i = 0; i < 10; i++) {
+            virtualHost.basicPublishAsync("testExchange", "testQueue", basicProperties, ("hello" + i).getBytes());
+        }
+        virtualHost.close();
+        File statFile = new File("./data/defaulttestQueue/queue_stat.bin");
+        Object checkpoint = readStatCheckpoint(statFile);
+        Assertions.assertTrue((boolean) getField(checkpoint, "clean"));
+        Assertions.assertEquals(10, getField(checkpoint, "totalCount"));
+        Assertions.assertEquals(10, getField(checkpoint, "validCount"));
+
+        // 重启之后使用检查点中的统计数, 然后改写为非正常关闭的检查点
+        virtualHost = new VirtualHost("default");
+        Assertions.assertEquals(10, virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue"));
+        checkpoint = readStatCheckpoint(statFile);
+        Assertions.assertFalse((boolean) getField(checkpoint, "clean"));
+        Assertions.assertEquals(10, getField(checkpoint, "totalCount"));
+    }
+
+    private static Object readStatCheckpoint(File file) throws Exception {
+        Method read = Class.forName("com.doublez.mqserver.datacenter.StatCheckpoint").getDeclaredMethod("read", File.class);
+        read.setAccessible(true);
+        return read.invoke(null, file);
+    }
+
+    private static Object getField(Object target, String name) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+}
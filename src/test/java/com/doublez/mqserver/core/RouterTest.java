@@ -0,0 +1,154 @@
+package com.doublez.mqserver.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+class RouterTest {
+    private final Router router = new Router();
+
+    private static Message message(String routingKey) {
+        return Message.createMessageId(routingKey, null, null);
+    }
+
+    private static Binding binding(String bindingKey) {
+        Binding binding = new Binding();
+        binding.setBindingKey(bindingKey);
+        return binding;
+    }
+
+    @Test
+    public void testCheckKey() {
+        Assertions.assertTrue(router.checkRoutingKey("aaa.bbb_1.CCC"));
+        Assertions.assertTrue(router.checkRoutingKey(""));
+        Assertions.assertFalse(router.checkRoutingKey(".aaa"));
+        Assertions.assertFalse(router.checkRoutingKey("aaa."));
+        Assertions.assertFalse(router.checkRoutingKey("aaa..bbb"));
+        Assertions.assertFalse(router.checkRoutingKey("aaa.*"));
+        Assertions.assertFalse(router.checkRoutingKey("aaa-bbb"));
+
+        Assertions.assertTrue(router.checkBindingKey("aaa.*.#"));
+        Assertions.assertTrue(router.checkBindingKey("#"));
+        Assertions.assertFalse(router.checkBindingKey("aaa*.bbb"));
+        Assertions.assertFalse(router.checkBindingKey("aaa.*b"));
+        Assertions.assertFalse(router.checkBindingKey("aaa.##"));
+        Assertions.assertFalse(router.checkBindingKey("aaa..#"));
+    }
+
+    @Test
+    public void testRouteTopic() throws Exception {
+        String[][] cases = {
+                {"aaa", "aaa", "true"},
+                {"aaa.bbb", "aaa.bbb", "true"},
+                {"aaa.bbb", "aaa.bbb.ccc", "false"},
+                {"aaa.*", "aaa.bbb", "true"},
+                {"aaa.*", "aaa.bbb.ccc", "false"},
+                {"aaa.#", "aaa", "true"},
+                {"aaa.#", "aaa.bbb.ccc", "true"},
+                {"#.ccc", "aaa.bbb.ccc", "true"},
+                {"aaa.#.ccc", "aaa.ccc", "true"},
+                {"aaa.#.ccc", "aaa.bbb.ddd.ccc", "true"},
+                {"aaa.#.ccc", "aaa.bbb.ccc.ddd", "false"},
+                {"#.*.#", "aaa", "true"},
+                {"#.*.*", "aaa", "false"},
+                {"#", "", "true"},
+                // # 需要回溯的情况
+                {"#.aaa.#.bbb", "aaa.bbb", "true"},
+                {"#.aaa.#.bbb", "ccc.aaa.ddd.aaa.bbb", "true"},
+                {"#.aaa.#.bbb", "aaa.bbb.ccc", "false"},
+                {"aaa.#.#.bbb", "aaa.bbb", "true"},
+                {"aaa.#.bbb.#.ccc", "aaa.bbb.ccc.bbb.ddd.ccc", "true"},
+                {"aaa.#.bbb.#.ccc", "aaa.ccc.bbb", "false"},
+                {"#.*.bbb", "bbb", "false"},
+                {"#.*.bbb", "aaa.bbb.bbb", "true"},
+        };
+        for (String[] c : cases) {
+            Assertions.assertEquals(Boolean.parseBoolean(c[2]),
+                    router.route(ExchangeType.TOPIC, binding(c[0]), message(c[1])), c[0] + " / " + c[1]);
+        }
+    }
+
+    // 随机生成的 key, 新的实现和原来 split + dp 的实现结果一致
+    @Test
+    public void testSameAsSplitImplementation() {
+        Random random = new Random(42);
+        String[] bindingTokens = {"a", "b", "ab", "*", "#", "a_b", "A", "1", ""};
+        String[] routingTokens = {"a", "b", "ab", "c", "a_b", "*", ""};
+        for (int i = 0; i < 20000; i++) {
+            String bindingKey = randomKey(random, bindingTokens);
+            String routingKey = randomKey(random, routingTokens);
+            Assertions.assertEquals(splitCheckKey(bindingKey, true), router.checkBindingKey(bindingKey), bindingKey);
+            Assertions.assertEquals(splitCheckKey(routingKey, false), router.checkRoutingKey(routingKey), routingKey);
+            if (router.checkBindingKey(bindingKey) && router.checkRoutingKey(routingKey)) {
+                Assertions.assertEquals(dpMatch(bindingKey, routingKey), Router.matchTopic(bindingKey, routingKey),
+                        bindingKey + " / " + routingKey);
+            }
+        }
+    }
+
+    private static String randomKey(Random random, String[] tokens) {
+        int count = 1 + random.nextInt(5);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append('.');
+            }
+            builder.append(tokens[random.nextInt(tokens.length)]);
+        }
+        return builder.toString();
+    }
+
+    // 原来的校验实现
+    private static boolean splitCheckKey(String key, boolean allowWildcard) {
+        if (key == null || key.isEmpty()) {
+            return true;
+        }
+        if (key.startsWith(".") || key.endsWith(".") || key.contains("..")) {
+            return false;
+        }
+        for (String segment : key.split("\\.")) {
+            if (segment.isEmpty()) {
+                return false;
+            }
+            if (allowWildcard && (segment.equals("*") || segment.equals("#"))) {
+                continue;
+            }
+            for (char ch : segment.toCharArray()) {
+                if (!((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_')) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // 原来的 dp 匹配实现
+    private static boolean dpMatch(String bindingKey, String routingKey) {
+        String[] routingTokens = routingKey.split("\\.");
+        String[] bindingTokens = bindingKey.split("\\.");
+        int m = routingTokens.length;
+        int n = bindingTokens.length;
+        boolean[][] dp = new boolean[m + 1][n + 1];
+        dp[0][0] = true;
+        for (int j = 1; j <= n; j++) {
+            if (bindingTokens[j - 1].equals("#")) {
+                dp[0][j] = true;
+            } else {
+                break;
+            }
+        }
+        for (int i = 1; i <= m; i++) {
+            for (int j = 1; j <= n; j++) {
+                if (bindingTokens[j - 1].equals("#")) {
+                    dp[i][j] = dp[i - 1][j] || dp[i][j - 1];
+                } else if (bindingTokens[j - 1].equals("*")) {
+                    dp[i][j] = dp[i - 1][j - 1];
+                } else {
+                    dp[i][j] = bindingTokens[j - 1].equals(routingTokens[i - 1]) && dp[i - 1][j - 1];
+                }
+            }
+        }
+        return dp[m][n];
+    }
+}
@@ -13,8 +13,13 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 @SpringBootTest
 class MassageFileManagerTest {
@@ -24,6 +29,7 @@ class MassageFileManagerTest {
     private static final String queueName2 = "queue2";
     @BeforeEach
     void setUp() throws IOException, MqException {
+        messageFileManager.init();
         messageFileManager.createQueueFiles(queueName1);
         messageFileManager.createQueueFiles(queueName2);
     }
@@ -31,34 +37,85 @@ class MassageFileManagerTest {
     void teatOut() throws IOException {
         messageFileManager.destroyQueueFiles(queueName1);
         messageFileManager.destroyQueueFiles(queueName2);
+        messageFileManager.close();
     }
     @Test
     public void testCreateFiles(){
-        File queueDataFile1 = new File("./data" + File.separator + queueName1 + File.separator + "queue_data.txt");
+        File queueDataFile1 = new File("./data" + File.separator + queueName1 + File.separator + "queue_data_00000000.txt");
         Assertions.assertTrue(queueDataFile1.isFile());
-        File queueStatFile1 = new File("./data" + File.separator + queueName1 + File.separator + "queue_stat.txt");
+        File queueStatFile1 = new File("./data" + File.separator + queueName1 + File.separator + "queue_stat.bin");
         Assertions.assertTrue(queueStatFile1.isFile());
-        File queueDataFile2 = new File("./data" + File.separator + queueName2 + File.separator + "queue_data.txt");
+        File queueDataFile2 = new File("./data" + File.separator + queueName2 + File.separator + "queue_data_00000000.txt");
         Assertions.assertTrue(queueDataFile2.isFile());
-        File queueStatFile2 = new File("./data" + File.separator + queueName2 + File.separator + "queue_stat.txt");
+        File queueStatFile2 = new File("./data" + File.separator + queueName2 + File.separator + "queue_stat.bin");
         Assertions.assertTrue(queueStatFile2.isFile());
     }
     @Test
-    public void testReadWriteStat() throws IOException, MqException {
-        MessageFileManager.Stat stat = new MessageFileManager.Stat();
-        stat.validCount = 50;
-        stat.totalCount = 100;
-        //通过spring提供的反射获取私有的方法来进行测试
-        ReflectionTestUtils.invokeMethod(messageFileManager, "writeStat", queueName1,stat);
-        MessageFileManager.Stat readStat = ReflectionTestUtils.invokeMethod(messageFileManager, "readStat", queueName1);
-        Assertions.assertEquals(50,readStat.validCount);
-        Assertions.assertEquals(100,readStat.totalCount);
+    public void testStatCheckpoint() throws IOException, MqException {
+        MSGQueue queue = createQueue(queueName1);
+        List<Message> messages = new ArrayList<>();
+        for(int i = 0; i < 10; i++){
+            Message msg = createMessage("testMessage, i:" + i);
+            messageFileManager.sendMessage(queue, msg);
+            messages.add(msg);
+        }
+        for(int i = 0; i < 4; i++){
+            messageFileManager.deleteMessage(queue, messages.get(i));
+        }
+        //正常关闭时写入检查点，重新打开之后直接使用
+        messageFileManager.close();
+        File statFile = new File("./data/" + queueName1 + "/queue_stat.bin");
+        StatCheckpoint checkpoint = StatCheckpoint.read(statFile);
+        Assertions.assertTrue(checkpoint.clean);
+        Assertions.assertEquals(10, checkpoint.totalCount);
+        Assertions.assertEquals(6, checkpoint.validCount);
+        messageFileManager = new MessageFileManager();
+        messageFileManager.init();
+        StatCheckpoint stat = ReflectionTestUtils.invokeMethod(messageFileManager, "readStat", queueName1);
+        Assertions.assertEquals(10, stat.totalCount);
+        Assertions.assertEquals(6, stat.validCount);
+        //打开之后检查点不再是正常关闭的状态
+        Assertions.assertFalse(StatCheckpoint.read(statFile).clean);
+        messageFileManager.close();
+
+        //模拟崩溃：检查点不是正常关闭时写入的，统计数按照段文件重新计算；旧的文本统计文件被删除
+        new StatCheckpoint(999, 999, false).write(statFile);
+        File legacyStatFile = new File("./data/" + queueName1 + "/queue_stat.txt");
+        Assertions.assertTrue(legacyStatFile.createNewFile());
+        messageFileManager = new MessageFileManager();
+        messageFileManager.init();
+        stat = ReflectionTestUtils.invokeMethod(messageFileManager, "readStat", queueName1);
+        Assertions.assertEquals(10, stat.totalCount);
+        Assertions.assertEquals(6, stat.validCount);
+        Assertions.assertFalse(legacyStatFile.exists());
+        messageFileManager.close();
+
+        //旧的文本统计文件还在的时候不使用检查点，迁移一次之后删除
+        new StatCheckpoint(999, 999, true).write(statFile);
+        Assertions.assertTrue(legacyStatFile.createNewFile());
+        messageFileManager = new MessageFileManager();
+        messageFileManager.init();
+        stat = ReflectionTestUtils.invokeMethod(messageFileManager, "readStat", queueName1);
+        Assertions.assertEquals(10, stat.totalCount);
+        Assertions.assertEquals(6, stat.validCount);
+        Assertions.assertFalse(legacyStatFile.exists());
     }
 
     private Message createMessage(String content) throws IOException {
         byte[] contentBytes = BinaryTool.toBytes(content);
         return Message.createMessageId("testRoutingKey", null, contentBytes);
     }
+    //队列所有段文件的总大小
+    private long dataLength(String queueName) {
+        long length = 0;
+        File[] files = new File("./data/" + queueName).listFiles((dir, name) -> name.startsWith("queue_data_"));
+        if (files != null) {
+            for (File file : files) {
+                length += file.length();
+            }
+        }
+        return length;
+    }
     private MSGQueue createQueue(String queueName) throws IOException, MqException {
         MSGQueue queue = new MSGQueue();
         queue.setName(queueName);
@@ -77,7 +134,7 @@ class MassageFileManagerTest {
         messageFileManager.sendMessage(queue, message);
 
         //4. 检查txt文件
-        MessageFileManager.Stat stat = ReflectionTestUtils.invokeMethod(messageFileManager, "readStat", queueName1);
+        StatCheckpoint stat = ReflectionTestUtils.invokeMethod(messageFileManager, "readStat", queueName1);
         Assertions.assertEquals(1,stat.validCount);
         Assertions.assertEquals(1,stat.totalCount);
 
@@ -151,8 +208,7 @@ class MassageFileManagerTest {
             expectMessages.add(msg);
         }
         //GC之前的文件大小
-        File beforeGC = new File("./data/"+queueName1+"/queue_data.txt");
-        long beforeGCLength = beforeGC.length();
+        long beforeGCLength = dataLength(queueName1);
 
         for(int i = 10; i < 2000; i++){
             messageFileManager.deleteMessage(queue,expectMessages.get(i));
@@ -165,10 +221,308 @@ class MassageFileManagerTest {
         LinkedList<Message> messages = messageFileManager.loadMessageFromQueue(queueName1);
         Assertions.assertEquals(20,messages.size());
         //GC之后文件大小
-        File afterGC = new File("./data/"+queueName1+"/queue_data.txt");
-        long afterGCLength = afterGC.length();
+        long afterGCLength = dataLength(queueName1);
         System.out.println("Before GCLength: "+beforeGCLength);
         System.out.println("After GCLength: "+afterGCLength);
         Assertions.assertTrue(beforeGCLength > afterGCLength);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBackgroundCompaction() throws IOException, MqException, InterruptedException {
+        //段文件限制为 4KB，后台压缩不限速
+        //共享消息体目录同一时间只能被一个 MessageFileManager 使用
+        messageFileManager.close();
+        MessageFileManager compactManager = new MessageFileManager(4096);
+        compactManager.setCompactionRate(0);
+        //模拟内存中的消息对象，压缩之后通过 relocationListener 更新位置
+        Map<String, Message> memoryMessages = new ConcurrentHashMap<>();
+        compactManager.setRelocationListener((queueName, relocated) -> {
+            Message message = memoryMessages.get(relocated.getMessageId());
+            if(message != null){
+                message.setSegmentId(relocated.getSegmentId());
+                message.setPosition(relocated.getPosition());
+            }
+        });
+        compactManager.init();
+        String queueName3 = "queue3";
+        compactManager.createQueueFiles(queueName3);
+        try {
+            MSGQueue queue = createQueue(queueName3);
+            List<Message> messages = new ArrayList<>();
+            for(int i = 0; i < 300; i++){
+                Message msg = createMessage("testMessage, i:" + i);
+                compactManager.sendMessage(queue, msg);
+                messages.add(msg);
+                memoryMessages.put(msg.getMessageId(), msg);
+            }
+            long beforeLength = dataLength(queueName3);
+            //每 10 条只保留 1 条，删除消息只提交压缩请求
+            List<Message> kept = new ArrayList<>();
+            for(int i = 0; i < messages.size(); i++){
+                Message msg = messages.get(i);
+                if(i % 10 == 0){
+                    kept.add(msg);
+                    continue;
+                }
+                compactManager.deleteMessage(queue, msg);
+                memoryMessages.remove(msg.getMessageId());
+            }
+            compactManager.requestGC(queue);
+            //等待后台压缩完成：统计文件中的总数只剩下有效消息
+            long deadline = System.currentTimeMillis() + 10_000;
+            StatCheckpoint stat = ReflectionTestUtils.invokeMethod(compactManager, "readStat", queueName3);
+            while(stat.totalCount != kept.size() && System.currentTimeMillis() < deadline){
+                Thread.sleep(20);
+                stat = ReflectionTestUtils.invokeMethod(compactManager, "readStat", queueName3);
+            }
+            Assertions.assertEquals(kept.size(), stat.totalCount);
+            Assertions.assertTrue(dataLength(queueName3) < beforeLength / 2);
+            //内存中的消息对象已经指向新的位置，可以读取和删除
+            for(Message msg : kept){
+                Assertions.assertArrayEquals(msg.getBody(), compactManager.readBody(queue, msg));
+            }
+            LinkedList<Message> actualMessages = compactManager.loadMessageFromQueue(queueName3);
+            Assertions.assertEquals(kept.size(), actualMessages.size());
+            for(int i = 0; i < kept.size(); i++){
+                Assertions.assertEquals(kept.get(i).getMessageId(), actualMessages.get(i).getMessageId());
+                Assertions.assertEquals(kept.get(i).getSegmentId(), actualMessages.get(i).getSegmentId());
+                Assertions.assertEquals(kept.get(i).getPosition(), actualMessages.get(i).getPosition());
+            }
+            compactManager.deleteMessage(queue, kept.get(0));
+            Assertions.assertEquals(kept.size() - 1, compactManager.loadMessageFromQueue(queueName3).size());
+        } finally {
+            compactManager.destroyQueueFiles(queueName3);
+            compactManager.close();
+        }
+    }
+
+    @Test
+    public void testCompactionRecovery() throws IOException, MqException {
+        MSGQueue queue = createQueue(queueName1);
+        List<Message> messages = new ArrayList<>();
+        for(int i = 0; i < 100; i++){
+            Message msg = createMessage("testMessage, i:" + i);
+            messageFileManager.sendMessage(queue, msg);
+            messages.add(msg);
+        }
+        for(int i = 0; i < 90; i++){
+            messageFileManager.deleteMessage(queue, messages.get(i));
+        }
+        messageFileManager.close();
+        File dir = new File("./data/" + queueName1);
+        File segment = new File(dir, "queue_data_00000000.txt");
+        File compacted = new File(dir, "queue_data_00000000.txt.compact");
+        long length = segment.length();
+
+        //1. 临时文件写了一半时崩溃：没有清单，删除临时文件，段文件不变
+        try (RandomAccessFile file = new RandomAccessFile(compacted, "rw")) {
+            file.write(new byte[]{1, 2, 3});
+        }
+        messageFileManager = new MessageFileManager();
+        messageFileManager.init();
+        Assertions.assertEquals(10, messageFileManager.loadMessageFromQueue(queueName1).size());
+        Assertions.assertFalse(compacted.exists());
+        Assertions.assertEquals(length, segment.length());
+        messageFileManager.close();
+
+        //2. 写完清单之后、替换段文件之前崩溃：打开的时候继续替换
+        LogSegment source = LogSegment.open(segment, 0);
+        Assertions.assertTrue(source.copyValidRecords(compacted, (oldPosition, newPosition, payload) -> true));
+        source.release();
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, QueueLog.MANIFEST_NAME), "rw")) {
+            file.write(("0\t" + compacted.length()).getBytes());
+        }
+        messageFileManager = new MessageFileManager();
+        messageFileManager.init();
+        LinkedList<Message> actualMessages = messageFileManager.loadMessageFromQueue(queueName1);
+        Assertions.assertEquals(10, actualMessages.size());
+        for(int i = 0; i < actualMessages.size(); i++){
+            Assertions.assertEquals(messages.get(90 + i).getMessageId(), actualMessages.get(i).getMessageId());
+        }
+        Assertions.assertFalse(compacted.exists());
+        Assertions.assertFalse(new File(dir, QueueLog.MANIFEST_NAME).exists());
+        Assertions.assertTrue(segment.length() < length);
+        //统计文件按照替换之后的段重新计算，压缩之后不再需要 gc
+        StatCheckpoint stat = ReflectionTestUtils.invokeMethod(messageFileManager, "readStat", queueName1);
+        Assertions.assertEquals(10, stat.totalCount);
+        Assertions.assertEquals(10, stat.validCount);
+        //之后可以继续写入和压缩
+        messageFileManager.sendMessage(queue, createMessage("testMessage, i:100"));
+        messageFileManager.gc(queue);
+        Assertions.assertEquals(11, messageFileManager.loadMessageFromQueue(queueName1).size());
+    }
+
+    @Test
+    public void testSegmentRoll() throws IOException, MqException, ClassNotFoundException {
+        //段文件限制为 4KB，写入的消息会分布到多个段中
+        //共享消息体目录同一时间只能被一个 MessageFileManager 使用
+        messageFileManager.close();
+        MessageFileManager smallSegmentManager = new MessageFileManager(4096);
+        smallSegmentManager.init();
+        String queueName3 = "queue3";
+        smallSegmentManager.createQueueFiles(queueName3);
+        try {
+            MSGQueue queue = createQueue(queueName3);
+            List<Message> expectMessages = new LinkedList<>();
+            for(int i = 0; i < 100; i++){
+                Message msg = createMessage("testMessage, i:" + i);
+                smallSegmentManager.sendMessage(queue, msg);
+                expectMessages.add(msg);
+            }
+            Assertions.assertTrue(expectMessages.get(99).getSegmentId() > 0);
+            File secondSegment = new File("./data/" + queueName3 + "/queue_data_00000001.txt");
+            Assertions.assertTrue(secondSegment.isFile());
+
+            //删除不同段中的消息
+            smallSegmentManager.deleteMessage(queue, expectMessages.get(0));
+            smallSegmentManager.deleteMessage(queue, expectMessages.get(99));
+            LinkedList<Message> actualMessages = smallSegmentManager.loadMessageFromQueue(queueName3);
+            Assertions.assertEquals(98, actualMessages.size());
+            for(int i = 0; i < actualMessages.size(); i++){
+                Message expect = expectMessages.get(i + 1);
+                Assertions.assertEquals(expect.getMessageId(), actualMessages.get(i).getMessageId());
+                Assertions.assertEquals(expect.getSegmentId(), actualMessages.get(i).getSegmentId());
+                Assertions.assertEquals(expect.getPosition(), actualMessages.get(i).getPosition());
+            }
+        } finally {
+            smallSegmentManager.destroyQueueFiles(queueName3);
+            smallSegmentManager.close();
+        }
+    }
+
+    @Test
+    public void testTornTail() throws IOException, MqException {
+        MSGQueue queue = createQueue(queueName1);
+        for(int i = 0; i < 10; i++){
+            messageFileManager.sendMessage(queue, createMessage("testMessage, i:" + i));
+        }
+        messageFileManager.close();
+        //模拟崩溃时最后一条记录只写了一部分：改掉最后一个字节，校验和不再一致
+        File segment = new File("./data/" + queueName1 + "/queue_data_00000000.txt");
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(length - 1);
+            int last = file.read();
+            file.seek(length - 1);
+            file.write(last ^ 0xff);
+        }
+        //重新打开时从校验失败的记录开始截断，之前的记录不受影响
+        messageFileManager = new MessageFileManager();
+        messageFileManager.init();
+        LinkedList<Message> actualMessages = messageFileManager.loadMessageFromQueue(queueName1);
+        Assertions.assertEquals(9, actualMessages.size());
+        Assertions.assertTrue(segment.length() < length);
+        //截断之后可以继续写入
+        messageFileManager.sendMessage(queue, createMessage("testMessage, i:10"));
+        Assertions.assertEquals(10, messageFileManager.loadMessageFromQueue(queueName1).size());
+    }
+
+    @Test
+    public void testTornHeaderAndEmptySegment() throws IOException, MqException {
+        MSGQueue queue = createQueue(queueName1);
+        for(int i = 0; i < 10; i++){
+            messageFileManager.sendMessage(queue, createMessage("testMessage, i:" + i));
+        }
+        messageFileManager.close();
+        //模拟崩溃：最后一条记录的内容少了几个字节，后面还有一个只写了一半的记录头
+        File segment = new File("./data/" + queueName1 + "/queue_data_00000000.txt");
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(length - 3);
+            file.seek(length - 3);
+            file.writeInt(100);
+            file.write(LogSegment.FLAG_VALID);
+        }
+        //刚创建的段，段头还没有落盘
+        File emptySegment = new File("./data/" + queueName1 + "/queue_data_00000001.txt");
+        Assertions.assertTrue(emptySegment.createNewFile());
+        messageFileManager = new MessageFileManager();
+        messageFileManager.init();
+        Assertions.assertEquals(9, messageFileManager.loadMessageFromQueue(queueName1).size());
+        Assertions.assertFalse(emptySegment.exists());
+        Assertions.assertTrue(segment.length() < length);
+        messageFileManager.sendMessage(queue, createMessage("testMessage, i:10"));
+        Assertions.assertEquals(10, messageFileManager.loadMessageFromQueue(queueName1).size());
+    }
+
+    @Test
+    public void testFlushPolicyParse() throws MqException {
+        Assertions.assertEquals(FlushPolicy.Mode.ALWAYS, FlushPolicy.parse(null).getMode());
+        Assertions.assertEquals(FlushPolicy.Mode.NEVER, FlushPolicy.parse("never").getMode());
+        Assertions.assertEquals(50, FlushPolicy.parse("interval:50").getIntervalMs());
+        Assertions.assertEquals(FlushPolicy.Mode.BATCH, FlushPolicy.parse("batch:32").getMode());
+        for (String text : new String[]{"interval:0", "interval:-5", "batch:0", "batch:-1", "batch", "interval:abc", "sometimes"}) {
+            MqException e = Assertions.assertThrows(MqException.class, () -> FlushPolicy.parse(text));
+            Assertions.assertTrue(e.getMessage().contains("[FlushPolicy] 无法识别的刷盘策略"), text);
+        }
+    }
+
+    @Test
+    public void testConcurrentSendMessage() throws IOException, MqException, ClassNotFoundException, InterruptedException {
+        //多个发布者并发写入，组提交线程合并写入和刷盘
+        //共享消息体目录同一时间只能被一个 MessageFileManager 使用
+        messageFileManager.close();
+        MessageFileManager batchManager = new MessageFileManager();
+        batchManager.setFlushPolicy(FlushPolicy.everyMessages(32));
+        batchManager.init();
+        String queueName3 = "queue3";
+        batchManager.createQueueFiles(queueName3);
+        try {
+            MSGQueue queue = createQueue(queueName3);
+            List<Thread> publishers = new ArrayList<>();
+            List<Throwable> errors = new CopyOnWriteArrayList<>();
+            for(int t = 0; t < 8; t++){
+                int publisher = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for(int i = 0; i < 100; i++){
+                            batchManager.sendMessage(queue, createMessage("publisher:" + publisher + ", i:" + i));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                publishers.add(thread);
+                thread.start();
+            }
+            for(Thread thread : publishers){
+                thread.join();
+            }
+            Assertions.assertTrue(errors.isEmpty());
+            StatCheckpoint stat = ReflectionTestUtils.invokeMethod(batchManager, "readStat", queueName3);
+            Assertions.assertEquals(800, stat.totalCount);
+            Assertions.assertEquals(800, batchManager.loadMessageFromQueue(queueName3).size());
+        } finally {
+            batchManager.destroyQueueFiles(queueName3);
+            batchManager.close();
+        }
+    }
+
+    @Test
+    public void testDataDirectoryLocked() throws IOException, MqException {
+        //共享消息体目录已经被 messageFileManager 使用，第二个 MessageFileManager 直接失败
+        MessageFileManager secondManager = new MessageFileManager();
+        MqException e = Assertions.assertThrows(MqException.class, secondManager::init);
+        Assertions.assertTrue(e.getMessage().contains("[DirectoryLock]"));
+        messageFileManager.close();
+        secondManager.init();
+        secondManager.close();
+        messageFileManager.init();
+    }
+
+    @Test
+    public void testSpillDirectoryLocked() throws IOException, MqException {
+        //溢出目录同一时间只能被一个 MemoryDataCenter 使用，第二次打开不会删除正在使用的溢出文件
+        File spillDir = new File("./data/.spill");
+        SpillLog spillLog = SpillLog.open(spillDir, MessageFileManager.DEFAULT_SEGMENT_SIZE);
+        try {
+            Message message = createMessage("hello");
+            spillLog.write(message);
+            Assertions.assertThrows(MqException.class, () -> SpillLog.open(spillDir, MessageFileManager.DEFAULT_SEGMENT_SIZE));
+            Assertions.assertArrayEquals(message.getBody(), spillLog.read(message));
+        } finally {
+            spillLog.close();
+        }
+        SpillLog.open(spillDir, MessageFileManager.DEFAULT_SEGMENT_SIZE).close();
+    }
+}
@@ -10,11 +10,13 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 @SpringBootTest
@@ -87,6 +89,28 @@ class MemoryDataCenterTest {
         Assertions.assertNull(dataCenter.getBinding("textExchange", "textQueue"));
     }
 
+    @Test
+    void testMatchTopic() throws MqException {
+        String[][] bindings = {
+                {"q1", "aaa.bbb"}, {"q2", "aaa.*"}, {"q3", "#"}, {"q4", "aaa.#.ccc"}, {"q5", "*.bbb.#"}, {"q6", "ccc"}};
+        for (String[] entry : bindings) {
+            Binding binding = new Binding();
+            binding.setExchangeName("testExchange");
+            binding.setQueueName(entry[0]);
+            binding.setBindingKey(entry[1]);
+            dataCenter.insertBinding(binding);
+        }
+        Assertions.assertEquals(Set.of("q1", "q2", "q3", "q5"), dataCenter.matchTopic("testExchange", "aaa.bbb"));
+        Assertions.assertEquals(Set.of("q2", "q3", "q4"), dataCenter.matchTopic("testExchange", "aaa.ccc"));
+        Assertions.assertEquals(Set.of("q3", "q4", "q5"), dataCenter.matchTopic("testExchange", "aaa.bbb.ddd.ccc"));
+        Assertions.assertEquals(Set.of("q3", "q6"), dataCenter.matchTopic("testExchange", "ccc"));
+        Assertions.assertTrue(dataCenter.matchTopic("noExchange", "aaa.bbb").isEmpty());
+
+        // 解除绑定之后不再匹配
+        dataCenter.deleteBinding(dataCenter.getBinding("testExchange", "q3"));
+        Assertions.assertEquals(Set.of("q1", "q2", "q5"), dataCenter.matchTopic("testExchange", "aaa.bbb"));
+    }
+
     private Message createTestMessage(String context){
         return Message.createMessageId("testRoutingkey",null, context.getBytes());
     }
@@ -117,6 +141,43 @@ class MemoryDataCenterTest {
         }
     }
 
+    @Test
+    void testConcurrentSendMessage() throws InterruptedException {
+        MSGQueue messageQueue = createTestQueue("textQueue");
+        //多个线程同时写入，跨越多个数组块，同时有一个线程在批量取出
+        int producers = 4;
+        int count = 2500;
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < producers; t++){
+            int id = t;
+            Thread thread = new Thread(() -> {
+                for(int i = 0; i < count; i++){
+                    dataCenter.sendMessage(messageQueue, createTestMessage(id + "-" + i));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        List<Message> received = new ArrayList<>();
+        while(received.size() < producers * count){
+            if(dataCenter.pollQueueMessages("textQueue", 100, received) == 0){
+                Thread.yield();
+            }
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        Assertions.assertEquals(0, dataCenter.getMessageCount("textQueue"));
+        Assertions.assertNull(dataCenter.pollQueueMessages("textQueue"));
+        //同一个线程写入的消息保持顺序
+        int[] next = new int[producers];
+        for(Message message : received){
+            String[] parts = new String(message.getBody()).split("-");
+            int id = Integer.parseInt(parts[0]);
+            Assertions.assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        }
+    }
+
     @Test
     void textWaitACK(){
         MSGQueue messageQueue = createTestQueue("textQueue");
@@ -184,8 +245,51 @@ class MemoryDataCenterTest {
         Assertions.assertArrayEquals(expectedMessage.getBody(), actualMessage.getBody());
 
         // 4. 清理硬盘的数据, 把整个 data 目录里的内容都删掉(包含了 meta.db 和 队列的目录).
+        diskDataCenter.close();
         Application.context.close();
         File dataDir = new File("./data");
         FileUtils.deleteDirectory(dataDir);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCompactWhileFlushPending() throws Exception {
+        Application.context = SpringApplication.run(Application.class);
+        DiskDataCenter diskDataCenter = new DiskDataCenter();
+        diskDataCenter.init();
+        try {
+            dataCenter.init(diskDataCenter);
+            MSGQueue queue = createTestQueue("testQueue");
+            diskDataCenter.insertQueue(queue);
+            dataCenter.insertQueue(queue);
+            // 活跃段中的大部分消息已经被确认删除, gc 会封存并压缩这个段
+            for (int i = 0; i < 10; i++) {
+                Message message = createTestMessage("acked" + i);
+                diskDataCenter.sendMessage(queue, message);
+                diskDataCenter.deleteMessage(queue, message);
+            }
+            Message delivered = createTestMessage("delivered");
+            diskDataCenter.sendMessage(queue, delivered);
+            dataCenter.sendMessage(queue, delivered);
+
+            // 已经落盘, 还没有投递到内存, 这时候 gc 移动了这条消息
+            Message pending = createTestMessage("pending");
+            dataCenter.addInFlightMessage(pending);
+            diskDataCenter.sendMessageAsync(queue, pending).join();
+            long oldPosition = pending.getPosition();
+            MessageFileManager messageFileManager = (MessageFileManager) ReflectionTestUtils.getField(diskDataCenter, "messageFileManager");
+            messageFileManager.gc(queue);
+            dataCenter.sendMessage(queue, pending);
+
+            // 投递之后的消息指向压缩之后的位置, 可以读回消息体和删除
+            Assertions.assertNotEquals(oldPosition, pending.getPosition());
+            Assertions.assertArrayEquals(pending.getBody(), diskDataCenter.readBody(queue, pending));
+            Assertions.assertArrayEquals(delivered.getBody(), diskDataCenter.readBody(queue, delivered));
+            diskDataCenter.deleteMessage(queue, pending);
+            Assertions.assertEquals(1, diskDataCenter.loadMessageFromQueue(queue.getName()).size());
+        } finally {
+            diskDataCenter.close();
+            Application.context.close();
+            FileUtils.deleteDirectory(new File("./data"));
+        }
+    }
+}